@@ -0,0 +1,184 @@
+package com.mixpanel.android.java_websocket;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.mixpanel.android.java_websocket.WebSocket.Role;
+import com.mixpanel.android.java_websocket.drafts.Draft;
+import com.mixpanel.android.java_websocket.drafts.Draft_17;
+import com.mixpanel.android.java_websocket.exceptions.InvalidDataException;
+import com.mixpanel.android.java_websocket.framing.Framedata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.List;
+
+public class FrameBenchmarkTest extends AndroidTestCase {
+
+    public void testFramePartsRoundTrip() throws InvalidDataException {
+        final Draft client = new Draft_17();
+        client.setParseMode(Role.CLIENT);
+        final Draft server = new Draft_17();
+        server.setParseMode(Role.SERVER);
+        final ByteBufferPool pool = new ByteBufferPool(1024 * 1024);
+
+        for (final int size : new int[] {0, 1, 125, 126, 65535, 65536, 100003}) {
+            final byte[] payload = payload(size);
+            final List<ByteBuffer> parts = client.createBinaryFrameParts(frame(client, payload), pool);
+
+            int frameLength = 0;
+            for (final ByteBuffer part : parts) {
+                assertTrue(part.isDirect());
+                frameLength += part.remaining();
+            }
+            final ByteBuffer joined = ByteBuffer.allocate(frameLength);
+            for (final ByteBuffer part : parts) {
+                joined.put(part);
+                pool.release(part);
+            }
+            joined.flip();
+
+            final List<Framedata> frames = server.translateFrame(joined);
+            assertEquals(1, frames.size());
+            assertEquals(ByteBuffer.wrap(payload), frames.get(0).getPayloadData());
+            server.reset();
+        }
+    }
+
+    public void testBufferPool() {
+        final ByteBufferPool pool = new ByteBufferPool(8192);
+        final ByteBuffer first = pool.acquire(3000);
+        assertEquals(4096, first.capacity());
+        assertEquals(3000, first.limit());
+        pool.release(first);
+        assertEquals(4096, pool.getPooledBytes());
+
+        assertSame(first, pool.acquire(4096));
+        assertEquals(0, pool.getPooledBytes());
+        pool.release(first);
+
+        // Over the limit, and not from acquire, so neither is kept
+        pool.release(ByteBuffer.allocateDirect(8192));
+        pool.release(ByteBuffer.allocate(2048));
+        assertEquals(4096, pool.getPooledBytes());
+    }
+
+    /**
+     * Writes the same frames to a pipe one heap buffer at a time, the way the stream and the
+     * fallback channel writers do, and as pooled direct parts with OutboundQueue's gathering writes.
+     */
+    public void testFrameSizeBenchmark() throws IOException, InterruptedException {
+        final int[] frameSizes = {1024, 64 * 1024, 1024 * 1024};
+        final Draft draft = new Draft_17();
+        draft.setParseMode(Role.CLIENT);
+
+        final Pipe pipe = Pipe.open();
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                final ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    while (pipe.source().read(sink) >= 0) {
+                        sink.clear();
+                    }
+                } catch (final IOException e) {
+                    // The pipe was closed
+                }
+            }
+        };
+        reader.start();
+
+        try {
+            for (final int frameSize : frameSizes) {
+                final byte[] payload = payload(frameSize);
+                final int frameCount = Math.max(1, BYTES_PER_RUN / frameSize);
+                final ByteBufferPool pool = new ByteBufferPool(2 * 1024 * 1024);
+                final OutboundQueue queue = new OutboundQueue();
+
+                // Warm up, so the pool and the JIT are in place
+                writeHeapFrames(draft, payload, frameCount, pipe.sink());
+                writeGatheredFrames(draft, payload, frameCount, pipe.sink(), queue, pool);
+
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < RUNS; i++) {
+                    writeHeapFrames(draft, payload, frameCount, pipe.sink());
+                }
+                final long oldMicros = (System.nanoTime() - start) / 1000 / RUNS;
+                final long oldBytes = (allocatedBytes() - allocated) / RUNS;
+
+                allocated = allocatedBytes();
+                start = System.nanoTime();
+                for (int i = 0; i < RUNS; i++) {
+                    writeGatheredFrames(draft, payload, frameCount, pipe.sink(), queue, pool);
+                }
+                final long newMicros = (System.nanoTime() - start) / 1000 / RUNS;
+                final long newBytes = (allocatedBytes() - allocated) / RUNS;
+
+                assertTrue(queue.isEmpty());
+                Log.i(LOGTAG, frameCount + " frames of " + frameSize + " bytes: heap frames " + oldMicros + "us, " +
+                        oldBytes + " bytes; pooled, gathered frames " + newMicros + "us, " + newBytes +
+                        " bytes (" + pool.getPooledBytes() + " pooled)");
+            }
+        } finally {
+            pipe.sink().close();
+            reader.join();
+            pipe.source().close();
+        }
+    }
+
+    private static void writeHeapFrames(Draft draft, byte[] payload, int frameCount, Pipe.SinkChannel sink)
+            throws IOException {
+        for (int i = 0; i < frameCount; i++) {
+            final ByteBuffer buf = draft.createBinaryFrame(frame(draft, payload));
+            while (buf.hasRemaining()) {
+                sink.write(buf);
+            }
+        }
+    }
+
+    private static void writeGatheredFrames(Draft draft, byte[] payload, int frameCount, Pipe.SinkChannel sink,
+                                            OutboundQueue queue, ByteBufferPool pool) throws IOException {
+        for (int i = 0; i < frameCount; i++) {
+            queue.addFrame(draft.createBinaryFrameParts(frame(draft, payload), pool), false);
+        }
+        while (!queue.writeTo(sink, pool)) {
+            // A blocking pipe takes everything, this only loops if it's interrupted part way
+        }
+    }
+
+    private static Framedata frame(Draft draft, byte[] payload) {
+        return draft.createFrames(ByteBuffer.wrap(payload), true).get(0);
+    }
+
+    private static byte[] payload(int size) {
+        final byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        return payload;
+    }
+
+    /**
+     * Java heap bytes allocated by this process so far, or -1 where the platform can't say
+     */
+    @SuppressLint("NewApi")
+    @SuppressWarnings("deprecation")
+    private static long allocatedBytes() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            final String stat = Debug.getRuntimeStat("art.gc.bytes-allocated");
+            return null == stat ? -1 : Long.parseLong(stat);
+        } else {
+            Debug.startAllocCounting();
+            return Debug.getGlobalAllocSize();
+        }
+    }
+
+    private static final int RUNS = 5;
+    private static final int BYTES_PER_RUN = 4 * 1024 * 1024;
+    private static final String LOGTAG = "MixpanelAPI.FrameBench";
+}
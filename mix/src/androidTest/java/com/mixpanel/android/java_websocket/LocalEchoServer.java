@@ -0,0 +1,247 @@
+package com.mixpanel.android.java_websocket;
+
+import com.mixpanel.android.java_websocket.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A websocket server on the loopback interface for one client at a time, which sends every
+ * message it receives straight back. Keeps each message it received, and answers pings and
+ * the closing handshake.
+ */
+public class LocalEchoServer {
+
+    public static class Message {
+        public Message(int opcode, byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+
+        public final int opcode;
+        public final byte[] payload;
+    }
+
+    public LocalEchoServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        mMessages = new ArrayList<Message>();
+        mThread = new Thread("LocalEchoServer") {
+            @Override
+            public void run() {
+                try {
+                    while (!mServerSocket.isClosed()) {
+                        final Socket client = mServerSocket.accept();
+                        mClient = client;
+                        try {
+                            serve(client);
+                        } catch (final IOException e) {
+                            // The client went away, wait for the next one
+                        } finally {
+                            client.close();
+                        }
+                    }
+                } catch (final IOException e) {
+                    // The server was closed
+                }
+            }
+        };
+        mThread.start();
+    }
+
+    public String getUri() {
+        return "ws://127.0.0.1:" + mServerSocket.getLocalPort() + "/";
+    }
+
+    /**
+     * Waits for at least count messages to have been received in total.
+     *
+     * @return false if they didn't all arrive within timeoutMillis
+     */
+    public synchronized boolean awaitMessages(int count, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mMessages.size() < count) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    public synchronized List<Message> getMessages() {
+        return new ArrayList<Message>(mMessages);
+    }
+
+    /**
+     * @return the bytes of every frame received, headers included
+     */
+    public synchronized long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
+    public synchronized void clear() {
+        mMessages.clear();
+        mReceivedBytes = 0;
+    }
+
+    /**
+     * @return whether a client finished the closing handshake
+     */
+    public synchronized boolean wasClosedByClient() {
+        return mClosedByClient;
+    }
+
+    public void close() throws IOException, InterruptedException {
+        mServerSocket.close();
+        final Socket client = mClient;
+        if (null != client) {
+            client.close();
+        }
+        mThread.join();
+    }
+
+    private void serve(Socket client) throws IOException {
+        final DataInputStream in = new DataInputStream(client.getInputStream());
+        final OutputStream out = client.getOutputStream();
+        handshake(in, out);
+
+        int messageOpcode = 0;
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        while (true) {
+            final int first = in.readUnsignedByte();
+            final int second = in.readUnsignedByte();
+            final boolean fin = (first & 0x80) != 0;
+            final int opcode = first & 0x0F;
+            long length = second & 0x7F;
+            int headerLength = 2;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+                headerLength += 2;
+            } else if (length == 127) {
+                length = in.readLong();
+                headerLength += 8;
+            }
+            final byte[] mask = new byte[4];
+            if ((second & 0x80) != 0) {
+                in.readFully(mask);
+                headerLength += 4;
+            }
+            final byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i % 4];
+            }
+            synchronized (this) {
+                mReceivedBytes += headerLength + length;
+            }
+
+            if (opcode == OPCODE_CLOSE) {
+                writeFrame(out, OPCODE_CLOSE, payload);
+                synchronized (this) {
+                    mClosedByClient = true;
+                    notifyAll();
+                }
+                return;
+            } else if (opcode == OPCODE_PING) {
+                writeFrame(out, OPCODE_PONG, payload);
+                continue;
+            } else if (opcode == OPCODE_PONG) {
+                continue;
+            }
+
+            if (opcode != OPCODE_CONTINUATION) {
+                messageOpcode = opcode;
+                message.reset();
+            }
+            message.write(payload);
+            if (fin) {
+                final byte[] whole = message.toByteArray();
+                writeFrame(out, messageOpcode, whole);
+                synchronized (this) {
+                    mMessages.add(new Message(messageOpcode, whole));
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private static void handshake(InputStream in, OutputStream out) throws IOException {
+        final StringBuilder request = new StringBuilder();
+        while (!request.toString().endsWith("\r\n\r\n")) {
+            final int c = in.read();
+            if (c == -1) {
+                throw new IOException("Connection closed during the handshake");
+            }
+            request.append((char) c);
+        }
+
+        String key = null;
+        for (final String line : request.toString().split("\r\n")) {
+            if (line.toLowerCase(Locale.US).startsWith("sec-websocket-key:")) {
+                key = line.substring(line.indexOf(':') + 1).trim();
+            }
+        }
+        if (null == key) {
+            throw new IOException("No Sec-WebSocket-Key in " + request);
+        }
+
+        final String accept;
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+            accept = Base64.encodeBytes(sha1.digest((key + WEBSOCKET_GUID).getBytes("US-ASCII")));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        final String response = "HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+        out.write(response.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static void writeFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+        out.write(0x80 | opcode);
+        if (payload.length <= 125) {
+            out.write(payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            out.write(126);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+        } else {
+            out.write(127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) ((long) payload.length >>> shift));
+            }
+        }
+        out.write(payload);
+        out.flush();
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Thread mThread;
+    private final List<Message> mMessages;
+    private volatile Socket mClient;
+    private long mReceivedBytes;
+    private boolean mClosedByClient;
+
+    public static final int OPCODE_CONTINUATION = 0;
+    public static final int OPCODE_TEXT = 1;
+    public static final int OPCODE_BINARY = 2;
+    private static final int OPCODE_CLOSE = 8;
+    private static final int OPCODE_PING = 9;
+    private static final int OPCODE_PONG = 10;
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+}
@@ -0,0 +1,117 @@
+package com.mixpanel.android.java_websocket;
+
+import android.test.AndroidTestCase;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+public class OutboundQueueTest extends AndroidTestCase {
+
+    public void testByteLimit() throws InterruptedException {
+        final OutboundQueue queue = new OutboundQueue();
+        queue.add(ByteBuffer.allocate(600));
+        queue.add(ByteBuffer.allocate(600));
+        assertFalse(queue.awaitBytesBelow(1000, 10));
+
+        // A writer taking a buffer wakes up anyone waiting for room
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    queue.take();
+                } catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        assertTrue(queue.awaitBytesBelow(1000, 5000));
+        writer.join();
+
+        assertTrue(queue.awaitBytesBelow(600, 0));
+        assertFalse(queue.awaitBytesBelow(599, 0));
+    }
+
+    public void testCounters() throws InterruptedException {
+        final OutboundQueue queue = new OutboundQueue();
+        queue.add(ByteBuffer.allocate(100));
+        queue.put(ByteBuffer.allocate(200));
+        queue.offer(ByteBuffer.allocate(300));
+        assertEquals(600, queue.getQueuedBytes());
+        assertEquals(0, queue.getDequeuedBytes());
+
+        assertEquals(100, queue.take().limit());
+        assertEquals(200, queue.poll().limit());
+        assertEquals(300, queue.getQueuedBytes());
+        assertEquals(300, queue.getDequeuedBytes());
+
+        queue.clear();
+        assertEquals(0, queue.getQueuedBytes());
+        assertEquals(300, queue.getDequeuedBytes());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(300, queue.getDequeuedBytes());
+    }
+
+    public void testReplaceUnsentGroup() {
+        final OutboundQueue queue = new OutboundQueue();
+        final ByteBuffer before = ByteBuffer.allocate(10);
+        final ByteBuffer sameAsReplaced = ByteBuffer.allocate(20);
+        final ByteBuffer replaced1 = ByteBuffer.allocate(20);
+        final ByteBuffer replaced2 = ByteBuffer.allocate(30);
+        final ByteBuffer after = ByteBuffer.allocate(40);
+
+        queue.add(before);
+        queue.add(sameAsReplaced);
+        queue.replaceGroup();
+        queue.addReplaceable(replaced1);
+        queue.addReplaceable(replaced2);
+        queue.add(after);
+        assertEquals(120, queue.getQueuedBytes());
+
+        assertEquals(50, queue.replaceGroup());
+        assertEquals(1, queue.getReplacedGroups());
+        assertEquals(50, queue.getReplacedBytes());
+        assertEquals(70, queue.getQueuedBytes());
+
+        // Only the group's own buffers go, not others with the same contents
+        assertSame(before, queue.poll());
+        assertSame(sameAsReplaced, queue.poll());
+        assertSame(after, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(70, queue.getDequeuedBytes());
+
+        // Nothing left to replace
+        assertEquals(0, queue.replaceGroup());
+        assertEquals(1, queue.getReplacedGroups());
+    }
+
+    public void testKeepStartedGroup() {
+        final OutboundQueue queue = new OutboundQueue();
+        final ByteBuffer first = ByteBuffer.allocate(10);
+        final ByteBuffer second = ByteBuffer.allocate(20);
+
+        queue.replaceGroup();
+        queue.addReplaceable(first);
+        queue.addReplaceable(second);
+        assertSame(first, queue.poll());
+
+        // Dropping the rest would leave a message half sent
+        assertEquals(0, queue.replaceGroup());
+        assertEquals(0, queue.getReplacedGroups());
+        assertSame(second, queue.poll());
+    }
+
+    public void testKeepGroupAtHead() {
+        final OutboundQueue queue = new OutboundQueue();
+        final ByteBuffer first = ByteBuffer.allocate(10);
+
+        queue.replaceGroup();
+        queue.addReplaceable(first);
+
+        // A writer may be part way through the head buffer without having taken it
+        assertEquals(0, queue.replaceGroup());
+        assertSame(first, queue.peek());
+        assertEquals(10, queue.getQueuedBytes());
+    }
+}
@@ -0,0 +1,142 @@
+package com.mixpanel.android.java_websocket.client;
+
+import android.test.AndroidTestCase;
+
+import com.mixpanel.android.java_websocket.LocalEchoServer;
+import com.mixpanel.android.java_websocket.drafts.Draft_17;
+import com.mixpanel.android.java_websocket.framing.CloseFrame;
+import com.mixpanel.android.java_websocket.handshake.ServerHandshake;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class WebSocketClientTest extends AndroidTestCase {
+
+    @Override
+    public void setUp() throws IOException {
+        mServer = new LocalEchoServer();
+        mEvents = new LinkedBlockingQueue<Object>();
+    }
+
+    @Override
+    public void tearDown() throws IOException, InterruptedException {
+        mServer.close();
+    }
+
+    public void testSelectorOpenMessageClose() throws URISyntaxException, InterruptedException {
+        final RecordingClient client = new RecordingClient(new URI(mServer.getUri()));
+        client.setUseSelector(true);
+        assertTrue(client.connectBlocking());
+        assertEquals(OPENED, nextEvent());
+        assertTrue(client.isSelectorOpen());
+
+        client.send("Hello");
+        assertEquals("Hello", nextEvent());
+
+        // Larger than a socket buffer, so it goes out over several OP_WRITE rounds and comes back in several reads
+        final byte[] payload = new byte[300 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        client.send(payload);
+        assertTrue(Arrays.equals(payload, (byte[]) nextEvent()));
+
+        final String[] messages = {"one", "two", "three"};
+        for (final String message : messages) {
+            client.send(message);
+        }
+        for (final String message : messages) {
+            assertEquals(message, nextEvent());
+        }
+        assertTrue(mServer.awaitMessages(5, TIMEOUT_MILLIS));
+
+        client.closeBlocking();
+        assertEquals(CloseFrame.NORMAL, nextEvent());
+        assertTrue(mServer.wasClosedByClient());
+        awaitSelectorClosed(client);
+        assertNull(mEvents.poll());
+    }
+
+    public void testSelectorNeverConnected() throws URISyntaxException, IOException, InterruptedException {
+        final URI uri = new URI(mServer.getUri());
+        mServer.close();
+
+        final RecordingClient client = new RecordingClient(uri);
+        client.setUseSelector(true);
+        assertFalse(client.connectBlocking());
+        assertEquals(CloseFrame.NEVER_CONNECTED, nextEvent());
+        awaitSelectorClosed(client);
+    }
+
+    public void testSelectorRefusesSocket() throws URISyntaxException, InterruptedException {
+        final RecordingClient client = new RecordingClient(new URI(mServer.getUri()));
+        client.setUseSelector(true);
+        client.setSocket(new Socket());
+        assertFalse(client.connectBlocking());
+        assertEquals(CloseFrame.NEVER_CONNECTED, nextEvent());
+        awaitSelectorClosed(client);
+    }
+
+    private Object nextEvent() throws InterruptedException {
+        final Object event = mEvents.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull("Timed out waiting for the client", event);
+        return event;
+    }
+
+    /**
+     * The selector thread closes its selector after onClose, on its way out
+     */
+    private static void awaitSelectorClosed(WebSocketClient client) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (client.isSelectorOpen()) {
+            assertTrue("Selector still open", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private class RecordingClient extends WebSocketClient {
+        public RecordingClient(URI uri) {
+            super(uri, new Draft_17(), null, (int) TIMEOUT_MILLIS);
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshakedata) {
+            mEvents.add(OPENED);
+        }
+
+        @Override
+        public void onMessage(String message) {
+            mEvents.add(message);
+        }
+
+        @Override
+        public void onMessage(ByteBuffer bytes) {
+            final byte[] message = new byte[bytes.remaining()];
+            bytes.get(message);
+            mEvents.add(message);
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            mEvents.add(code);
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            // Failures show up as the close code
+        }
+    }
+
+    private LocalEchoServer mServer;
+    private BlockingQueue<Object> mEvents;
+
+    private static final String OPENED = "Opened";
+    private static final long TIMEOUT_MILLIS = 5000;
+}
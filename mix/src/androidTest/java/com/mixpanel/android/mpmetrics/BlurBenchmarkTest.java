@@ -0,0 +1,107 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Build;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.mixpanel.android.util.BlurEngine;
+import com.mixpanel.android.util.StackBlurManager;
+
+public class BlurBenchmarkTest extends AndroidTestCase {
+
+    public void testUniformImageStaysUniform() {
+        final Bitmap source = Bitmap.createBitmap(400, 300, Bitmap.Config.ARGB_8888);
+        source.eraseColor(Color.rgb(10, 200, 90));
+
+        final Bitmap blurred = BlurEngine.getInstance().blur(source, 20, 4);
+        assertEquals(100, blurred.getWidth());
+        assertEquals(75, blurred.getHeight());
+        assertTrue(blurred.isMutable());
+
+        final int[] pixels = new int[100 * 75];
+        blurred.getPixels(pixels, 0, 100, 0, 0, 100, 75);
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals("Pixel " + i, Color.rgb(10, 200, 90), pixels[i]);
+        }
+        assertEquals(Color.rgb(10, 200, 90), source.getPixel(0, 0));
+    }
+
+    public void testEdgesAreBlurred() {
+        final Bitmap source = Bitmap.createBitmap(512, 512, Bitmap.Config.ARGB_8888);
+        source.eraseColor(Color.BLACK);
+        final Paint white = new Paint();
+        white.setColor(Color.WHITE);
+        new Canvas(source).drawRect(256, 0, 512, 512, white);
+
+        final Bitmap blurred = BlurEngine.getInstance().blur(source, 20, 1);
+        final int edge = Color.red(blurred.getPixel(256, 256));
+        assertTrue("Edge was " + edge, edge > 0 && edge < 255);
+        assertEquals(0, Color.red(blurred.getPixel(0, 256)));
+        assertEquals(255, Color.red(blurred.getPixel(511, 256)));
+    }
+
+    /**
+     * Logs the time and memory allocated by the old single threaded blur of a half size screenshot,
+     * against BlurEngine downsampling it a further four times, at common screen sizes.
+     */
+    public void testBenchmark() {
+        final int[][] screens = {{720, 1280}, {1080, 1920}, {1440, 2560}};
+        for (final int[] screen : screens) {
+            final Bitmap screenshot = Bitmap.createBitmap(screen[0] / 2, screen[1] / 2, Bitmap.Config.ARGB_8888);
+            final Paint paint = new Paint();
+            final Canvas canvas = new Canvas(screenshot);
+            for (int y = 0; y < screenshot.getHeight(); y += 16) {
+                paint.setColor(Color.rgb(y % 256, (y * 3) % 256, (y * 7) % 256));
+                canvas.drawRect(0, y, screenshot.getWidth(), y + 16, paint);
+            }
+
+            // Warm up, so the engine's buffers and the JIT are in place
+            BlurEngine.getInstance().blur(screenshot, 20, 4);
+
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) {
+                final Bitmap copy = screenshot.copy(Bitmap.Config.ARGB_8888, true);
+                StackBlurManager.process(copy, 20);
+            }
+            final long oldMicros = (System.nanoTime() - start) / 1000 / RUNS;
+            final long oldBytes = (allocatedBytes() - allocated) / RUNS;
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) {
+                BlurEngine.getInstance().blur(screenshot, 20, 4);
+            }
+            final long newMicros = (System.nanoTime() - start) / 1000 / RUNS;
+            final long newBytes = (allocatedBytes() - allocated) / RUNS;
+
+            Log.i(LOGTAG, screen[0] + "x" + screen[1] + ": StackBlurManager " + oldMicros + "us, " + oldBytes +
+                    " bytes; BlurEngine " + newMicros + "us, " + newBytes + " bytes (" +
+                    BlurEngine.getInstance().getRetainedBytes() + " retained)");
+        }
+    }
+
+    /**
+     * Java heap bytes allocated by this process so far, or -1 where the platform can't say
+     */
+    @SuppressLint("NewApi")
+    @SuppressWarnings("deprecation")
+    private static long allocatedBytes() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            final String stat = Debug.getRuntimeStat("art.gc.bytes-allocated");
+            return null == stat ? -1 : Long.parseLong(stat);
+        } else {
+            Debug.startAllocCounting();
+            return Debug.getGlobalAllocSize();
+        }
+    }
+
+    private static final int RUNS = 5;
+    private static final String LOGTAG = "MixpanelAPI.BlurBench";
+}
@@ -5,7 +5,7 @@ import android.os.Bundle;
 import android.test.AndroidTestCase;
 
 import com.mixpanel.android.util.RemoteService;
-import com.mixpanel.android.util.HttpService;
+import com.mixpanel.android.util.DefaultHttpService;
 import com.mixpanel.android.viewcrawler.UpdatesFromMixpanel;
 
 import org.json.JSONArray;
@@ -13,9 +13,11 @@ import org.json.JSONArray;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -55,6 +57,41 @@ public class DecideCheckerTest extends AndroidTestCase {
         });
     }
 
+    public void testNotModifiedResponses() throws RemoteService.ServiceUnavailableException {
+        final DecideResponseCache cache = new DecideResponseCache(getContext());
+        cache.remove(mDecideMessages1.getToken());
+        mDecideChecker.addDecideCheck(mDecideMessages1);
+
+        mPoster.response = bytes("{\"event_bindings\":[]}");
+        mPoster.etag = "\"VERSION 1\"";
+        mDecideChecker.runDecideCheck(mDecideMessages1.getToken(), mPoster);
+        assertNull(mPoster.etagsSent.get(0));
+        assertUpdatesSeen(new JSONArray[] {
+                new JSONArray()
+        });
+        mEventBinder.bindingsSeen.clear();
+
+        // Unchanged, and already reported- nothing to do
+        mPoster.notModified = true;
+        mDecideChecker.runDecideCheck(mDecideMessages1.getToken(), mPoster);
+        assertEquals("\"VERSION 1\"", mPoster.etagsSent.get(1));
+        assertUpdatesSeen(new JSONArray[] {});
+        assertEquals(1, mDecideChecker.getCacheHits());
+        assertEquals(1, mDecideChecker.getCacheMisses());
+        assertEquals(bytes("{\"event_bindings\":[]}").length, mDecideChecker.getBytesSaved());
+
+        // A new checker (as in a new process) reports the cached response
+        final DecideChecker restarted = new DecideChecker(getContext(), mConfig);
+        restarted.addDecideCheck(mDecideMessages1);
+        restarted.runDecideCheck(mDecideMessages1.getToken(), mPoster);
+        assertEquals("\"VERSION 1\"", mPoster.etagsSent.get(2));
+        assertUpdatesSeen(new JSONArray[] {
+                new JSONArray()
+        });
+
+        cache.remove(mDecideMessages1.getToken());
+    }
+
     public void testBadDecideResponses() throws RemoteService.ServiceUnavailableException {
         mDecideChecker.addDecideCheck(mDecideMessages1);
 
@@ -82,7 +119,7 @@ public class DecideCheckerTest extends AndroidTestCase {
         mEventBinder.bindingsSeen.clear();
     }
 
-    public void testDecideResponses() throws DecideChecker.UnintelligibleMessageException {
+    public void testDecideResponses() throws DecideChecker.UnintelligibleMessageException, BadDecideObjectException {
         {
             final String nonsense = "I AM NONSENSE";
             try {
@@ -121,7 +158,7 @@ public class DecideCheckerTest extends AndroidTestCase {
             final DecideChecker.Result parseNotificationOnly = DecideChecker.parseDecideResponse(notificationOnly);
             assertEquals(parseNotificationOnly.notifications.size(), 1);
 
-            final TakeoverInAppNotification parsed = (TakeoverInAppNotification) parseNotificationOnly.notifications.get(0);
+            final TakeoverInAppNotification parsed = (TakeoverInAppNotification) parseNotificationOnly.notifications.get(0).getNotification();
             assertEquals(parsed.getId(), 1234);
             assertEquals(parsed.getMessageId(), 4321);
 
@@ -149,7 +186,7 @@ public class DecideCheckerTest extends AndroidTestCase {
             final String both = "{\"notifications\":[{\"body\":\"A\",\"image_tint_color\":4294967295,\"border_color\":4294967295,\"message_id\":85151,\"bg_color\":3858759680,\"extras\":{},\"image_url\":\"https://cdn.mxpnl.com/site_media/images/engage/inapp_messages/mini/icon_megaphone.png\",\"cta_url\":null,\"type\":\"mini\",\"id\":1191793,\"body_color\":4294967295}]}";
             final DecideChecker.Result parseBoth = DecideChecker.parseDecideResponse(both);
 
-            final MiniInAppNotification parsedNotification = (MiniInAppNotification) parseBoth.notifications.get(0);
+            final MiniInAppNotification parsedNotification = (MiniInAppNotification) parseBoth.notifications.get(0).getNotification();
             assertEquals(parsedNotification.getBody(), "A");
             assertEquals(parsedNotification.getBodyColor(), Color.WHITE);
             assertEquals(parsedNotification.getImageTintColor(), Color.WHITE);
@@ -191,6 +228,36 @@ public class DecideCheckerTest extends AndroidTestCase {
         assertFalse(mDecideMessages1.shouldTrackAutomaticEvent());
     }
 
+    public void testBatchedDecideChecks() throws RemoteService.ServiceUnavailableException {
+        mDecideChecker.addDecideCheck(mDecideMessages1);
+        mDecideChecker.addDecideCheck(mDecideMessages2);
+        mDecideChecker.addDecideCheck(mDecideMessages3);
+        final List<String> tokens = Arrays.asList(mDecideMessages1.getToken(),
+                mDecideMessages2.getToken(), mDecideMessages3.getToken());
+
+        mPoster.response = bytes("{\"event_bindings\":[]}");
+        mDecideChecker.runDecideChecks(tokens, mPoster);
+        assertEquals(3, mPoster.requestedUrls.size());
+        assertTrue(mPoster.requestedUrls.toString().contains("token=TOKEN+1&distinct_id=DISTINCT+ID+1"));
+        assertTrue(mPoster.requestedUrls.toString().contains("token=TOKEN+2&distinct_id=DISTINCT+ID+2"));
+        assertTrue(mPoster.requestedUrls.toString().contains("token=TOKEN+3&distinct_id=DISTINCT+ID+3"));
+        assertUpdatesSeen(new JSONArray[] {
+                new JSONArray(), new JSONArray(), new JSONArray()
+        });
+        mEventBinder.bindingsSeen.clear();
+
+        // One token being turned away doesn't stop the others
+        mPoster.unavailableToken = "TOKEN+2";
+        try {
+            mDecideChecker.runDecideChecks(tokens, mPoster);
+            fail("Should have passed on the service being unavailable");
+        } catch (final RemoteService.ServiceUnavailableException e) {
+            assertEquals(30, e.getRetryAfter());
+        }
+        assertEquals(6, mPoster.requestedUrls.size());
+        assertEquals(2, mEventBinder.bindingsSeen.size());
+    }
+
     private void assertUpdatesSeen(JSONArray[] expected) {
         assertEquals(expected.length, mEventBinder.bindingsSeen.size());
         for (int bindingCallIx = 0; bindingCallIx < expected.length; bindingCallIx++) {
@@ -208,21 +275,59 @@ public class DecideCheckerTest extends AndroidTestCase {
         }
     }
 
-    private static class MockPoster extends HttpService {
+    private static class MockPoster extends DefaultHttpService {
         @Override
-        public byte[] performRequest(String url, Map<String, Object> params, SSLSocketFactory socketFactory) throws IOException {
+        public byte[] performRequest(String url, Map<String, Object> params, SSLSocketFactory socketFactory)
+                throws ServiceUnavailableException, IOException {
+            // Posters other than DefaultHttpService are only asked for one request at a time
+            assertEquals(1, inFlight.incrementAndGet());
+            try {
+                return respond(url, params);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        private byte[] respond(String url, Map<String, Object> params)
+                throws ServiceUnavailableException, IOException {
             assertNull(params);
             requestedUrls.add(url);
 
+            if (null != unavailableToken && url.contains("token=" + unavailableToken + "&")) {
+                throw new ServiceUnavailableException("Service Unavailable", "30");
+            }
+
             if (null != exception) {
                 throw exception;
             }
             return response;
         }
 
+        @Override
+        public ConditionalResponse performConditionalRequest(String url, String etag, String lastModified,
+                                                             SSLSocketFactory socketFactory)
+                throws ServiceUnavailableException, IOException {
+            assertEquals(1, inFlight.incrementAndGet());
+            try {
+                etagsSent.add(etag);
+                if (notModified) {
+                    requestedUrls.add(url);
+                    return new ConditionalResponse(new byte[0], true, this.etag, null);
+                }
+                return new ConditionalResponse(respond(url, null), false, this.etag, null);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
         public List<String> requestedUrls = new ArrayList<String>();
         public byte[] response = null;
         public IOException exception = null;
+        public String unavailableToken = null;
+        public String etag = null;
+        public boolean notModified = false;
+        public List<String> etagsSent = new ArrayList<String>();
+        private final AtomicInteger inFlight = new AtomicInteger();
     }
 
     private static class MockUpdatesFromMixpanel implements UpdatesFromMixpanel {
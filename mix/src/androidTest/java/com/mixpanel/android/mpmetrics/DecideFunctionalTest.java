@@ -340,7 +340,7 @@ public class DecideFunctionalTest extends AndroidTestCase {
         }
 
         @Override
-        public void reportResults(List<InAppNotification> newNotifications,
+        public void reportResults(List<InAppNotificationDescriptor> newNotifications,
                                   JSONArray eventBindings,
                                   JSONArray variants,
                                   boolean automaticEvents,
@@ -1,5 +1,6 @@
 package com.mixpanel.android.mpmetrics;
 
+import android.graphics.Bitmap;
 import android.test.AndroidTestCase;
 
 import com.mixpanel.android.viewcrawler.UpdatesFromMixpanel;
@@ -90,7 +91,7 @@ public class DecideMessagesTest extends AndroidTestCase {
     }
 
     public void testDuplicateIds() throws JSONException, BadDecideObjectException {
-        mDecideMessages.reportResults(mSomeNotifications, mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
+        mDecideMessages.reportResults(descriptors(mSomeNotifications), mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
 
         final List<InAppNotification> fakeNotifications = new ArrayList<InAppNotification>(mSomeNotifications.size());
         for (final InAppNotification real: mSomeNotifications) {
@@ -104,7 +105,7 @@ public class DecideMessagesTest extends AndroidTestCase {
 
         assertNull(mDecideMessages.getNotification(false));
 
-        mDecideMessages.reportResults(fakeNotifications, mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
+        mDecideMessages.reportResults(descriptors(fakeNotifications), mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
 
         assertNull(mDecideMessages.getNotification(false));
 
@@ -114,7 +115,7 @@ public class DecideMessagesTest extends AndroidTestCase {
         final InAppNotification unseenNotification = new MiniInAppNotification(notificationNewIdDesc);
         fakeNotifications.add(unseenNotification);
 
-        mDecideMessages.reportResults(fakeNotifications, mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
+        mDecideMessages.reportResults(descriptors(fakeNotifications), mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
 
         assertEquals(mDecideMessages.getNotification(false), unseenNotification);
 
@@ -125,7 +126,7 @@ public class DecideMessagesTest extends AndroidTestCase {
         final InAppNotification nullBeforeNotification = mDecideMessages.getNotification(false);
         assertNull(nullBeforeNotification);
 
-        mDecideMessages.reportResults(mSomeNotifications, mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
+        mDecideMessages.reportResults(descriptors(mSomeNotifications), mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
 
         final InAppNotification n1 = mDecideMessages.getNotification(false);
         assertEquals(mSomeNotifications.get(0), n1);
@@ -139,12 +140,12 @@ public class DecideMessagesTest extends AndroidTestCase {
 
     public void testListenerCalls() throws JSONException, BadDecideObjectException {
         assertNull(mListenerCalls.peek());
-        mDecideMessages.reportResults(mSomeNotifications, mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
+        mDecideMessages.reportResults(descriptors(mSomeNotifications), mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
         assertEquals(mListenerCalls.poll(), "CALLED");
         assertNull(mListenerCalls.peek());
 
         // No new info means no new calls
-        mDecideMessages.reportResults(mSomeNotifications, mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
+        mDecideMessages.reportResults(descriptors(mSomeNotifications), mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
         assertNull(mListenerCalls.peek());
 
         // New info means new calls
@@ -155,11 +156,66 @@ public class DecideMessagesTest extends AndroidTestCase {
         final List<InAppNotification> newNotifications = new ArrayList<InAppNotification>();
         newNotifications.add(unseenNotification);
 
-        mDecideMessages.reportResults(newNotifications, mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
+        mDecideMessages.reportResults(descriptors(newNotifications), mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
         assertEquals(mListenerCalls.poll(), "CALLED");
         assertNull(mListenerCalls.peek());
     }
 
+    public void testNotificationWaitsForImage() throws JSONException, BadDecideObjectException {
+        final List<InAppNotificationDescriptor> prefetched = new ArrayList<InAppNotificationDescriptor>();
+        mDecideMessages.setImagePrefetcher(new DecideMessages.ImagePrefetcher() {
+            @Override
+            public void prefetch(DecideMessages messages, InAppNotificationDescriptor notification) {
+                prefetched.add(notification);
+            }
+        });
+
+        final List<InAppNotificationDescriptor> described = new ArrayList<InAppNotificationDescriptor>();
+        for (final InAppNotification real : mSomeNotifications) {
+            described.add(InAppNotificationDescriptor.fromJSON(new JSONObject(real.toString())));
+        }
+        assertSame(described.get(0), mDecideMessages.getPrefetchCandidate(described));
+
+        mDecideMessages.reportResults(described, mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
+        mListenerCalls.clear();
+
+        // Nothing can be shown before its image arrives, but asking starts the fetch
+        assertNull(mDecideMessages.getNotification(false));
+        assertEquals(1, prefetched.size());
+        assertSame(described.get(0), prefetched.get(0));
+
+        final InAppNotificationDescriptor first = described.get(0);
+        assertTrue(first.startImageFetch());
+        assertFalse(first.startImageFetch());
+        first.finishImageFetch(Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888));
+        mDecideMessages.reportImageReady(first);
+        assertEquals(mListenerCalls.poll(), "CALLED");
+
+        final InAppNotification shown = mDecideMessages.getNotification(false);
+        assertTrue(shown instanceof TakeoverInAppNotification);
+        assertEquals(1234, shown.getId());
+        assertNotNull(shown.getImage());
+
+        // The next one in line is prefetched once the first is taken
+        assertSame(described.get(1), prefetched.get(prefetched.size() - 1));
+        final InAppNotificationDescriptor second = described.get(1);
+        for (int i = 0; i < InAppNotificationDescriptor.MAX_IMAGE_ATTEMPTS; i++) {
+            assertTrue(second.startImageFetch());
+            second.finishImageFetch(null);
+        }
+        assertTrue(second.isExhausted());
+        assertNull(mDecideMessages.getNotification(false));
+        assertFalse(mDecideMessages.hasUpdatesAvailable());
+    }
+
+    private static List<InAppNotificationDescriptor> descriptors(List<InAppNotification> notifications) {
+        final List<InAppNotificationDescriptor> ret = new ArrayList<InAppNotificationDescriptor>(notifications.size());
+        for (final InAppNotification notification : notifications) {
+            ret.add(new InAppNotificationDescriptor(notification));
+        }
+        return ret;
+    }
+
     private BlockingQueue<String> mListenerCalls;
     private DecideMessages.OnNewResultsListener mMockListener;
     private UpdatesFromMixpanel mMockUpdates;
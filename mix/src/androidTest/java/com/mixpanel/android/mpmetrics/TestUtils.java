@@ -22,6 +22,10 @@ public class TestUtils {
         }
     }
 
+    public static Tweaks newTweaks() {
+        return new Tweaks();
+    }
+
     public static class CleanMixpanelAPI extends MixpanelAPI {
         public CleanMixpanelAPI(final Context context, final Future<SharedPreferences> referrerPreferences, final String token) {
             super(context, referrerPreferences, token, false);
@@ -1,5 +1,6 @@
 package com.mixpanel.android.viewcrawler;
 
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
@@ -14,6 +15,8 @@ import android.widget.TextView;
 import com.mixpanel.android.mpmetrics.ResourceIds;
 import com.mixpanel.android.mpmetrics.TestUtils;
 import com.mixpanel.android.util.ImageStore;
+import com.mixpanel.android.util.OfflineMode;
+import com.mixpanel.android.util.RemoteService;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -23,6 +26,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocketFactory;
 
 
 public class EditProtocolTest extends AndroidTestCase {
@@ -383,6 +389,64 @@ public class EditProtocolTest extends AndroidTestCase {
         }
     }
 
+    public void testConcurrentEditsShareImage() throws JSONException, InterruptedException {
+        final AtomicInteger downloads = new AtomicInteger(0);
+        final ImageStore imageStore = new ImageStore(getContext(), "testConcurrentEditsShareImage", new RemoteService() {
+            @Override
+            public boolean isOnline(Context context, OfflineMode offlineMode) {
+                return true;
+            }
+
+            @Override
+            public void checkIsMixpanelBlocked() {
+            }
+
+            @Override
+            public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory) {
+                assertEquals("SHARED URL", endpointUrl);
+                downloads.incrementAndGet();
+                return IMAGE_10x10_GREEN_BYTES;
+            }
+        });
+        imageStore.clearStorage();
+        final ResourceIds resourceIds = new TestUtils.TestResourceIds(new HashMap<String, Integer>());
+        final EditProtocol protocol = new EditProtocol(getContext(), resourceIds, imageStore, mLayoutErrorListener);
+
+        // As many as ViewCrawler reads at once, each with its own bounds so no two are the same edit
+        final EditProtocol.Edit[] edits = new EditProtocol.Edit[3];
+        final Thread[] threads = new Thread[edits.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            final JSONObject obj = new JSONObject(
+                    "{\"args\":[[{\"url\":\"SHARED URL\", \"dimensions\":{\"left\":" + i + ",\"right\":20,\"top\":40,\"bottom\":50}},\"android.graphics.drawable.Drawable\"]],\"name\":\"test\",\"path\":[{\"prefix\":\"shortest\",\"index\":0,\"id\":" + TestView.IMAGE_VIEW_ID + "}],\"change_type\": \"property\",\"property\":{\"name\":\"image\",\"get\":{\"selector\":\"getDrawable\",\"parameters\":[],\"result\":{\"type\":\"android.graphics.drawable.Drawable\"}},\"set\":{\"selector\":\"setImageDrawable\",\"parameters\":[{\"type\":\"android.graphics.drawable.Drawable\"}]},\"classname\":\"android.widget.ImageView\"}}"
+            );
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        edits[index] = protocol.readEdit(obj);
+                    } catch (EditProtocol.BadInstructionsException e) {
+                        ; // edits[index] stays null
+                    } catch (EditProtocol.CantGetEditAssetsException e) {
+                        ; // edits[index] stays null
+                    }
+                }
+            };
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, downloads.get());
+        for (final EditProtocol.Edit edit : edits) {
+            assertNotNull(edit);
+            assertEquals("SHARED URL", edit.imageUrls.get(0));
+        }
+    }
+
     private static class TestEventListener implements ViewVisitor.OnEventListener {
         @Override
         public void OnEvent(View v, String eventName, boolean debounce) {
@@ -0,0 +1,188 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.test.AndroidTestCase;
+import android.util.Base64;
+import android.util.Log;
+
+import com.mixpanel.android.java_websocket.LocalEchoServer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class EditorConnectionTest extends AndroidTestCase {
+
+    public void testReadMessage() throws IOException, JSONException {
+        final EditorConnection.EditorMessage snapshot = EditorConnection.readMessage(
+                "{\"type\":\"snapshot_request\",\"extra\":[1,{\"a\":2}],\"payload\":{\"delta\":true,\"max_fps\":2.5,\"image_quality\":80,\"config\":{\"classes\":[]},\"none\":null}}");
+        assertEquals("snapshot_request", snapshot.type);
+        assertTrue(snapshot.payload.getBoolean("delta"));
+        assertEquals(2.5, snapshot.payload.getDouble("max_fps"));
+        assertEquals(Integer.valueOf(80), snapshot.payload.get("image_quality"));
+        assertEquals(0, snapshot.payload.getJSONObject("config").getJSONArray("classes").length());
+        assertTrue(snapshot.payload.isNull("none"));
+        assertFalse(snapshot.payload.has("extra"));
+
+        final JSONObject expected = new JSONObject("{\"actions\":[{\"name\":\"c1\",\"args\":[[\"Hello\",\"java.lang.CharSequence\"]]}]}");
+        final EditorConnection.EditorMessage change = EditorConnection.readMessage(
+                "{\"payload\":" + expected.toString() + ",\"type\":\"change_request\"}");
+        assertEquals("change_request", change.type);
+        assertEquals(expected.toString(), change.payload.toString());
+    }
+
+    public void testReadMessageSkipsUnwantedPayloads() throws IOException, JSONException {
+        final EditorConnection.EditorMessage info = EditorConnection.readMessage(
+                "{\"type\":\"device_info_request\",\"payload\":{\"ignored\":true}}");
+        assertEquals("device_info_request", info.type);
+        assertNull(info.payload);
+
+        final EditorConnection.EditorMessage untyped = EditorConnection.readMessage("{\"payload\":{}}");
+        assertNull(untyped.type);
+
+        final EditorConnection.EditorMessage empty = EditorConnection.readMessage("{\"type\":\"clear_request\"}");
+        assertEquals("clear_request", empty.type);
+        assertNull(empty.payload);
+    }
+
+    /**
+     * Sends the same snapshot to a local echo server, with the screenshot in Base64 inside the
+     * TEXT message and as a separate BINARY message, at the default and a large fragment_size.
+     */
+    public void testSnapshotThroughput() throws Exception {
+        final byte[] views = snapshotViews(SNAPSHOT_VIEWS);
+        // Random bytes compress about as badly as a PNG does
+        final byte[] screenshot = new byte[SCREENSHOT_BYTES];
+        new Random(42).nextBytes(screenshot);
+
+        final LocalEchoServer server = new LocalEchoServer();
+        try {
+            final EditorConnection connection = connect(server);
+            for (final int fragmentSize : new int[] {EditorConnection.DEFAULT_FRAGMENT_SIZE, 64 * 1024}) {
+                // Warm up, so the connection's buffers and the JIT are in place
+                server.clear();
+                sendSnapshot(connection, views, screenshot, false, fragmentSize);
+                sendSnapshot(connection, views, screenshot, true, fragmentSize);
+                assertTrue(server.awaitMessages(3, 10000));
+
+                server.clear();
+                long start = System.nanoTime();
+                for (int i = 0; i < RUNS; i++) {
+                    sendSnapshot(connection, views, screenshot, false, fragmentSize);
+                }
+                assertTrue(server.awaitMessages(RUNS, 30000));
+                final long textMicros = (System.nanoTime() - start) / 1000 / RUNS;
+                final long textBytes = server.getReceivedBytes() / RUNS;
+                final List<LocalEchoServer.Message> textMessages = server.getMessages();
+                assertEquals(LocalEchoServer.OPCODE_TEXT, textMessages.get(0).opcode);
+
+                server.clear();
+                start = System.nanoTime();
+                for (int i = 0; i < RUNS; i++) {
+                    sendSnapshot(connection, views, screenshot, true, fragmentSize);
+                }
+                assertTrue(server.awaitMessages(2 * RUNS, 30000));
+                final long binaryMicros = (System.nanoTime() - start) / 1000 / RUNS;
+                final long binaryBytes = server.getReceivedBytes() / RUNS;
+                final List<LocalEchoServer.Message> binaryMessages = server.getMessages();
+                assertEquals(LocalEchoServer.OPCODE_TEXT, binaryMessages.get(0).opcode);
+                assertEquals(LocalEchoServer.OPCODE_BINARY, binaryMessages.get(1).opcode);
+                assertTrue(Arrays.equals(screenshot, binaryMessages.get(1).payload));
+
+                // Base64 makes the screenshot a third bigger
+                assertTrue(binaryBytes + SCREENSHOT_BYTES / 4 < textBytes);
+                Log.i(LOGTAG, "fragment_size " + fragmentSize + ": TEXT/Base64 " + textMicros + "us, " +
+                        textBytes + " bytes; BINARY " + binaryMicros + "us, " + binaryBytes + " bytes");
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private static EditorConnection connect(LocalEchoServer server)
+            throws EditorConnection.EditorConnectionException, URISyntaxException {
+        final EditorConnection connection = new EditorConnection(new URI(server.getUri()), new NoEditor(), null);
+        assertTrue(connection.isConnected());
+        return connection;
+    }
+
+    /**
+     * Writes a snapshot_response the way ViewCrawler does, with the screenshot either embedded in
+     * Base64 or following as a BINARY message. Not marked as a snapshot, so that none of them
+     * is replaced by the next one before it's sent.
+     */
+    private static void sendSnapshot(EditorConnection connection, byte[] views, byte[] screenshot,
+                                     boolean binary, int fragmentSize) throws IOException {
+        final OutputStream out = connection.getBufferedOutputStream(fragmentSize);
+        out.write("{\"type\":\"snapshot_response\",\"payload\":{\"activities\":[{".getBytes("UTF-8"));
+        out.write(views);
+        if (binary) {
+            out.write(",\"screenshot\":{\"binary_index\":0}}]}}".getBytes("UTF-8"));
+            out.close();
+            connection.sendBinary(screenshot, fragmentSize);
+        } else {
+            out.write(",\"screenshot\":\"".getBytes("UTF-8"));
+            out.write(Base64.encode(screenshot, Base64.NO_WRAP));
+            out.write("\"}]}}".getBytes("UTF-8"));
+            out.close();
+        }
+    }
+
+    private static byte[] snapshotViews(int viewCount) throws IOException {
+        final StringBuilder views = new StringBuilder("\"serialized_objects\":{\"rootObject\":0,\"objects\":[");
+        for (int i = 0; i < viewCount; i++) {
+            if (i > 0) {
+                views.append(',');
+            }
+            views.append("{\"hashCode\":").append(i)
+                    .append(",\"id\":").append(i)
+                    .append(",\"mp_id_name\":\"view_").append(i)
+                    .append("\",\"top\":").append(i % 1280)
+                    .append(",\"left\":0,\"width\":768,\"height\":48")
+                    .append(",\"classes\":[\"android.widget.TextView\",\"android.view.View\"]}");
+        }
+        views.append("]}");
+        return views.toString().getBytes("UTF-8");
+    }
+
+    private static class NoEditor implements EditorConnection.Editor {
+        @Override
+        public void sendSnapshot(JSONObject payload) {
+        }
+
+        @Override
+        public void performEdit(JSONObject payload) {
+        }
+
+        @Override
+        public void clearEdits(JSONObject payload) {
+        }
+
+        @Override
+        public void bindEvents(JSONObject payload) {
+        }
+
+        @Override
+        public void setTweaks(JSONObject payload) {
+        }
+
+        @Override
+        public void sendDeviceInfo() {
+        }
+
+        @Override
+        public void cleanup() {
+        }
+    }
+
+    private static final int RUNS = 5;
+    private static final int SNAPSHOT_VIEWS = 1000;
+    private static final int SCREENSHOT_BYTES = 300 * 1024;
+    private static final String LOGTAG = "MixpanelAPI.EditorBench";
+}
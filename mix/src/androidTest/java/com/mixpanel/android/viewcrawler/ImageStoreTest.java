@@ -6,10 +6,13 @@ import android.graphics.Bitmap;
 import android.test.AndroidTestCase;
 import android.util.Base64;
 
+import com.mixpanel.android.util.ImageMemoryCache;
 import com.mixpanel.android.util.ImageStore;
 import com.mixpanel.android.util.OfflineMode;
 import com.mixpanel.android.util.RemoteService;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Map;
 
@@ -41,6 +44,96 @@ public class ImageStoreTest extends AndroidTestCase {
         assertEquals(1, mService.queries);
     }
 
+    public void testSampledImage() throws ImageStore.CantGetImageException {
+        final Bitmap full = mImageStore.getImage("HELLO_SAMPLED");
+        assertEquals(10, full.getWidth());
+
+        final Bitmap half = mImageStore.getImage("HELLO_SAMPLED", 5, 5);
+        assertEquals(5, half.getWidth());
+        assertEquals(5, half.getHeight());
+        assertNotSame(full, half);
+
+        // Smaller than any power of two sample would allow, so the nearest larger one
+        final Bitmap small = mImageStore.getImage("HELLO_SAMPLED", 3, 0, Bitmap.Config.RGB_565);
+        assertEquals(5, small.getWidth());
+
+        assertSame(half, mImageStore.getImage("HELLO_SAMPLED", 5, 5));
+        assertEquals(1, mService.queries);
+    }
+
+    public void testConcurrentLoadsShareDownload() throws InterruptedException, ImageStore.CantGetImageException {
+        final ImageMemoryCache cache = ImageStore.getMemoryCache();
+        final long hits = cache.getHitCount();
+        final Bitmap[] images = new Bitmap[4];
+        final Thread[] threads = new Thread[images.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        images[index] = mImageStore.getImage("HELLO_CONCURRENT");
+                    } catch (ImageStore.CantGetImageException e) {
+                        ; // images[index] stays null
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, mService.queries);
+        for (final Bitmap image : images) {
+            assertSame(images[0], image);
+        }
+
+        mImageStore.getImage("HELLO_CONCURRENT");
+        assertTrue(cache.getHitCount() > hits);
+        assertEquals(1, mService.queries);
+    }
+
+    public void testDamagedFileDownloadedAgain() throws ImageStore.CantGetImageException, IOException {
+        final File file = mImageStore.getImageFile("HELLO_DISK");
+        assertTrue(file.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertEquals(1, mService.queries);
+
+        assertEquals(file, mImageStore.getImageFile("HELLO_DISK"));
+        assertEquals(1, mService.queries);
+
+        // As if the write had been cut short
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(1);
+        out.close();
+
+        mImageStore.getImageFile("HELLO_DISK");
+        assertEquals(2, mService.queries);
+        assertEquals(mService.response.length, file.length());
+
+        mImageStore.deleteStorage("HELLO_DISK");
+        assertFalse(file.exists());
+        mImageStore.getImageFile("HELLO_DISK");
+        assertEquals(3, mService.queries);
+    }
+
+    public void testTooLargeNotStored() throws ImageStore.CantGetImageException {
+        final byte[] goodResponse = mService.response;
+        mService.response = new byte[10000001];
+        try {
+            mImageStore.getImageFile("HELLO_TOO_LARGE");
+            fail("Expected exception to be thrown");
+        } catch (ImageStore.CantGetImageException e) {
+            ; // OK
+        }
+
+        mService.response = goodResponse;
+        final File file = mImageStore.getImageFile("HELLO_TOO_LARGE");
+        assertEquals(goodResponse.length, file.length());
+        assertEquals(2, mService.queries);
+    }
+
     public void testNoResponse() {
         final byte[] goodResponse = mService.response;
         mService.response = null;
@@ -0,0 +1,343 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
+import android.os.Build;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.JsonWriter;
+import android.util.Log;
+import android.view.View;
+import android.view.accessibility.AccessibilityEvent;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.RelativeLayout;
+import android.widget.TextView;
+
+import com.mixpanel.android.mpmetrics.TestUtils;
+import com.mixpanel.android.util.ImageStore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+public class ViewCrawlerBenchmarkTest extends AndroidTestCase {
+
+    /**
+     * Logs the main thread time and memory spent per frame binding a click event to the rows of a
+     * scrolling list, rescanning the list on every layout against matching only the rows attached
+     * since the last frame.
+     */
+    public void testScrollBindingBenchmark() {
+        final List<String> rows = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            rows.add("Row " + i);
+        }
+        final ListView list = new ListView(getContext());
+        list.setAdapter(new ArrayAdapter<String>(getContext(), android.R.layout.simple_list_item_1, rows));
+        scrollTo(list, 0);
+
+        final List<Pathfinder.PathElement> rowPath = new ArrayList<Pathfinder.PathElement>();
+        rowPath.add(new Pathfinder.PathElement(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, "android.widget.ListView", 0, -1, null, null));
+        rowPath.add(new Pathfinder.PathElement(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, "android.widget.TextView", -1, -1, null, null));
+        final ViewVisitor.OnEventListener listener = new ViewVisitor.OnEventListener() {
+            @Override
+            public void OnEvent(View v, String eventName, boolean debounce) {}
+        };
+
+        final ViewVisitor rescanning =
+                new ViewVisitor.AddAccessibilityEventVisitor(rowPath, AccessibilityEvent.TYPE_VIEW_CLICKED, "row_click", listener);
+        rescanning.visit(list);
+        long rescanNanos = 0;
+        long allocated = allocatedBytes();
+        for (int frame = 1; frame <= FRAMES; frame++) {
+            scrollTo(list, frame * ROWS_PER_FRAME);
+            final long start = System.nanoTime();
+            rescanning.visit(list);
+            rescanNanos += System.nanoTime() - start;
+        }
+        final long rescanBytes = (allocatedBytes() - allocated) / FRAMES;
+        rescanning.cleanup();
+
+        scrollTo(list, 0);
+        final ViewVisitor attached =
+                new ViewVisitor.AddAccessibilityEventVisitor(rowPath, AccessibilityEvent.TYPE_VIEW_CLICKED, "row_click", listener);
+        attached.visit(list);
+        long attachedNanos = 0;
+        allocated = allocatedBytes();
+        for (int frame = 1; frame <= FRAMES; frame++) {
+            scrollTo(list, frame * ROWS_PER_FRAME);
+            final long start = System.nanoTime();
+            assertTrue(attached.visitAttachedChildren());
+            attachedNanos += System.nanoTime() - start;
+        }
+        final long attachedBytes = (allocatedBytes() - allocated) / FRAMES;
+        attached.cleanup();
+
+        Log.i(LOGTAG, "Scroll binding, " + list.getChildCount() + " rows on screen: rescan " +
+                rescanNanos / 1000 / FRAMES + "us, " + rescanBytes + " bytes per frame; attached rows only " +
+                attachedNanos / 1000 / FRAMES + "us, " + attachedBytes + " bytes per frame");
+    }
+
+    /**
+     * Logs the time and memory taken to read 200 variant changes, parsing every one on each
+     * update as the handler used to, against the first and a repeated update through ParsedEditCache.
+     */
+    public void testEditReadingBenchmark() throws JSONException, EditProtocol.BadInstructionsException,
+            EditProtocol.CantGetEditAssetsException {
+        final EditProtocol protocol = new EditProtocol(getContext(), new TestUtils.TestResourceIds(new HashMap<String, Integer>()),
+                new ImageStore(getContext(), "ViewCrawlerBenchmarkTest"), new TestView.MockOnLayoutErrorListener());
+        final List<JSONObject> changes = new ArrayList<JSONObject>();
+        for (int i = 0; i < CHANGES; i++) {
+            changes.add(new JSONObject(
+                "{\"path\":[{\"view_class\":\"com.mixpanel.android.viewcrawler.TestView\",\"index\":0},{\"view_class\":\"android.widget.LinearLayout\",\"index\":0},{\"view_class\":\"android.widget.LinearLayout\",\"index\":0},{\"view_class\":\"android.widget.Button\",\"index\":1}],\"property\":{\"classname\":\"android.widget.Button\",\"name\":\"text\",\"get\":{\"selector\":\"getText\",\"parameters\":[],\"result\":{\"type\":\"java.lang.CharSequence\"}},\"set\":{\"selector\":\"setText\",\"parameters\":[{\"type\":\"java.lang.CharSequence\"}]}},\"args\":[[\"Change " + i + "\",\"java.lang.CharSequence\"]],\"change_type\": \"property\"}"
+            ));
+        }
+
+        // Warm up, so the reflection caches and the JIT are in place
+        for (final JSONObject change : changes) {
+            protocol.readEdit(change);
+        }
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            for (final JSONObject change : changes) {
+                protocol.readEdit(change);
+            }
+        }
+        final long parseMicros = (System.nanoTime() - start) / 1000 / RUNS;
+        final long parseBytes = (allocatedBytes() - allocated) / RUNS;
+
+        long firstNanos = 0;
+        long repeatNanos = 0;
+        allocated = allocatedBytes();
+        for (int i = 0; i < RUNS; i++) {
+            final ParsedEditCache cache = new ParsedEditCache(protocol);
+            start = System.nanoTime();
+            readUpdate(cache, changes);
+            firstNanos += System.nanoTime() - start;
+        }
+        final long firstBytes = (allocatedBytes() - allocated) / RUNS;
+
+        final ParsedEditCache cache = new ParsedEditCache(protocol);
+        readUpdate(cache, changes);
+        allocated = allocatedBytes();
+        for (int i = 0; i < RUNS; i++) {
+            start = System.nanoTime();
+            readUpdate(cache, changes);
+            repeatNanos += System.nanoTime() - start;
+        }
+        final long repeatBytes = (allocatedBytes() - allocated) / RUNS;
+
+        Log.i(LOGTAG, CHANGES + " variant changes: readEdit each update " + parseMicros + "us, " + parseBytes +
+                " bytes; ParsedEditCache first update " + firstNanos / 1000 / RUNS + "us, " + firstBytes +
+                " bytes; repeated update " + repeatNanos / 1000 / RUNS + "us, " + repeatBytes + " bytes");
+    }
+
+    /**
+     * Logs the time, memory and layout requests taken to apply 20 layout edits to one
+     * RelativeLayout, as separate LayoutUpdateVisitors against a single LayoutUpdateBatch.
+     */
+    public void testLayoutBatchBenchmark() {
+        final CountingRelativeLayout parent = new CountingRelativeLayout(getContext());
+        for (int id = 1; id <= LAYOUT_EDITS + 1; id++) {
+            final View child = new View(getContext());
+            child.setId(id);
+            parent.addView(child, new RelativeLayout.LayoutParams(100, 10));
+        }
+
+        final List<Pathfinder.PathElement> parentPath = new ArrayList<Pathfinder.PathElement>();
+        parentPath.add(new Pathfinder.PathElement(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, "android.widget.RelativeLayout", 0, -1, null, null));
+        final TestView.MockOnLayoutErrorListener errors = new TestView.MockOnLayoutErrorListener();
+        final List<ViewVisitor.LayoutUpdateVisitor> updates = new ArrayList<ViewVisitor.LayoutUpdateVisitor>();
+        for (int id = 2; id <= LAYOUT_EDITS + 1; id++) {
+            updates.add(new ViewVisitor.LayoutUpdateVisitor(parentPath, Collections.singletonList(
+                    new ViewVisitor.LayoutRule(id, RelativeLayout.BELOW, id - 1)), "below_" + id, errors));
+        }
+        final ViewVisitor batch = new ViewVisitor.LayoutUpdateBatch(updates);
+
+        // Warm up, so the JIT is in place
+        batch.visit(parent);
+        batch.cleanup();
+
+        long separateNanos = 0;
+        int separateRequests = 0;
+        long allocated = allocatedBytes();
+        for (int i = 0; i < RUNS; i++) {
+            layout(parent);
+            parent.layoutRequests = 0;
+            final long start = System.nanoTime();
+            for (final ViewVisitor update : updates) {
+                update.visit(parent);
+            }
+            separateNanos += System.nanoTime() - start;
+            separateRequests += parent.layoutRequests;
+            batch.cleanup();
+        }
+        final long separateBytes = (allocatedBytes() - allocated) / RUNS;
+
+        long batchNanos = 0;
+        int batchRequests = 0;
+        allocated = allocatedBytes();
+        for (int i = 0; i < RUNS; i++) {
+            layout(parent);
+            parent.layoutRequests = 0;
+            final long start = System.nanoTime();
+            batch.visit(parent);
+            batchNanos += System.nanoTime() - start;
+            batchRequests += parent.layoutRequests;
+            batch.cleanup();
+        }
+        final long batchBytes = (allocatedBytes() - allocated) / RUNS;
+
+        assertTrue(errors.errorList.isEmpty());
+        Log.i(LOGTAG, LAYOUT_EDITS + " layout edits on one parent: separate visitors " + separateNanos / 1000 / RUNS +
+                "us, " + separateBytes + " bytes, " + separateRequests / RUNS + " layout requests; batch " +
+                batchNanos / 1000 / RUNS + "us, " + batchBytes + " bytes, " + batchRequests / RUNS + " layout requests");
+    }
+
+    /**
+     * Logs the time and memory taken to snapshot a tree of about 3,000 views with a snapshot config
+     * covering the common View, TextView and ImageView properties, for a snapshot that meets every
+     * view class for the first time against later snapshots that reuse the per-class accessors.
+     */
+    @SuppressWarnings("deprecation")
+    public void testSnapshotBenchmark() throws JSONException, EditProtocol.BadInstructionsException, IOException {
+        final EditProtocol protocol = new EditProtocol(getContext(), new TestUtils.TestResourceIds(new HashMap<String, Integer>()),
+                new ImageStore(getContext(), "ViewCrawlerBenchmarkTest"), new TestView.MockOnLayoutErrorListener());
+        final JSONObject snapshotConfig = new JSONObject(
+            "{\"config\":{\"classes\":[" +
+                "{\"name\":\"android.view.View\",\"properties\":[" +
+                    "{\"name\":\"importantForAccessibility\",\"get\":{\"selector\":\"isImportantForAccessibility\",\"parameters\":[],\"result\":{\"type\":\"java.lang.Boolean\"}}}," +
+                    "{\"name\":\"clickable\",\"get\":{\"selector\":\"isClickable\",\"parameters\":[],\"result\":{\"type\":\"java.lang.Boolean\"}},\"set\":{\"selector\":\"setClickable\",\"parameters\":[{\"type\":\"java.lang.Boolean\"}]}}," +
+                    "{\"name\":\"alpha\",\"get\":{\"selector\":\"getAlpha\",\"parameters\":[],\"result\":{\"type\":\"java.lang.Float\"}},\"set\":{\"selector\":\"setAlpha\",\"parameters\":[{\"type\":\"java.lang.Float\"}]}}," +
+                    "{\"name\":\"hidden\",\"get\":{\"selector\":\"getVisibility\",\"parameters\":[],\"result\":{\"type\":\"java.lang.Integer\"}},\"set\":{\"selector\":\"setVisibility\",\"parameters\":[{\"type\":\"java.lang.Integer\"}]}}," +
+                    "{\"name\":\"background\",\"get\":{\"selector\":\"getBackground\",\"parameters\":[],\"result\":{\"type\":\"android.graphics.drawable.Drawable\"}},\"set\":{\"selector\":\"setBackgroundDrawable\",\"parameters\":[{\"type\":\"android.graphics.drawable.Drawable\"}]}}]}," +
+                "{\"name\":\"android.widget.TextView\",\"properties\":[" +
+                    "{\"name\":\"text\",\"get\":{\"selector\":\"getText\",\"parameters\":[],\"result\":{\"type\":\"java.lang.CharSequence\"}},\"set\":{\"selector\":\"setText\",\"parameters\":[{\"type\":\"java.lang.CharSequence\"}]}}," +
+                    "{\"name\":\"textColor\",\"get\":{\"selector\":\"getCurrentTextColor\",\"parameters\":[],\"result\":{\"type\":\"java.lang.Integer\"}},\"set\":{\"selector\":\"setTextColor\",\"parameters\":[{\"type\":\"java.lang.Integer\"}]}}," +
+                    "{\"name\":\"textSize\",\"get\":{\"selector\":\"getTextSize\",\"parameters\":[],\"result\":{\"type\":\"java.lang.Float\"}},\"set\":{\"selector\":\"setTextSize\",\"parameters\":[{\"type\":\"java.lang.Float\"}]}}," +
+                    "{\"name\":\"hint\",\"get\":{\"selector\":\"getHint\",\"parameters\":[],\"result\":{\"type\":\"java.lang.CharSequence\"}},\"set\":{\"selector\":\"setHint\",\"parameters\":[{\"type\":\"java.lang.CharSequence\"}]}}]}," +
+                "{\"name\":\"android.widget.ImageView\",\"properties\":[" +
+                    "{\"name\":\"image\",\"get\":{\"selector\":\"getDrawable\",\"parameters\":[],\"result\":{\"type\":\"android.graphics.drawable.Drawable\"}},\"set\":{\"selector\":\"setImageDrawable\",\"parameters\":[{\"type\":\"android.graphics.drawable.Drawable\"}]}}]}" +
+            "]}}"
+        );
+
+        // 600 rows of five views each, under one root
+        final LinearLayout root = new LinearLayout(getContext());
+        root.setOrientation(LinearLayout.VERTICAL);
+        for (int i = 0; i < SNAPSHOT_VIEWS / 5; i++) {
+            final LinearLayout row = new LinearLayout(getContext());
+            final TextView label = new TextView(getContext());
+            label.setText("Row " + i);
+            row.addView(label);
+            final ImageView icon = new ImageView(getContext());
+            icon.setImageDrawable(new ColorDrawable(Color.rgb(i % 256, 0, 0)));
+            row.addView(icon);
+            final Button button = new Button(getContext());
+            button.setText("Button " + i);
+            row.addView(button);
+            final View divider = new View(getContext());
+            divider.setBackgroundDrawable(new ColorDrawable(Color.GRAY));
+            row.addView(divider);
+            root.addView(row);
+        }
+        layout(root);
+
+        long firstNanos = 0;
+        long allocated = allocatedBytes();
+        for (int i = 0; i < RUNS; i++) {
+            final ViewSnapshot snapshot = protocol.readSnapshotConfig(snapshotConfig);
+            final long start = System.nanoTime();
+            snapshot.snapshotViewHierarchy(new JsonWriter(new StringWriter()), root);
+            firstNanos += System.nanoTime() - start;
+        }
+        final long firstBytes = (allocatedBytes() - allocated) / RUNS;
+
+        final ViewSnapshot snapshot = protocol.readSnapshotConfig(snapshotConfig);
+        snapshot.snapshotViewHierarchy(new JsonWriter(new StringWriter()), root);
+        long repeatNanos = 0;
+        allocated = allocatedBytes();
+        for (int i = 0; i < RUNS; i++) {
+            final long start = System.nanoTime();
+            snapshot.snapshotViewHierarchy(new JsonWriter(new StringWriter()), root);
+            repeatNanos += System.nanoTime() - start;
+        }
+        final long repeatBytes = (allocatedBytes() - allocated) / RUNS;
+
+        Log.i(LOGTAG, "Snapshot of " + (SNAPSHOT_VIEWS + 1) + " views: first snapshot " + firstNanos / 1000 / RUNS +
+                "us, " + firstBytes + " bytes; later snapshots " + repeatNanos / 1000 / RUNS + "us, " +
+                repeatBytes + " bytes");
+    }
+
+    private static void layout(View view) {
+        view.measure(View.MeasureSpec.makeMeasureSpec(1080, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(1920, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, 1080, 1920);
+    }
+
+    private static void readUpdate(ParsedEditCache cache, List<JSONObject> changes)
+            throws EditProtocol.BadInstructionsException, EditProtocol.CantGetEditAssetsException {
+        for (final JSONObject change : changes) {
+            cache.startReading(change);
+        }
+        for (final JSONObject change : changes) {
+            assertNotNull(cache.read(change).visitor);
+        }
+        cache.finishUpdate();
+    }
+
+    private static void scrollTo(ListView list, int position) {
+        list.setSelectionFromTop(position, 0);
+        layout(list);
+    }
+
+    /**
+     * Java heap bytes allocated by this process so far, or -1 where the platform can't say
+     */
+    @SuppressLint("NewApi")
+    @SuppressWarnings("deprecation")
+    private static long allocatedBytes() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            final String stat = Debug.getRuntimeStat("art.gc.bytes-allocated");
+            return null == stat ? -1 : Long.parseLong(stat);
+        } else {
+            Debug.startAllocCounting();
+            return Debug.getGlobalAllocSize();
+        }
+    }
+
+    private static class CountingRelativeLayout extends RelativeLayout {
+        public CountingRelativeLayout(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void requestLayout() {
+            layoutRequests++;
+            super.requestLayout();
+        }
+
+        public int layoutRequests;
+    }
+
+    private static final int RUNS = 5;
+    private static final int CHANGES = 200;
+    private static final int LAYOUT_EDITS = 20;
+    private static final int SNAPSHOT_VIEWS = 3000;
+    private static final int FRAMES = 100;
+    private static final int ROWS_PER_FRAME = 3;
+    private static final String LOGTAG = "MixpanelAPI.CrawlerBench";
+}
@@ -0,0 +1,66 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+import com.mixpanel.android.mpmetrics.TestUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+public class ViewCrawlerTest extends AndroidTestCase {
+
+    @Override
+    public void setUp() {
+        getContext().getSharedPreferences("mixpanel.viewcrawler.changes" + TOKEN, Context.MODE_PRIVATE).edit().clear().commit();
+        final MixpanelAPI mixpanel = new TestUtils.CleanMixpanelAPI(getContext(), new TestUtils.EmptyPreferences(getContext()), TOKEN);
+        mViewCrawler = new ViewCrawler(getContext(), TOKEN, mixpanel, TestUtils.newTweaks());
+        mViewCrawler.startUpdates();
+    }
+
+    public void testUnchangedVariantsSkipped() throws JSONException, InterruptedException {
+        final String variants = "[{\"id\":1,\"experiment_id\":2,\"actions\":[],\"tweaks\":[]}]";
+        mViewCrawler.setVariants(new JSONArray(variants));
+        mViewCrawler.setVariants(new JSONArray(variants));
+        awaitVariants(2);
+        assertEquals(1, mViewCrawler.getChangedDecideVariants());
+        assertEquals(1, mViewCrawler.getUnchangedDecideVariants());
+
+        // storeVariants persists variants ahead of setVariants, they must still be applied when they arrive
+        final JSONArray stored = new JSONArray("[{\"id\":3,\"experiment_id\":4,\"actions\":[],\"tweaks\":[]}]");
+        mViewCrawler.storeVariants(stored);
+        mViewCrawler.setVariants(stored);
+        awaitVariants(3);
+        assertEquals(2, mViewCrawler.getChangedDecideVariants());
+        assertEquals(1, mViewCrawler.getUnchangedDecideVariants());
+    }
+
+    public void testUnchangedEventBindingsSkipped() throws JSONException, InterruptedException {
+        final String bindings = "[{\"event_name\":\"click\",\"event_type\":\"click\",\"path\":[{\"view_class\":\"android.widget.Button\",\"index\":0}]}]";
+        mViewCrawler.setEventBindings(new JSONArray(bindings));
+        mViewCrawler.setEventBindings(new JSONArray(bindings));
+        mViewCrawler.setEventBindings(new JSONArray("[]"));
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mViewCrawler.getChangedDecideBindings() + mViewCrawler.getUnchangedDecideBindings() < 3) {
+            assertTrue("Timed out waiting for the event bindings", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(2, mViewCrawler.getChangedDecideBindings());
+        assertEquals(1, mViewCrawler.getUnchangedDecideBindings());
+    }
+
+    private void awaitVariants(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mViewCrawler.getChangedDecideVariants() + mViewCrawler.getUnchangedDecideVariants() < count) {
+            assertTrue("Timed out waiting for the variants", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private ViewCrawler mViewCrawler;
+
+    private static final String TOKEN = "ViewCrawlerTest";
+    private static final long TIMEOUT_MILLIS = 5000;
+}
@@ -24,7 +24,9 @@ import org.json.JSONObject;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -67,6 +69,18 @@ public class ViewSnapshotTest extends AndroidTestCase {
 
         final ResourceIds resourceIds = new TestUtils.TestResourceIds(idNamesToIds);
         mSnapshot = new ViewSnapshot(getContext(), props, resourceIds);
+        mSlowScreenshotSnapshot = new ViewSnapshot(getContext(), props, resourceIds) {
+            @Override
+            void takeScreenshot(RootViewInfo info) {
+                // Longer than the whole capture budget, as a PixelCopy timeout followed by createSnapshot can be
+                try {
+                    Thread.sleep(300);
+                } catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                info.screenshot = null;
+            }
+        };
 
         int width = View.MeasureSpec.makeMeasureSpec(768, View.MeasureSpec.EXACTLY);
         int height = View.MeasureSpec.makeMeasureSpec(1280, View.MeasureSpec.EXACTLY);
@@ -196,6 +210,77 @@ public class ViewSnapshotTest extends AndroidTestCase {
         assertEquals(adhoc3Desc.getInt("id"), TestView.BUTTON_ID);
     }
 
+    public void testHierarchyChanges() throws IOException, JSONException {
+        final Map<Integer, Long> firstHashes = new HashMap<Integer, Long>();
+        final JSONArray firstViews = requestSnapshotChanges(null, firstHashes);
+        assertEquals(mRootView.mViewsByHashcode.size(), firstViews.length());
+        assertEquals(mRootView.mViewsByHashcode.keySet(), firstHashes.keySet());
+
+        final Map<Integer, Long> unchangedHashes = new HashMap<Integer, Long>();
+        final JSONArray unchangedViews = requestSnapshotChanges(firstHashes, unchangedHashes);
+        assertEquals(0, unchangedViews.length());
+        assertEquals(firstHashes, unchangedHashes);
+
+        mRootView.mTextView2.setContentDescription("Changed description");
+        final JSONArray changedViews = requestSnapshotChanges(unchangedHashes, new HashMap<Integer, Long>());
+        assertEquals(1, changedViews.length());
+        assertEquals(mRootView.mTextView2.hashCode(), changedViews.getJSONObject(0).getInt("hashCode"));
+        assertEquals("Changed description", changedViews.getJSONObject(0).getString("contentDescription"));
+    }
+
+    public void testSlowScreenshotKeepsViews() {
+        final TestView otherRoot = new TestView(getContext());
+        final ViewSnapshot.RootViewInfo first = new ViewSnapshot.RootViewInfo("First", mRootView, null);
+        final ViewSnapshot.RootViewInfo second = new ViewSnapshot.RootViewInfo("Second", otherRoot, null);
+
+        mSlowScreenshotSnapshot.captureRootView(first);
+        mSlowScreenshotSnapshot.captureRootView(second);
+
+        assertFalse(first.truncated);
+        assertEquals(mRootView.mViewsByHashcode.size(), first.views.size());
+        assertFalse(second.truncated);
+        assertEquals(otherRoot.mViewsByHashcode.size(), second.views.size());
+    }
+
+    public void testRemovedViews() throws IOException, JSONException {
+        final Map<Integer, Long> previousHashes = new HashMap<Integer, Long>();
+        previousHashes.put(1, 10L);
+        previousHashes.put(2, 20L);
+        previousHashes.put(3, 30L);
+
+        {
+            final Map<Integer, Long> currentHashes = new HashMap<Integer, Long>();
+            currentHashes.put(1, 11L);
+            final StringWriter writer = new StringWriter();
+            ViewSnapshot.writeRemovedViews(writer, previousHashes, currentHashes, false);
+            final JSONArray removed = new JSONArray(writer.toString());
+            final Set<Integer> removedSet = new HashSet<Integer>();
+            for (int i = 0; i < removed.length(); i++) {
+                removedSet.add(removed.getInt(i));
+            }
+            assertEquals(new HashSet<Integer>(Arrays.asList(2, 3)), removedSet);
+            assertEquals(1, currentHashes.size());
+        }
+
+        {
+            // Views left out of a truncated capture aren't removed, and are compared again next time
+            final Map<Integer, Long> currentHashes = new HashMap<Integer, Long>();
+            currentHashes.put(1, 11L);
+            final StringWriter writer = new StringWriter();
+            ViewSnapshot.writeRemovedViews(writer, previousHashes, currentHashes, true);
+            assertEquals(0, new JSONArray(writer.toString()).length());
+            assertEquals(Long.valueOf(11L), currentHashes.get(1));
+            assertEquals(Long.valueOf(20L), currentHashes.get(2));
+            assertEquals(Long.valueOf(30L), currentHashes.get(3));
+        }
+
+        {
+            final StringWriter writer = new StringWriter();
+            ViewSnapshot.writeRemovedViews(writer, null, new HashMap<Integer, Long>(), false);
+            assertEquals("[]", writer.toString());
+        }
+    }
+
     private SparseArray<JSONObject> snapshotsByHashcode() throws IOException, JSONException {
         final JSONArray viewsJson = requestSnapshot();
         final Map<Integer, View> viewsByHashcode = new HashMap<Integer, View>(mRootView.mViewsByHashcode);
@@ -225,6 +310,15 @@ public class ViewSnapshotTest extends AndroidTestCase {
         return new JSONArray(new String(out.toByteArray()));
     }
 
+    @TargetApi(MPConfig.UI_FEATURES_MIN_API)
+    private JSONArray requestSnapshotChanges(Map<Integer, Long> previousHashes, Map<Integer, Long> currentHashes)
+            throws IOException, JSONException {
+        final StringWriter writer = new StringWriter();
+        mSnapshot.snapshotViewHierarchyChanges(writer, mRootView, previousHashes, currentHashes);
+        return new JSONArray(writer.toString());
+    }
+
     private ViewSnapshot mSnapshot;
+    private ViewSnapshot mSlowScreenshotSnapshot;
     private TestView mRootView;
 }
@@ -10,9 +10,12 @@ import android.os.Build;
 import android.test.AndroidTestCase;
 import android.view.View;
 import android.view.accessibility.AccessibilityEvent;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
 import android.widget.RelativeLayout;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -573,6 +576,90 @@ public class ViewVisitorTest extends AndroidTestCase {
         }
     }
 
+    public void testLayoutUpdateBatch() {
+        final List<ViewVisitor.LayoutUpdateVisitor> updates = new ArrayList<ViewVisitor.LayoutUpdateVisitor>();
+        // add ALIGN_PARENT_TOP to mRelativeLayoutButton1, should success
+        updates.add(new ViewVisitor.LayoutUpdateVisitor(mRelativeLayoutPath, Collections.singletonList(
+                new ViewVisitor.LayoutRule(TestView.RELATIVE_LAYOUT_BUTTON1_ID, RelativeLayout.ALIGN_PARENT_TOP, RelativeLayout.TRUE)),
+                "top", mLayoutErrorListener));
+        // add "BELOW mRelativeLayoutButton1" to mRelativeLayoutButton2, should success
+        updates.add(new ViewVisitor.LayoutUpdateVisitor(mRelativeLayoutPath, Collections.singletonList(
+                new ViewVisitor.LayoutRule(TestView.RELATIVE_LAYOUT_BUTTON2_ID, RelativeLayout.BELOW, TestView.RELATIVE_LAYOUT_BUTTON1_ID)),
+                "below", mLayoutErrorListener));
+        // add "BELOW mRelativeLayoutButton2" to mRelativeLayoutButton1, should fail on its own
+        updates.add(new ViewVisitor.LayoutUpdateVisitor(mRelativeLayoutPath, Collections.singletonList(
+                new ViewVisitor.LayoutRule(TestView.RELATIVE_LAYOUT_BUTTON1_ID, RelativeLayout.BELOW, TestView.RELATIVE_LAYOUT_BUTTON2_ID)),
+                "cycle", mLayoutErrorListener));
+
+        final ViewVisitor batch = new ViewVisitor.LayoutUpdateBatch(updates);
+        batch.visit(mRootView);
+
+        int[] rulesButton1 = ((RelativeLayout.LayoutParams) mRootView.mRelativeLayoutButton1.getLayoutParams()).getRules();
+        int[] rulesButton2 = ((RelativeLayout.LayoutParams) mRootView.mRelativeLayoutButton2.getLayoutParams()).getRules();
+        assertEquals(RelativeLayout.TRUE, rulesButton1[RelativeLayout.ALIGN_PARENT_TOP]);
+        assertEquals(TestView.NO_ANCHOR, rulesButton1[RelativeLayout.BELOW]);
+        assertEquals(TestView.RELATIVE_LAYOUT_BUTTON1_ID, rulesButton2[RelativeLayout.BELOW]);
+
+        assertEquals(1, mLayoutErrorListener.errorList.size());
+        assertEquals("cycle", mLayoutErrorListener.errorList.get(0).getName());
+        assertTrue(updates.get(0).isAlive());
+        assertTrue(updates.get(1).isAlive());
+        assertFalse(updates.get(2).isAlive());
+
+        // Visiting again applies the surviving updates without reporting the cycle twice
+        batch.visit(mRootView);
+        assertEquals(1, mLayoutErrorListener.errorList.size());
+
+        // Keeping an update leaves its rules in place through the cleanup
+        batch.cleanupExcept(Collections.<ViewVisitor>singleton(updates.get(1)));
+        rulesButton1 = ((RelativeLayout.LayoutParams) mRootView.mRelativeLayoutButton1.getLayoutParams()).getRules();
+        rulesButton2 = ((RelativeLayout.LayoutParams) mRootView.mRelativeLayoutButton2.getLayoutParams()).getRules();
+        assertEquals(TestView.NO_ANCHOR, rulesButton1[RelativeLayout.ALIGN_PARENT_TOP]);
+        assertEquals(TestView.RELATIVE_LAYOUT_BUTTON1_ID, rulesButton2[RelativeLayout.BELOW]);
+    }
+
+    public void testScrollingContainerVisitsOnlyNewChildren() {
+        final List<String> rows = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            rows.add("Row " + i);
+        }
+        final ListView list = new ListView(getContext());
+        list.setAdapter(new ArrayAdapter<String>(getContext(), android.R.layout.simple_list_item_1, rows));
+        layoutList(list, 200);
+        final int initialChildren = list.getChildCount();
+        assertTrue(initialChildren > 0);
+
+        final List<Pathfinder.PathElement> rowPath = new ArrayList<Pathfinder.PathElement>();
+        rowPath.add(new Pathfinder.PathElement(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, "android.widget.ListView", 0, -1, null, null));
+        rowPath.add(new Pathfinder.PathElement(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, "android.widget.TextView", -1, -1, null, null));
+
+        final CollectorEditor untracked = new CollectorEditor(rowPath);
+        untracked.visit(list);
+        assertEquals(initialChildren, untracked.collected.size());
+        assertFalse(untracked.visitAttachedChildren());
+
+        final CollectorEditor tracked = new CollectorEditor(rowPath);
+        tracked.trackScrollingContainers();
+        assertFalse(tracked.visitAttachedChildren());
+        tracked.visit(list);
+        assertEquals(initialChildren, tracked.collected.size());
+
+        assertTrue(tracked.visitAttachedChildren());
+        assertEquals(initialChildren, tracked.collected.size());
+
+        layoutList(list, 2000);
+        assertTrue(list.getChildCount() > initialChildren);
+        assertTrue(tracked.visitAttachedChildren());
+        assertEquals(list.getChildCount(), tracked.collected.size());
+        assertEquals(new HashSet<View>(tracked.collected).size(), tracked.collected.size());
+    }
+
+    private static void layoutList(ListView list, int height) {
+        list.measure(View.MeasureSpec.makeMeasureSpec(200, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(height, View.MeasureSpec.EXACTLY));
+        list.layout(0, 0, 200, height);
+    }
+
     private static class CollectorEditor extends ViewVisitor {
         public CollectorEditor(List<Pathfinder.PathElement> path) {
             super(path);
@@ -0,0 +1,81 @@
+package com.mixpanel.android.java_websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Direct buffers for outgoing frames, handed back once they've been written so the next frames
+ * of the same size can reuse them. A non-blocking channel writes straight from a direct buffer,
+ * where a heap buffer is first copied into a temporary direct one.
+ * Buffers come in power of two sizes, and at most maxpooledbytes are kept for reuse.
+ */
+public class ByteBufferPool {
+
+	private static final int MIN_SIZE_SHIFT = 4;
+	private static final int MAX_SIZE_SHIFT = 20;
+
+	private final ArrayDeque<?>[] free = new ArrayDeque<?>[ MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1 ];
+	private final long maxpooledbytes;
+	private long pooledbytes = 0;
+
+	public ByteBufferPool( long maxpooledbytes ) {
+		this.maxpooledbytes = maxpooledbytes;
+	}
+
+	/**
+	 * @return a direct buffer with position 0 and limit size, whatever its capacity
+	 */
+	public synchronized ByteBuffer acquire( int size ) {
+		int shift = sizeShift( size );
+		if( shift > MAX_SIZE_SHIFT )
+			return ByteBuffer.allocateDirect( size );
+
+		ByteBuffer buf = freeBuffers( shift ).pollLast();
+		if( buf == null ) {
+			buf = ByteBuffer.allocateDirect( 1 << shift );
+		} else {
+			pooledbytes -= buf.capacity();
+			buf.clear();
+		}
+		buf.limit( size );
+		return buf;
+	}
+
+	/**
+	 * Keeps buf for reuse if it could have come from acquire and there's room for it. buf must
+	 * not be used again by the caller. Heap buffers are ignored, so every buffer written to a
+	 * socket can be handed back.
+	 */
+	public synchronized void release( ByteBuffer buf ) {
+		if( buf == null || !buf.isDirect() )
+			return;
+		int capacity = buf.capacity();
+		if( Integer.bitCount( capacity ) != 1 )
+			return;
+		int shift = Integer.numberOfTrailingZeros( capacity );
+		if( shift < MIN_SIZE_SHIFT || shift > MAX_SIZE_SHIFT || pooledbytes + capacity > maxpooledbytes )
+			return;
+		freeBuffers( shift ).addLast( buf );
+		pooledbytes += capacity;
+	}
+
+	/** @return the bytes of the buffers waiting to be reused */
+	public synchronized long getPooledBytes() {
+		return pooledbytes;
+	}
+
+	@SuppressWarnings("unchecked")
+	private ArrayDeque<ByteBuffer> freeBuffers( int shift ) {
+		int index = shift - MIN_SIZE_SHIFT;
+		if( free[ index ] == null )
+			free[ index ] = new ArrayDeque<ByteBuffer>();
+		return (ArrayDeque<ByteBuffer>) free[ index ];
+	}
+
+	/** @return the smallest shift, at least MIN_SIZE_SHIFT, for which 1 << shift holds size */
+	private static int sizeShift( int size ) {
+		if( size <= 1 << MIN_SIZE_SHIFT )
+			return MIN_SIZE_SHIFT;
+		return 32 - Integer.numberOfLeadingZeros( size - 1 );
+	}
+}
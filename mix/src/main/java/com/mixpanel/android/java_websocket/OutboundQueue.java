@@ -0,0 +1,223 @@
+package com.mixpanel.android.java_websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of buffers waiting to be written to the socket that keeps count of the bytes it holds, so
+ * that senders can wait for the connection to drain instead of queueing without limit.
+ * Buffers are counted by their limit, since the writer may consume them before removing them.
+ * <p>
+ * Buffers added with addReplaceable form a group that the next call to replaceGroup drops, as
+ * long as the writer hasn't reached any of them, so that a slow connection only ever holds the
+ * latest of a series of messages that supersede each other.
+ * <p>
+ * Adding and taking buffers synchronize on the queue, so a group is never dropped while the
+ * writer is taking one of its buffers.
+ */
+public class OutboundQueue extends LinkedBlockingQueue<ByteBuffer> {
+
+	private static final long serialVersionUID = -6911466474470217227L;
+
+	private long queuedbytes = 0;
+	private long dequeuedbytes = 0;
+	private long replacedgroups = 0;
+	private long replacedbytes = 0;
+
+	private static final int MAX_GATHERED_BUFFERS = 64;
+	private final ByteBuffer[] gathered = new ByteBuffer[ MAX_GATHERED_BUFFERS ];
+
+	/** The buffers of the current group, emptied once the writer reaches the first of them */
+	private final List<ByteBuffer> group = new ArrayList<ByteBuffer>();
+	private boolean groupstarted = false;
+
+	@Override
+	public synchronized boolean offer( ByteBuffer buf ) {
+		boolean added = super.offer( buf );
+		if( added ) {
+			queuedbytes += buf.limit();
+			notifyAll();
+		}
+		return added;
+	}
+
+	@Override
+	public void put( ByteBuffer buf ) throws InterruptedException {
+		// The queue is unbounded, so there's never any room to wait for
+		offer( buf );
+	}
+
+	@Override
+	public synchronized ByteBuffer take() throws InterruptedException {
+		ByteBuffer buf;
+		while ( ( buf = super.poll() ) == null )
+			wait();
+		return dequeued( buf );
+	}
+
+	@Override
+	public synchronized ByteBuffer poll() {
+		return dequeued( super.poll() );
+	}
+
+	@Override
+	public synchronized ByteBuffer poll( long timeout, TimeUnit unit ) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos( timeout );
+		ByteBuffer buf;
+		while ( ( buf = super.poll() ) == null ) {
+			long remaining = deadline - System.nanoTime();
+			if( remaining <= 0 )
+				return null;
+			TimeUnit.NANOSECONDS.timedWait( this, remaining );
+		}
+		return dequeued( buf );
+	}
+
+	@Override
+	public synchronized void clear() {
+		super.clear();
+		queuedbytes = 0;
+		group.clear();
+		groupstarted = false;
+		notifyAll();
+	}
+
+	/**
+	 * Adds the buffers of one frame together, so that frames sent from different threads can't
+	 * be interleaved.
+	 */
+	public synchronized void addFrame( List<ByteBuffer> parts, boolean replaceable ) {
+		for( ByteBuffer buf : parts ) {
+			if( replaceable )
+				addReplaceable( buf );
+			else
+				add( buf );
+		}
+	}
+
+	/**
+	 * Writes as many queued buffers as channel takes, MAX_GATHERED_BUFFERS at a time with gathering
+	 * writes, and hands those written completely back to pool. Holds the queue while writing, which
+	 * never blocks on a non-blocking channel, so groups aren't replaced while being written.
+	 * @return whether everything queued was written
+	 */
+	public synchronized boolean writeTo( GatheringByteChannel channel, ByteBufferPool pool ) throws IOException {
+		while ( true ) {
+			int count = 0;
+			for( Iterator<ByteBuffer> it = iterator() ; it.hasNext() && count < MAX_GATHERED_BUFFERS ; count++ ) {
+				gathered[ count ] = it.next();
+			}
+			if( count == 0 )
+				return true;
+
+			channel.write( gathered, 0, count );
+			for( int i = 0 ; i < count ; i++ ) {
+				ByteBuffer buf = gathered[ i ];
+				gathered[ i ] = null;
+				if( buf.hasRemaining() ) {
+					// The channel is full, the rest waits for the next OP_WRITE
+					for( int rest = i + 1 ; rest < count ; rest++ )
+						gathered[ rest ] = null;
+					return false;
+				}
+				pool.release( poll() );
+			}
+		}
+	}
+
+	/**
+	 * Adds buf to the queue as part of the current group.
+	 */
+	public synchronized void addReplaceable( ByteBuffer buf ) {
+		add( buf );
+		if( !groupstarted )
+			group.add( buf );
+	}
+
+	/**
+	 * Drops the buffers of the current group, unless the writer already reached one of them,
+	 * and starts a new one. Only whole groups are dropped, so a group should hold whole messages.
+	 * The buffer at the head of the queue counts as reached, since a writer may peek at it and
+	 * write part of it before taking it.
+	 * @return the bytes dropped
+	 */
+	public synchronized long replaceGroup() {
+		long dropped = 0;
+		if( !groupstarted && !group.isEmpty() && super.peek() != group.get( 0 ) ) {
+			Set<ByteBuffer> replaced = Collections.newSetFromMap( new IdentityHashMap<ByteBuffer,Boolean>() );
+			replaced.addAll( group );
+			// By identity, since ByteBuffer.equals compares contents
+			for( Iterator<ByteBuffer> it = iterator() ; it.hasNext() ; ) {
+				ByteBuffer buf = it.next();
+				if( replaced.contains( buf ) ) {
+					it.remove();
+					dropped += buf.limit();
+				}
+			}
+			queuedbytes = Math.max( 0, queuedbytes - dropped );
+			replacedgroups++;
+			replacedbytes += dropped;
+			notifyAll();
+		}
+		group.clear();
+		groupstarted = false;
+		return dropped;
+	}
+
+	/** @return the bytes currently waiting to be written */
+	public synchronized long getQueuedBytes() {
+		return queuedbytes;
+	}
+
+	/** @return the bytes taken off the queue for writing since it was created */
+	public synchronized long getDequeuedBytes() {
+		return dequeuedbytes;
+	}
+
+	/** @return the number of groups replaceGroup dropped since the queue was created */
+	public synchronized long getReplacedGroups() {
+		return replacedgroups;
+	}
+
+	/** @return the bytes of the groups replaceGroup dropped since the queue was created */
+	public synchronized long getReplacedBytes() {
+		return replacedbytes;
+	}
+
+	/**
+	 * Waits until at most maxbytes are queued, or for timeout millis.
+	 * @return whether the queue is now at or below maxbytes
+	 */
+	public synchronized boolean awaitBytesBelow( long maxbytes, long timeout ) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while ( queuedbytes > maxbytes && remaining > 0 ) {
+			wait( remaining );
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return queuedbytes <= maxbytes;
+	}
+
+	private ByteBuffer dequeued( ByteBuffer buf ) {
+		if( buf != null ) {
+			// clear() may have already forgotten this buffer
+			queuedbytes = Math.max( 0, queuedbytes - buf.limit() );
+			dequeuedbytes += buf.limit();
+			if( !groupstarted && !group.isEmpty() && group.get( 0 ) == buf ) {
+				groupstarted = true;
+				group.clear();
+			}
+			notifyAll();
+		}
+		return buf;
+	}
+}
@@ -3,6 +3,7 @@ package com.mixpanel.android.java_websocket;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
 
 import com.mixpanel.android.java_websocket.WebSocket.Role;
@@ -49,13 +50,17 @@ public class SocketChannelIOHelper {
 					c.writeMore();
 				}
 			}
+		} else if( sockchannel instanceof GatheringByteChannel ) {
+			// Frame headers, payloads and the frames after them go out in as few writes as possible
+			if( !ws.outQueue.writeTo( (GatheringByteChannel) sockchannel, ws.bufferpool ) )
+				return false;
 		} else {
 			do {// FIXME writing as much as possible is unfair!!
 				/*int written = */sockchannel.write( buffer );
 				if( buffer.remaining() > 0 ) {
 					return false;
 				} else {
-					ws.outQueue.poll(); // Buffer finished. Remove it.
+					ws.bufferpool.release( ws.outQueue.poll() ); // Buffer finished. Remove it.
 					buffer = ws.outQueue.peek();
 				}
 			} while ( buffer != null );
@@ -7,10 +7,12 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectionKey;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -65,7 +67,11 @@ public class WebSocketImpl implements WebSocket {
 	/**
 	 * Queue of buffers that need to be sent to the client.
 	 */
-	public final BlockingQueue<ByteBuffer> outQueue;
+	public final OutboundQueue outQueue;
+	/**
+	 * Direct buffers for frames written to {@link #channel}, reused once written.
+	 */
+	public final ByteBufferPool bufferpool = new ByteBufferPool( MAX_POOLED_BYTES );
 	/**
 	 * Queue of buffers that need to be processed
 	 */
@@ -101,6 +107,19 @@ public class WebSocketImpl implements WebSocket {
 	
 	private String resourceDescriptor = null;
 
+	/** Data frames wait while more than this many bytes are queued, control frames never wait */
+	private volatile long maxOutboundBytes = DEFAULT_MAX_OUTBOUND_BYTES;
+
+	/** When true data frames are sent as part of the outbound queue's replaceable group */
+	private volatile boolean replaceableframes = false;
+	private volatile long skippedgroups = 0;
+
+	public static final long DEFAULT_MAX_OUTBOUND_BYTES = 1024 * 1024;
+	private static final long MAX_POOLED_BYTES = 256 * 1024;
+	private static final long OUTBOUND_WAIT_MILLIS = 250;
+	/** The longest a sender is held back for, after which its frames are queued anyway */
+	private static final long MAX_OUTBOUND_WAIT_MILLIS = 2000;
+
 	/**
 	 * crates a websocket with server role
 	 */
@@ -124,7 +143,7 @@ public class WebSocketImpl implements WebSocket {
 	public WebSocketImpl( WebSocketListener listener , Draft draft ) {
 		if( listener == null || ( draft == null && role == Role.SERVER ) )// socket can be null because we want do be able to create the object without already having a bound channel
 			throw new IllegalArgumentException( "parameters must not be null" );
-		this.outQueue = new LinkedBlockingQueue<ByteBuffer>();
+		this.outQueue = new OutboundQueue();
 		inQueue = new LinkedBlockingQueue<ByteBuffer>();
 		this.wsl = listener;
 		this.role = Role.CLIENT;
@@ -582,7 +601,92 @@ public class WebSocketImpl implements WebSocket {
 	public void sendFrame( Framedata framedata ) {
 		if( DEBUG )
 			System.out.println( "send frame: " + framedata );
-		write( draft.createBinaryFrame( framedata ) );
+		Opcode opcode = framedata.getOpcode();
+		boolean replaceable = false;
+		if( opcode == Opcode.TEXT || opcode == Opcode.BINARY || opcode == Opcode.CONTINUOUS ) {
+			// beginReplaceableFrames already waited for room for the whole group
+			replaceable = replaceableframes;
+			if( !replaceable )
+				awaitOutboundSpace();
+		}
+		// Only a channel can take the direct buffers of a split frame, streams need an array
+		if( channel instanceof GatheringByteChannel )
+			outQueue.addFrame( draft.createBinaryFrameParts( framedata, bufferpool ), replaceable );
+		else
+			outQueue.addFrame( Collections.singletonList( draft.createBinaryFrame( framedata ) ), replaceable );
+		wsl.onWriteDemand( this );
+	}
+
+	/**
+	 * Starts a group of data frames, like a snapshot, that is superseded by the next group:
+	 * if the writer hasn't reached any frame of the previous group yet, the previous group is
+	 * dropped from the queue. Otherwise waits, like any data frame, for the queue to get under its
+	 * limit, and if it doesn't the new group should be skipped by the caller.
+	 * Frames of the group, which must be whole messages, are queued without waiting until
+	 * {@link #endReplaceableFrames()}.
+	 * @return false if the queue is still over its limit and nothing should be sent
+	 */
+	public boolean beginReplaceableFrames() {
+		outQueue.replaceGroup();
+		if( !awaitOutboundSpace() ) {
+			skippedgroups++;
+			return false;
+		}
+		replaceableframes = true;
+		return true;
+	}
+
+	public void endReplaceableFrames() {
+		replaceableframes = false;
+	}
+
+	/** @return the groups of replaceable frames dropped from the queue by a newer group */
+	public long getReplacedFrameGroups() {
+		return outQueue.getReplacedGroups();
+	}
+
+	/** @return the groups of replaceable frames that were skipped because the queue was full */
+	public long getSkippedFrameGroups() {
+		return skippedgroups;
+	}
+
+	/**
+	 * Holds the sending thread back while the outbound queue is over its limit, for at most
+	 * MAX_OUTBOUND_WAIT_MILLIS. Gives up early once the connection is no longer open, since
+	 * nothing will drain the queue after that.
+	 * @return whether the queue is under its limit
+	 */
+	private boolean awaitOutboundSpace() {
+		long deadline = System.currentTimeMillis() + MAX_OUTBOUND_WAIT_MILLIS;
+		try {
+			while ( !outQueue.awaitBytesBelow( maxOutboundBytes, OUTBOUND_WAIT_MILLIS ) ) {
+				if( !isOpen() || System.currentTimeMillis() >= deadline )
+					return false;
+			}
+			return true;
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	public void setMaxOutboundBytes( long maxbytes ) {
+		maxOutboundBytes = maxbytes;
+	}
+
+	/** @return the number of buffers waiting to be written */
+	public int getOutboundQueueDepth() {
+		return outQueue.size();
+	}
+
+	/** @return the bytes waiting to be written */
+	public long getOutboundQueuedBytes() {
+		return outQueue.getQueuedBytes();
+	}
+
+	/** @return the bytes handed to the socket since this websocket was created */
+	public long getOutboundBytesWritten() {
+		return outQueue.getDequeuedBytes();
 	}
 
 	@Override
@@ -2,6 +2,7 @@ package com.mixpanel.android.java_websocket.client;
 
 import android.annotation.SuppressLint;
 
+import com.mixpanel.android.java_websocket.SocketChannelIOHelper;
 import com.mixpanel.android.java_websocket.WebSocket;
 import com.mixpanel.android.java_websocket.WebSocketAdapter;
 import com.mixpanel.android.java_websocket.WebSocketImpl;
@@ -24,6 +25,9 @@ import java.net.Socket;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
@@ -62,6 +66,11 @@ public abstract class WebSocketClient extends WebSocketAdapter
 
 	private int connectTimeout = 0;
 
+	/** When true, one thread reads and writes a non-blocking channel instead of a read and a write thread */
+	private boolean useSelector = false;
+
+	private volatile Selector selector;
+
 	/** This open a websocket connection as specified by rfc6455 */
 	public WebSocketClient( URI serverURI ) {
 		this( serverURI, new Draft_17() );
@@ -159,7 +168,20 @@ public abstract class WebSocketClient extends WebSocketAdapter
 		engine.send( data );
 	}
 
+	/**
+	 * Serve the connection from a single thread with a non-blocking {@link SocketChannel}.<br>
+	 * This method must be called before <code>connect</code>, and can't be combined with
+	 * {@link #setSocket(Socket)} or a proxy, since the channel owns its socket.
+	 */
+	public void setUseSelector( boolean useSelector ) {
+		this.useSelector = useSelector;
+	}
+
 	public void run() {
+		if( useSelector ) {
+			runSelector();
+			return;
+		}
 		try {
 			if( socket == null ) {
 				socket = new Socket( proxy );
@@ -198,6 +220,73 @@ public abstract class WebSocketClient extends WebSocketAdapter
 		}
 		assert ( socket.isClosed() );
 	}
+
+	private void runSelector() {
+		SocketChannel channel = null;
+		SelectionKey key;
+		try {
+			if( socket != null || proxy != Proxy.NO_PROXY )
+				throw new IllegalStateException( "a selector client opens its own socket" );
+			channel = SocketChannel.open();
+			socket = channel.socket();
+			socket.connect( new InetSocketAddress( uri.getHost(), getPort() ), connectTimeout );
+			channel.configureBlocking( false );
+			selector = Selector.open();
+			key = channel.register( selector, SelectionKey.OP_READ );
+			engine.channel = channel;
+			engine.key = key;
+
+			sendHandshake();
+		} catch ( /*IOException | SecurityException | UnresolvedAddressException | InvalidHandshakeException | ClosedByInterruptException | SocketTimeoutException */Exception e ) {
+			onWebsocketError( engine, e );
+			engine.closeConnection( CloseFrame.NEVER_CONNECTED, e.getMessage() );
+			closeSelector();
+			return;
+		}
+
+		// decode() keeps no reference to the buffer, so one is enough for the whole connection
+		ByteBuffer readbuffer = ByteBuffer.allocate( WebSocketImpl.RCVBUF );
+
+		try {
+			while ( !isClosed() && key.isValid() ) {
+				key.interestOps( engine.hasBufferedData() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ );
+				selector.select();
+				if( key.isValid() && key.isReadable() && SocketChannelIOHelper.read( readbuffer, engine, channel ) ) {
+					engine.decode( readbuffer );
+				}
+				if( key.isValid() && key.isWritable() ) {
+					SocketChannelIOHelper.batch( engine, channel );
+				}
+			}
+			engine.eot();
+		} catch ( IOException e ) {
+			engine.eot();
+		} catch ( RuntimeException e ) {
+			// this catch case covers internal errors only and indicates a bug in this websocket implementation
+			onError( e );
+			engine.closeConnection( CloseFrame.ABNORMAL_CLOSE, e.getMessage() );
+		} finally {
+			closeSelector();
+		}
+	}
+
+	/** @return whether the selector of {@link #setUseSelector(boolean)} is still open, for tests */
+	boolean isSelectorOpen() {
+		Selector s = selector;
+		return s != null && s.isOpen();
+	}
+
+	private void closeSelector() {
+		Selector s = selector;
+		if( s != null ) {
+			try {
+				s.close();
+			} catch ( IOException e ) {
+				onWebsocketError( engine, e );
+			}
+		}
+	}
+
 	private int getPort() {
 		int port = uri.getPort();
 		if( port == -1 ) {
@@ -299,7 +388,10 @@ public abstract class WebSocketClient extends WebSocketAdapter
 
 	@Override
 	public final void onWriteDemand( WebSocket conn ) {
-		// nothing to do
+		// The write thread is already waiting on outQueue, a selector has to be woken to watch for OP_WRITE
+		Selector s = selector;
+		if( s != null )
+			s.wakeup();
 	}
 
 	@Override
@@ -417,6 +509,44 @@ public abstract class WebSocketClient extends WebSocketAdapter
 		return engine.hasBufferedData();
 	}
 
+	/**
+	 * Sends of data frames block, for a bounded time, while more than maxbytes are waiting to be written.
+	 */
+	public void setMaxOutboundBytes( long maxbytes ) {
+		engine.setMaxOutboundBytes( maxbytes );
+	}
+
+	public int getOutboundQueueDepth() {
+		return engine.getOutboundQueueDepth();
+	}
+
+	public long getOutboundQueuedBytes() {
+		return engine.getOutboundQueuedBytes();
+	}
+
+	public long getOutboundBytesWritten() {
+		return engine.getOutboundBytesWritten();
+	}
+
+	/**
+	 * @see WebSocketImpl#beginReplaceableFrames()
+	 */
+	public boolean beginReplaceableFrames() {
+		return engine.beginReplaceableFrames();
+	}
+
+	public void endReplaceableFrames() {
+		engine.endReplaceableFrames();
+	}
+
+	public long getReplacedFrameGroups() {
+		return engine.getReplacedFrameGroups();
+	}
+
+	public long getSkippedFrameGroups() {
+		return engine.getSkippedFrameGroups();
+	}
+
 	@Override
 	public void close( int code ) {
 		engine.close();
@@ -6,6 +6,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 
+import com.mixpanel.android.java_websocket.ByteBufferPool;
 import com.mixpanel.android.java_websocket.WebSocket.Role;
 import com.mixpanel.android.java_websocket.exceptions.IncompleteHandshakeException;
 import com.mixpanel.android.java_websocket.exceptions.InvalidDataException;
@@ -124,6 +125,14 @@ public abstract class Draft {
 
 	public abstract ByteBuffer createBinaryFrame( Framedata framedata ); // TODO Allow to send data on the base of an Iterator or InputStream
 
+	/**
+	 * Like {@link #createBinaryFrame(Framedata)}, but the frame may be split into several buffers,
+	 * taken from pool, for a channel that writes them together with a gathering write.
+	 */
+	public List<ByteBuffer> createBinaryFrameParts( Framedata framedata, ByteBufferPool pool ) {
+		return Collections.singletonList( createBinaryFrame( framedata ) );
+	}
+
 	public abstract List<Framedata> createFrames( ByteBuffer binary, boolean mask );
 
 	public abstract List<Framedata> createFrames( String text, boolean mask );
@@ -1,15 +1,16 @@
 package com.mixpanel.android.java_websocket.drafts;
 import android.annotation.SuppressLint;
 
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 
+import com.mixpanel.android.java_websocket.ByteBufferPool;
 import com.mixpanel.android.java_websocket.WebSocket.Role;
 import com.mixpanel.android.java_websocket.exceptions.InvalidDataException;
 import com.mixpanel.android.java_websocket.exceptions.InvalidFrameException;
@@ -95,40 +96,95 @@ public class Draft_10 extends Draft {
 	public ByteBuffer createBinaryFrame( Framedata framedata ) {
 		ByteBuffer mes = framedata.getPayloadData();
 		boolean mask = role == Role.CLIENT; // framedata.getTransfereMasked();
-		int sizebytes = mes.remaining() <= 125 ? 1 : mes.remaining() <= 65535 ? 2 : 8;
-		ByteBuffer buf = ByteBuffer.allocate( 1 + ( sizebytes > 1 ? sizebytes + 1 : sizebytes ) + ( mask ? 4 : 0 ) + mes.remaining() );
+		int payloadlength = mes.remaining();
+		// Header and payload share one buffer, so the frame goes out in a single write
+		ByteBuffer buf = ByteBuffer.allocate( headerLength( payloadlength, mask ) + payloadlength );
+		int maskkey = putHeader( buf, framedata, payloadlength, mask );
+		int payloadstart = buf.position();
+		buf.put( mes );
+		if( mask )
+			mask( buf, payloadstart, buf.position(), maskkey );
+		// translateFrame ( buf.array () , buf.array ().length );
+		assert ( buf.remaining() == 0 ) : buf.remaining();
+		buf.flip();
+
+		return buf;
+	}
+
+	/**
+	 * Puts the header and the payload in separate direct buffers from pool, so the payload is
+	 * never copied again on its way to the socket, and both are written with one gathering write.
+	 */
+	@Override
+	public List<ByteBuffer> createBinaryFrameParts( Framedata framedata, ByteBufferPool pool ) {
+		ByteBuffer mes = framedata.getPayloadData();
+		boolean mask = role == Role.CLIENT;
+		int payloadlength = mes.remaining();
+		ByteBuffer header = pool.acquire( headerLength( payloadlength, mask ) );
+		int maskkey = putHeader( header, framedata, payloadlength, mask );
+		header.flip();
+		if( payloadlength == 0 )
+			return Collections.singletonList( header );
+
+		ByteBuffer payload = pool.acquire( payloadlength );
+		payload.put( mes );
+		if( mask )
+			mask( payload, 0, payloadlength, maskkey );
+		payload.flip();
+		return Arrays.asList( header, payload );
+	}
+
+	private static int headerLength( int payloadlength, boolean mask ) {
+		int sizebytes = payloadlength <= 125 ? 1 : payloadlength <= 65535 ? 2 : 8;
+		return 1 + ( sizebytes > 1 ? sizebytes + 1 : sizebytes ) + ( mask ? 4 : 0 );
+	}
+
+	/**
+	 * Puts the opcode, the payload length and, when masking, a new mask key into buf.
+	 * @return the mask key, or 0 when not masking
+	 */
+	private int putHeader( ByteBuffer buf, Framedata framedata, int payloadlength, boolean mask ) {
+		int sizebytes = payloadlength <= 125 ? 1 : payloadlength <= 65535 ? 2 : 8;
 		byte optcode = fromOpcode( framedata.getOpcode() );
 		byte one = (byte) ( framedata.isFin() ? -128 : 0 );
 		one |= optcode;
 		buf.put( one );
-		byte[] payloadlengthbytes = toByteArray( mes.remaining(), sizebytes );
-		assert ( payloadlengthbytes.length == sizebytes );
 
 		if( sizebytes == 1 ) {
-			buf.put( (byte) ( (byte) payloadlengthbytes[ 0 ] | ( mask ? (byte) -128 : 0 ) ) );
+			buf.put( (byte) ( (byte) payloadlength | ( mask ? (byte) -128 : 0 ) ) );
 		} else if( sizebytes == 2 ) {
 			buf.put( (byte) ( (byte) 126 | ( mask ? (byte) -128 : 0 ) ) );
-			buf.put( payloadlengthbytes );
+			buf.putShort( (short) payloadlength );
 		} else if( sizebytes == 8 ) {
 			buf.put( (byte) ( (byte) 127 | ( mask ? (byte) -128 : 0 ) ) );
-			buf.put( payloadlengthbytes );
+			buf.putLong( payloadlength );
 		} else
 			throw new RuntimeException( "Size representation not supported/specified" );
 
-		if( mask ) {
-			ByteBuffer maskkey = ByteBuffer.allocate( 4 );
-			maskkey.putInt( reuseableRandom.nextInt() );
-			buf.put( maskkey.array() );
-			for( int i = 0 ; mes.hasRemaining() ; i++ ) {
-				buf.put( (byte) ( mes.get() ^ maskkey.get( i % 4 ) ) );
-			}
-		} else
-			buf.put( mes );
-		// translateFrame ( buf.array () , buf.array ().length );
-		assert ( buf.remaining() == 0 ) : buf.remaining();
-		buf.flip();
+		if( !mask )
+			return 0;
+		int maskkey = reuseableRandom.nextInt();
+		buf.putInt( maskkey );
+		return maskkey;
+	}
 
-		return buf;
+	/**
+	 * XORs the bytes of buf between start and end with maskkey in place, eight bytes at a time
+	 * where possible. buf must be big endian, which is the order of the key's bytes on the wire.
+	 */
+	private static void mask( ByteBuffer buf, int start, int end, int maskkey ) {
+		long longmask = ( (long) maskkey << 32 ) | ( maskkey & 0xFFFFFFFFL );
+		int i = start;
+		for( ; i + 8 <= end ; i += 8 ) {
+			buf.putLong( i, buf.getLong( i ) ^ longmask );
+		}
+		if( i + 4 <= end ) {
+			buf.putInt( i, buf.getInt( i ) ^ maskkey );
+			i += 4;
+		}
+		for( int shift = 24 ; i < end ; i++, shift -= 8 ) {
+			buf.put( i, (byte) ( buf.get( i ) ^ ( maskkey >>> shift ) ) );
+		}
 	}
 
 	@Override
@@ -212,15 +268,6 @@ public class Draft_10 extends Draft {
 		return response;
 	}
 
-	private byte[] toByteArray( long val, int bytecount ) {
-		byte[] buffer = new byte[ bytecount ];
-		int highest = 8 * bytecount - 8;
-		for( int i = 0 ; i < bytecount ; i++ ) {
-			buffer[ i ] = (byte) ( val >>> ( highest - 8 * i ) );
-		}
-		return buffer;
-	}
-
 	private Opcode toOpcode( byte opcode ) throws InvalidFrameException {
 		switch ( opcode ) {
 			case 0:
@@ -329,20 +376,13 @@ public class Draft_10 extends Draft {
 				realpacketsize += 2; // additional length bytes
 				if( maxpacketsize < realpacketsize )
 					throw new IncompleteException( realpacketsize );
-				byte[] sizebytes = new byte[ 3 ];
-				sizebytes[ 1 ] = buffer.get( /*1 + 1*/);
-				sizebytes[ 2 ] = buffer.get( /*1 + 2*/);
-				payloadlength = new BigInteger( sizebytes ).intValue();
+				payloadlength = buffer.getShort( /*1 + 1*/) & 0xFFFF;
 			} else {
 				realpacketsize += 8; // additional length bytes
 				if( maxpacketsize < realpacketsize )
 					throw new IncompleteException( realpacketsize );
-				byte[] bytes = new byte[ 8 ];
-				for( int i = 0 ; i < 8 ; i++ ) {
-					bytes[ i ] = buffer.get( /*1 + i*/);
-				}
-				long length = new BigInteger( bytes ).longValue();
-				if( length > Integer.MAX_VALUE ) {
+				long length = buffer.getLong( /*1 + 1*/);
+				if( length < 0 || length > Integer.MAX_VALUE ) {
 					throw new LimitExedeedException( "Payloadsize is to big..." );
 				} else {
 					payloadlength = (int) length;
@@ -359,15 +399,11 @@ public class Draft_10 extends Draft {
 			throw new IncompleteException( realpacketsize );
 
 		ByteBuffer payload = ByteBuffer.allocate( checkAlloc( payloadlength ) );
+		int maskkey = MASK ? buffer.getInt() : 0;
+		payload.put( buffer.array(), buffer.arrayOffset() + buffer.position(), payload.limit() );
+		buffer.position( buffer.position() + payload.limit() );
 		if( MASK ) {
-			byte[] maskskey = new byte[ 4 ];
-			buffer.get( maskskey );
-			for( int i = 0 ; i < payloadlength ; i++ ) {
-				payload.put( (byte) ( (byte) buffer.get( /*payloadstart + i*/) ^ (byte) maskskey[ i % 4 ] ) );
-			}
-		} else {
-			payload.put( buffer.array(), buffer.position(), payload.limit() );
-			buffer.position( buffer.position() + payload.limit() );
+			mask( payload, 0, payloadlength, maskkey );
 		}
 
 		FrameBuilder frame;
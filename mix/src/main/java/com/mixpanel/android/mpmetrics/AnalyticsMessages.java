@@ -15,7 +15,7 @@ import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.gcm.GoogleCloudMessaging;
 import com.google.android.gms.iid.InstanceID;
 import com.mixpanel.android.util.Base64Coder;
-import com.mixpanel.android.util.HttpService;
+import com.mixpanel.android.util.DefaultHttpService;
 import com.mixpanel.android.util.MPLog;
 import com.mixpanel.android.util.RemoteService;
 
@@ -26,9 +26,13 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -171,7 +175,7 @@ import javax.net.ssl.SSLSocketFactory;
      * @return
      */
     protected RemoteService getPoster() {
-        return new HttpService();
+        return new DefaultHttpService();
     }
 
     ////////////////////////////////////////////////////
@@ -335,6 +339,7 @@ import javax.net.ssl.SSLSocketFactory;
                 // 系统信息获取的封装
                 mSystemInformation = SystemInformation.getInstance(mContext);
                 mDecideChecker = createDecideChecker();
+                mPendingDecideChecks = new LinkedHashSet<String>();
                 // 刷新间隔间隔
                 mFlushInterval = mConfig.getFlushInterval();
             }
@@ -417,12 +422,8 @@ import javax.net.ssl.SSLSocketFactory;
                         boolean shouldCheckDecide = msg.arg1 == 1 ? true : false;
 
                         sendAllData(mDbAdapter, token);
-                        if (shouldCheckDecide && SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
-                            try {
-                                mDecideChecker.runDecideCheck(token, getPoster());
-                            } catch (RemoteService.ServiceUnavailableException e) {
-                                mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
-                            }
+                        if (shouldCheckDecide) {
+                            requestDecideCheck(token);
                         }
                     } else if (msg.what == INSTALL_DECIDE_CHECK) {
                         logAboutMessageToMixpanel("Installing a check for in-app notifications");
@@ -430,17 +431,9 @@ import javax.net.ssl.SSLSocketFactory;
                         // 往 mChecks 中添加DecideMessages
                         // key= token , obj = DecideMessages
                         mDecideChecker.addDecideCheck(check);
-                        //超过重试的时间
-                        if (SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
-                            try {
-                                mDecideChecker.runDecideCheck(
-                                        check.getToken(),
-                                        getPoster());
-                            } catch (RemoteService.ServiceUnavailableException e) {
-                                mDecideRetryAfter = SystemClock.elapsedRealtime() +
-                                        e.getRetryAfter() * 1000;
-                            }
-                        }
+                        requestDecideCheck(check.getToken());
+                    } else if (msg.what == RUN_DECIDE_CHECKS) {
+                        runPendingDecideChecks();
                     } else if (msg.what == REGISTER_FOR_GCM) {
                         final String senderId = (String) msg.obj;
                         runGCMRegistration(senderId);
@@ -484,13 +477,7 @@ import javax.net.ssl.SSLSocketFactory;
                         //更新并记录刷新时间
                         updateFlushFrequency();
                         sendAllData(mDbAdapter, token);
-                        if (SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
-                            try {
-                                mDecideChecker.runDecideCheck(token, getPoster());
-                            } catch (RemoteService.ServiceUnavailableException e) {
-                                mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
-                            }
-                        }
+                        requestDecideCheck(token);
                     } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, token)) {
                         // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
                         // of delayed flushes already enqueued from inside of this thread.
@@ -586,6 +573,34 @@ import javax.net.ssl.SSLSocketFactory;
                         mConfig.getPeopleEndpoint());
             }
 
+            /**
+             * Queues a decide check for token. Checks asked for within DECIDE_CHECK_WINDOW_MILLIS
+             * of the first run together, and a token asked for more than once in that time is
+             * checked once.
+             */
+            private void requestDecideCheck(String token) {
+                mPendingDecideChecks.add(token);
+                if (!hasMessages(RUN_DECIDE_CHECKS)) {
+                    sendEmptyMessageDelayed(RUN_DECIDE_CHECKS, DECIDE_CHECK_WINDOW_MILLIS);
+                }
+            }
+
+            private void runPendingDecideChecks() {
+                final List<String> tokens = new ArrayList<String>(mPendingDecideChecks);
+                mPendingDecideChecks.clear();
+                //超过重试的时间
+                if (tokens.isEmpty() || SystemClock.elapsedRealtime() < mDecideRetryAfter) {
+                    return;
+                }
+
+                logAboutMessageToMixpanel("Checking decide for " + tokens.size() + " project(s)");
+                try {
+                    mDecideChecker.runDecideChecks(tokens, getPoster());
+                } catch (RemoteService.ServiceUnavailableException e) {
+                    mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
+                }
+            }
+
             private void sendData(MPDbAdapter dbAdapter, String token, MPDbAdapter.Table table, String url) {
                 final RemoteService poster = getPoster();
                 // 获取指定token对应的 DecideMessage
@@ -803,6 +818,10 @@ import javax.net.ssl.SSLSocketFactory;
              * 会保存 key= token , obj = DecideMessages
              */
             private final DecideChecker mDecideChecker;
+            /**
+             * tokens waiting for the next RUN_DECIDE_CHECKS, in the order they were asked for
+             */
+            private final Set<String> mPendingDecideChecks;
             private final long mFlushInterval;
             /**
              * 多少秒之后重试,值从http header中获取
@@ -878,6 +897,10 @@ import javax.net.ssl.SSLSocketFactory;
     private static final int EMPTY_QUEUES = 6; // Remove any local (and pending to be flushed) events or people updates from the db
     private static final int INSTALL_DECIDE_CHECK = 12; // Run this DecideCheck at intervals until it isDestroyed()
     private static final int REGISTER_FOR_GCM = 13; // Register for GCM using Google Play Services
+    private static final int RUN_DECIDE_CHECKS = 14; // Run every decide check asked for since the last run
+
+    // Decide checks asked for this close together share one run
+    private static final long DECIDE_CHECK_WINDOW_MILLIS = 250;
 
     private static final String LOGTAG = "MixpanelAPI.Messages";
 
@@ -8,7 +8,7 @@ import android.graphics.PorterDuff;
 import android.os.AsyncTask;
 
 import com.mixpanel.android.util.ActivityImageUtils;
-import com.mixpanel.android.util.StackBlurManager;
+import com.mixpanel.android.util.BlurEngine;
 
 /* package */ class BackgroundCapture {
 
@@ -43,12 +43,11 @@ import com.mixpanel.android.util.StackBlurManager;
         protected Void doInBackground(Void ...params) {
             if (null != mSourceImage) {
                 try {
-                    /* TODO there is a better and more efficient way to do this, consider
-                     * https://github.com/500px/500px-android-blur
-                     */
-                    StackBlurManager.process(mSourceImage, 20);
-                    final Canvas canvas = new Canvas(mSourceImage);
+                    // Blurred at a quarter of the screenshot's size, it's scaled up when it's shown
+                    final Bitmap blurred = BlurEngine.getInstance().blur(mSourceImage, BLUR_RADIUS, BLUR_DOWNSAMPLE);
+                    final Canvas canvas = new Canvas(blurred);
                     canvas.drawColor(GRAY_72PERCENT_OPAQUE, PorterDuff.Mode.SRC_ATOP);
+                    mSourceImage = blurred;
                 } catch (final ArrayIndexOutOfBoundsException e) {
                     // Workaround for a bug in the algorithm while we wait
                     // for folks to move to gradle/AndroidStudio/other Renderscript-friendly build tools
@@ -76,6 +75,8 @@ import com.mixpanel.android.util.StackBlurManager;
 
 
     private static final int GRAY_72PERCENT_OPAQUE = Color.argb(186, 28, 28, 28);
+    private static final int BLUR_RADIUS = 20;
+    private static final int BLUR_DOWNSAMPLE = 4;
 
     @SuppressWarnings("unused")
     private static final String LOGTAG = "MixpanelAPI.BackgroundCapture";
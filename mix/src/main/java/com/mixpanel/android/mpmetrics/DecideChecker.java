@@ -8,6 +8,8 @@ import android.os.Build;
 import android.view.Display;
 import android.view.WindowManager;
 
+import com.mixpanel.android.util.ConditionalRemoteService;
+import com.mixpanel.android.util.DefaultHttpService;
 import com.mixpanel.android.util.ImageStore;
 import com.mixpanel.android.util.MPLog;
 import com.mixpanel.android.util.RemoteService;
@@ -22,10 +24,20 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -40,6 +52,37 @@ import javax.net.ssl.SSLSocketFactory;
     private final Map<String, DecideMessages> mChecks;
     private final ImageStore mImageStore;
     private final SystemInformation mSystemInformation;
+    private final DecideResponseCache mResponseCache;
+    /**
+     * token - url of the decide response last reported to that token's DecideMessages
+     */
+    private final Map<String, String> mReportedUrls;
+    /**
+     * token - reports waiting for their images, oldest first
+     */
+    private final Map<String, LinkedList<PendingReport>> mPendingReports;
+    /**
+     * Fetches an image in the background when DecideMessages hands out a notification and the
+     * next one in line isn't ready
+     */
+    private final DecideMessages.ImagePrefetcher mImagePrefetcher;
+    private final AtomicLong mFetchSequence;
+    private ThreadPoolExecutor mImageFetcher;
+    private ThreadPoolExecutor mDecideRunner;
+    /**
+     * The url encoded properties sent with every decide request, which don't change while we run
+     */
+    private String mEncodedProperties;
+    private final AtomicInteger mCacheHits;
+    private final AtomicInteger mCacheMisses;
+    private final AtomicLong mBytesSaved;
+
+    private static final int IMAGE_FETCH_THREADS = 3;
+    private static final long IMAGE_FETCH_KEEP_ALIVE_SECONDS = 30;
+    private static final int DECIDE_THREADS = 3;
+    private static final long DECIDE_KEEP_ALIVE_SECONDS = 30;
+    // Width of the image view in com_mixpanel_android_activity_notification_mini
+    private static final int MINI_IMAGE_SIZE_DP = 75;
 
     private static final JSONArray EMPTY_JSON_ARRAY = new JSONArray();
 
@@ -60,7 +103,11 @@ import javax.net.ssl.SSLSocketFactory;
             automaticEvents = false;
         }
 
-        public final List<InAppNotification> notifications;
+        public final List<InAppNotificationDescriptor> notifications;
+        /**
+         * The decide url this result came from
+         */
+        public String url;
         public JSONArray eventBindings;
         public JSONArray variants;
         public boolean automaticEvents;
@@ -70,11 +117,27 @@ import javax.net.ssl.SSLSocketFactory;
     public DecideChecker(final Context context, final MPConfig config) {
         mContext = context;
         mConfig = config;
-        mChecks = new HashMap<String, DecideMessages>();
+        mChecks = new ConcurrentHashMap<String, DecideMessages>();
         // 保存图片的LruCache
         mImageStore = createImageStore(context);
         // 系统信息
         mSystemInformation = SystemInformation.getInstance(context);
+        mResponseCache = new DecideResponseCache(context);
+        mReportedUrls = new ConcurrentHashMap<String, String>();
+        mPendingReports = new HashMap<String, LinkedList<PendingReport>>();
+        mFetchSequence = new AtomicLong();
+        mCacheHits = new AtomicInteger();
+        mCacheMisses = new AtomicInteger();
+        mBytesSaved = new AtomicLong();
+        mImagePrefetcher = new DecideMessages.ImagePrefetcher() {
+            @Override
+            public void prefetch(DecideMessages messages, InAppNotificationDescriptor notification) {
+                // Never on the calling thread, which holds the lock of messages
+                if (notification.startImageFetch()) {
+                    getImageFetcher().execute(new ImageFetch(messages, null, notification));
+                }
+            }
+        };
     }
 
     protected ImageStore createImageStore(final Context context) {
@@ -82,7 +145,78 @@ import javax.net.ssl.SSLSocketFactory;
         return new ImageStore(context, "DecideChecker");
     }
 
+    /**
+     * Runs the decide checks for several tokens together and returns once they've all finished.
+     * With the library's own DefaultHttpService they run concurrently, sharing
+     * HttpURLConnection's pool of kept-alive connections. Any other poster, which may not be
+     * thread safe, gets one request at a time. If any check is told the service is unavailable,
+     * the others still run, and the exception asking for the longest wait is thrown at the end.
+     */
+    public void runDecideChecks(final Collection<String> tokens,
+                                final RemoteService poster) throws RemoteService.ServiceUnavailableException {
+        if (tokens.size() <= 1 || poster.getClass() != DefaultHttpService.class) {
+            RemoteService.ServiceUnavailableException unavailable = null;
+            for (final String token : tokens) {
+                try {
+                    runDecideCheck(token, poster);
+                } catch (final RemoteService.ServiceUnavailableException e) {
+                    if (null == unavailable || e.getRetryAfter() > unavailable.getRetryAfter()) {
+                        unavailable = e;
+                    }
+                }
+            }
+            if (null != unavailable) {
+                throw unavailable;
+            }
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(tokens.size());
+        final RemoteService.ServiceUnavailableException[] unavailable = new RemoteService.ServiceUnavailableException[1];
+        for (final String token : tokens) {
+            getDecideRunner().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runDecideCheck(token, poster);
+                    } catch (final RemoteService.ServiceUnavailableException e) {
+                        synchronized (unavailable) {
+                            if (null == unavailable[0] || e.getRetryAfter() > unavailable[0].getRetryAfter()) {
+                                unavailable[0] = e;
+                            }
+                        }
+                    } catch (final RuntimeException e) {
+                        MPLog.e(LOGTAG, "Decide check for " + token + " failed", e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (final InterruptedException e) {
+                // Returning early would let the next run check the same tokens alongside these
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (unavailable) {
+            if (null != unavailable[0]) {
+                throw unavailable[0];
+            }
+        }
+    }
+
     public void addDecideCheck(final DecideMessages check) {
+        check.setImagePrefetcher(mImagePrefetcher);
         mChecks.put(check.getToken(), check);
     }
 
@@ -94,23 +228,24 @@ import javax.net.ssl.SSLSocketFactory;
         if (updates != null) {
             // event 或 people
             final String distinctId = updates.getDistinctId();
+            Result result = null;
             try {
                 //从服务器获取 decide 信息,并解析完成,得到Result对象
-                final Result result = runDecideCheck(
+                result = runDecideCheck(
                         updates.getToken(),
                         distinctId,
                         poster);
-                if (result != null) {
-                    //处理从服务器获取到的decide信息
-                    updates.reportResults(result.notifications,
-                            result.eventBindings,
-                            result.variants,
-                            result.automaticEvents,
-                            result.integrations);
-                }
             } catch (final UnintelligibleMessageException e) {
                 MPLog.e(LOGTAG, e.getMessage(), e);
             }
+
+            if (result != null) {
+                //处理从服务器获取到的decide信息, 下一个要展示的通知的图片准备好之后才会交给 DecideMessages
+                fetchImagesAndReport(updates, result);
+            } else {
+                // An image that failed last time gets another try even if decide had nothing new
+                prefetchNextImage(updates);
+            }
         }
     }
 
@@ -134,8 +269,9 @@ import javax.net.ssl.SSLSocketFactory;
                                   final String distinctId,
                                   final RemoteService poster)
             throws RemoteService.ServiceUnavailableException, UnintelligibleMessageException {
+        final String url = getDecideUrl(token, distinctId);
         // 从 线上的decide 获取信息 具体信息待分析
-        final String responseString = getDecideResponseFromServer(token, distinctId, poster);
+        final String responseString = getDecideResponseFromServer(token, url, poster);
 
         MPLog.v(LOGTAG, "Mixpanel decide server response was:\n" + responseString);
 
@@ -143,21 +279,7 @@ import javax.net.ssl.SSLSocketFactory;
         if (responseString != null) {
             //解析json 并返回 Result 对象
             parsedResult = parseDecideResponse(responseString);
-
-            final Iterator<InAppNotification> notificationIterator =
-                    parsedResult.notifications.iterator();
-            while (notificationIterator.hasNext()) {
-                final InAppNotification notification = notificationIterator.next();
-                final Bitmap image = getNotificationImage(notification, mContext);
-                if (null == image) {
-                    MPLog.i(LOGTAG, "Could not retrieve image for notification " + notification.getId() +
-                            ", will not show the notification.");
-                    notificationIterator.remove();
-                } else {
-                    // 保存到result中
-                    notification.setImage(image);
-                }
-            }
+            parsedResult.url = url;
         }
 
         return parsedResult;
@@ -200,18 +322,10 @@ import javax.net.ssl.SSLSocketFactory;
             for (int i = 0; i < notificationsToRead; i++) {
                 try {
                     final JSONObject notificationJson = notifications.getJSONObject(i);
-                    // 获取notification的类型
-                    final String notificationType = notificationJson.getString("type");
-
-                    if (notificationType.
-                            equalsIgnoreCase("takeover")) {
-                        final TakeoverInAppNotification notification =
-                                new TakeoverInAppNotification(notificationJson);
-                        ret.notifications.add(notification);
-                    } else if (notificationType.
-                            equalsIgnoreCase("mini")) {
-                        final MiniInAppNotification notification =
-                                new MiniInAppNotification(notificationJson);
+                    // 只读取id, 类型和图片地址, 其余内容在展示时才解析
+                    final InAppNotificationDescriptor notification =
+                            InAppNotificationDescriptor.fromJSON(notificationJson);
+                    if (null != notification) {
                         ret.notifications.add(notification);
                     }
                 } catch (final JSONException e) {
@@ -261,17 +375,81 @@ import javax.net.ssl.SSLSocketFactory;
 
     /**
      * 从服务器获取decide响应信息
+     * <p>
+     * Asks with the validators of the cached response for the token, if there is one for the
+     * same url. A 304 reuses the cached response, or returns null if it has already been
+     * reported, in which case there's nothing to parse, fetch or report.
      *
-     * @param unescapedToken
-     * @param unescapedDistinctId
+     * @param token
+     * @param url
      * @param poster
      * @return
      * @throws RemoteService.ServiceUnavailableException
      */
-    private String getDecideResponseFromServer(String unescapedToken,
-                                               String unescapedDistinctId,
+    private String getDecideResponseFromServer(String token,
+                                               String url,
                                                RemoteService poster)
             throws RemoteService.ServiceUnavailableException {
+        DecideResponseCache.Entry cached = mResponseCache.get(token);
+        if (null != cached && !cached.url.equals(url)) {
+            cached = null;
+        }
+
+        final ConditionalRemoteService.ConditionalResponse response = checkDecide(poster, mContext, url,
+                null == cached ? null : cached.etag,
+                null == cached ? null : cached.lastModified);
+        if (null == response || null == response.body) {
+            return null;
+        }
+
+        if (response.notModified && null != cached) {
+            mCacheHits.incrementAndGet();
+            try {
+                mBytesSaved.addAndGet(cached.body.getBytes("UTF-8").length);
+            } catch (final UnsupportedEncodingException e) {
+                throw new RuntimeException("UTF not supported on this platform?", e);
+            }
+            MPLog.v(LOGTAG, "Decide response not modified (" + mCacheHits + " hits, " +
+                    mCacheMisses + " misses, " + mBytesSaved + " bytes saved)");
+            if (url.equals(mReportedUrls.get(token))) {
+                return null;
+            }
+            return cached.body;
+        }
+
+        mCacheMisses.incrementAndGet();
+        final String body;
+        try {
+            body = new String(response.body, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+        if (null != response.etag || null != response.lastModified) {
+            mResponseCache.put(token, new DecideResponseCache.Entry(url, response.etag, response.lastModified, body));
+        } else if (null != cached) {
+            mResponseCache.remove(token);
+        }
+        // Whatever is reported next comes from this response
+        mReportedUrls.remove(token);
+        return body;
+    }
+
+    /* package */ int getCacheHits() {
+        return mCacheHits.get();
+    }
+
+    /* package */ int getCacheMisses() {
+        return mCacheMisses.get();
+    }
+
+    /**
+     * @return bytes of decide responses the server didn't have to send again
+     */
+    /* package */ long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    private String getDecideUrl(String unescapedToken, String unescapedDistinctId) {
         final String escapedToken;
         final String escapedId;
         try {
@@ -295,19 +473,8 @@ import javax.net.ssl.SSLSocketFactory;
             queryBuilder.append("&distinct_id=").append(escapedId);
         }
 
-        queryBuilder.append("&properties=");
+        queryBuilder.append("&properties=").append(getEncodedProperties());
 
-        JSONObject properties = new JSONObject();
-        try {
-            properties.putOpt("$android_lib_version", MPConfig.VERSION);
-            properties.putOpt("$android_app_version", mSystemInformation.getAppVersionName());
-            properties.putOpt("$android_version", Build.VERSION.RELEASE);
-            properties.putOpt("$android_app_release", mSystemInformation.getAppVersionCode());
-            properties.putOpt("$android_device_model", Build.MODEL);
-            queryBuilder.append(URLEncoder.encode(properties.toString(), "utf-8"));
-        } catch (Exception e) {
-            MPLog.e(LOGTAG, "Exception constructing properties JSON", e.getCause());
-        }
         // 查询语句
         final String checkQuery = queryBuilder.toString();
         // 拼接查询语句
@@ -315,41 +482,255 @@ import javax.net.ssl.SSLSocketFactory;
         final String url = mConfig.getDecideEndpoint() + checkQuery;
 
         MPLog.v(LOGTAG, "Querying decide server, url: " + url);
+        return url;
+    }
 
-        final byte[] response = checkDecide(poster, mContext, url);
-        if (null == response) {
-            return null;
+    /**
+     * Queues a result to be reported, first fetching the image for the one notification that
+     * would be shown next, if it isn't ready already. The rest of the notifications are reported
+     * without images, which are fetched one at a time as each comes up. An image already in memory
+     * is taken on the calling thread, so a result that needs no download is reported before this
+     * returns.
+     */
+    private void fetchImagesAndReport(DecideMessages updates, Result result) {
+        final PendingReport report = new PendingReport(updates, result);
+        final InAppNotificationDescriptor candidate = updates.getPrefetchCandidate(result.notifications);
+        final ImageFetch fetch;
+        if (null != candidate && candidate.startImageFetch()) {
+            fetch = new ImageFetch(updates, report, candidate);
+            report.outstanding = 1;
+        } else {
+            fetch = null;
         }
-        try {
-            return new String(response, "UTF-8");
-        } catch (final UnsupportedEncodingException e) {
-            throw new RuntimeException("UTF not supported on this platform?", e);
+
+        final LinkedList<PendingReport> queue = getPendingReports(updates.getToken());
+        synchronized (queue) {
+            queue.add(report);
+        }
+
+        if (null != fetch) {
+            final String key = ImageStore.memoryCacheKey(fetch.url, fetch.targetWidth, fetch.targetHeight,
+                    Bitmap.Config.ARGB_8888);
+            if (null != ImageStore.getBitmapFromMemCache(key)) {
+                fetch.run();
+            } else {
+                getImageFetcher().execute(fetch);
+            }
         }
+
+        publishReadyReports(updates.getToken());
     }
 
-    private Bitmap getNotificationImage(InAppNotification notification, Context context)
-            throws RemoteService.ServiceUnavailableException {
-        String[] urls = {notification.getImage2xUrl(), notification.getImageUrl()};
+    /**
+     * Fetches the image for the next notification of updates in the background, if there's one
+     * still waiting for it, for example after an earlier attempt failed.
+     */
+    private void prefetchNextImage(DecideMessages updates) {
+        final InAppNotificationDescriptor candidate =
+                updates.getPrefetchCandidate(Collections.<InAppNotificationDescriptor>emptyList());
+        if (null != candidate) {
+            mImagePrefetcher.prefetch(updates, candidate);
+        }
+    }
+
+    private LinkedList<PendingReport> getPendingReports(String token) {
+        synchronized (mPendingReports) {
+            LinkedList<PendingReport> queue = mPendingReports.get(token);
+            if (null == queue) {
+                queue = new LinkedList<PendingReport>();
+                mPendingReports.put(token, queue);
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * Reports, in order, every report for token at the head of its queue that has no fetches
+     * outstanding. A report waiting on a slow image holds back the ones behind it, so older
+     * bindings and variants never overwrite newer ones.
+     */
+    private void publishReadyReports(String token) {
+        final LinkedList<PendingReport> queue = getPendingReports(token);
+        synchronized (queue) {
+            while (!queue.isEmpty() && queue.getFirst().outstanding == 0) {
+                queue.removeFirst().publish();
+            }
+        }
+    }
+
+    private void imageFetched(ImageFetch fetch, Bitmap image) {
+        fetch.notification.finishImageFetch(image);
+        if (null == image) {
+            if (fetch.notification.isExhausted()) {
+                MPLog.i(LOGTAG, "Could not retrieve image for notification " + fetch.notification.getId() +
+                        " after " + fetch.notification.getImageAttempts() + " attempts, will not show the notification.");
+            } else {
+                MPLog.i(LOGTAG, "Could not retrieve image for notification " + fetch.notification.getId() +
+                        ", will try again later.");
+            }
+        }
 
-        final WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        if (null != fetch.report) {
+            final String token = fetch.updates.getToken();
+            synchronized (getPendingReports(token)) {
+                fetch.report.outstanding--;
+            }
+            publishReadyReports(token);
+        } else if (null != image) {
+            fetch.updates.reportImageReady(fetch.notification);
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getDecideRunner() {
+        if (null == mDecideRunner) {
+            mDecideRunner = new ThreadPoolExecutor(DECIDE_THREADS, DECIDE_THREADS,
+                    DECIDE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            mDecideRunner.allowCoreThreadTimeOut(true);
+        }
+        return mDecideRunner;
+    }
+
+    /**
+     * @return the properties sent with decide requests, built and url encoded the first time only
+     */
+    private synchronized String getEncodedProperties() {
+        if (null == mEncodedProperties) {
+            mEncodedProperties = "";
+            final JSONObject properties = new JSONObject();
+            try {
+                properties.putOpt("$android_lib_version", MPConfig.VERSION);
+                properties.putOpt("$android_app_version", mSystemInformation.getAppVersionName());
+                properties.putOpt("$android_version", Build.VERSION.RELEASE);
+                properties.putOpt("$android_app_release", mSystemInformation.getAppVersionCode());
+                properties.putOpt("$android_device_model", Build.MODEL);
+                mEncodedProperties = URLEncoder.encode(properties.toString(), "utf-8");
+            } catch (Exception e) {
+                MPLog.e(LOGTAG, "Exception constructing properties JSON", e.getCause());
+            }
+        }
+        return mEncodedProperties;
+    }
+
+    private synchronized ThreadPoolExecutor getImageFetcher() {
+        if (null == mImageFetcher) {
+            mImageFetcher = new ThreadPoolExecutor(IMAGE_FETCH_THREADS, IMAGE_FETCH_THREADS,
+                    IMAGE_FETCH_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+            mImageFetcher.allowCoreThreadTimeOut(true);
+        }
+        return mImageFetcher;
+    }
+
+    /**
+     * Picks the image urls for a notification from the display, best first. Only the first is
+     * fetched up front; the others are used, one step at a time, if earlier attempts fail.
+     */
+    private String[] getNotificationImageUrls(InAppNotificationDescriptor notification) {
+        final WindowManager wm = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
         final Display display = wm.getDefaultDisplay();
         // 使用兼容性的方式获取 width
         final int displayWidth = getDisplayWidth(display);
+        final float density = mContext.getResources().getDisplayMetrics().density;
 
         if (notification.getType() == InAppNotification.Type.TAKEOVER &&
                 displayWidth >= 720) {
-            urls = new String[]{notification.getImage4xUrl(), notification.getImage2xUrl(), notification.getImageUrl()};
+            return new String[]{notification.getImage4xUrl(), notification.getImage2xUrl(), notification.getImageUrl()};
+        } else if (density > 1.0f) {
+            return new String[]{notification.getImage2xUrl(), notification.getImageUrl()};
+        } else {
+            return new String[]{notification.getImageUrl()};
         }
+    }
 
-        for (String url : urls) {
+    /**
+     * @return the size a notification image is shown at, so it can be decoded no larger. Takeover
+     * images fill the width of the display, mini images a square at the side of the notification.
+     */
+    private int[] getNotificationImageSize(InAppNotificationDescriptor notification) {
+        if (notification.getType() == InAppNotification.Type.TAKEOVER) {
+            final WindowManager wm = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
+            return new int[]{getDisplayWidth(wm.getDefaultDisplay()), 0};
+        } else {
+            final float density = mContext.getResources().getDisplayMetrics().density;
+            final int side = (int) (MINI_IMAGE_SIZE_DP * density);
+            return new int[]{side, side};
+        }
+    }
+
+    /**
+     * A decide result waiting for the image of the notification that will be shown next
+     */
+    private class PendingReport {
+        public PendingReport(DecideMessages updates, Result result) {
+            this.updates = updates;
+            this.result = result;
+        }
+
+        public void publish() {
+            updates.reportResults(result.notifications,
+                    result.eventBindings,
+                    result.variants,
+                    result.automaticEvents,
+                    result.integrations);
+            mReportedUrls.put(updates.getToken(), result.url);
+        }
+
+        public final DecideMessages updates;
+        public final Result result;
+        public int outstanding;
+    }
+
+    /**
+     * Fetches one notification image. Images holding back a decide result go ahead of background
+     * prefetches, takeovers ahead of minis, and otherwise they're fetched in the order asked for.
+     */
+    private class ImageFetch implements Runnable, Comparable<ImageFetch> {
+        public ImageFetch(DecideMessages updates, PendingReport report, InAppNotificationDescriptor notification) {
+            this.updates = updates;
+            this.report = report;
+            this.notification = notification;
+            final String[] urls = getNotificationImageUrls(notification);
+            this.url = urls[Math.min(notification.getImageAttempts(), urls.length - 1)];
+            final int[] size = getNotificationImageSize(notification);
+            this.targetWidth = size[0];
+            this.targetHeight = size[1];
+            this.sequence = mFetchSequence.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            Bitmap image = null;
             try {
-                return mImageStore.getImage(url);
-            } catch (ImageStore.CantGetImageException e) {
+                image = mImageStore.getImage(url, targetWidth, targetHeight);
+            } catch (final ImageStore.CantGetImageException e) {
                 MPLog.v(LOGTAG, "Can't load image " + url + " for a notification", e);
+            } catch (final OutOfMemoryError e) {
+                MPLog.e(LOGTAG, "Out of memory loading image " + url + " for a notification", e);
+            } finally {
+                imageFetched(this, image);
             }
         }
 
-        return null;
+        @Override
+        public int compareTo(ImageFetch other) {
+            final boolean reporting = null != report;
+            if (reporting != (null != other.report)) {
+                return reporting ? -1 : 1;
+            }
+            final boolean takeover = notification.getType() == InAppNotification.Type.TAKEOVER;
+            final boolean otherTakeover = other.notification.getType() == InAppNotification.Type.TAKEOVER;
+            if (takeover != otherTakeover) {
+                return takeover ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        public final DecideMessages updates;
+        public final PendingReport report;
+        public final InAppNotificationDescriptor notification;
+        public final String url;
+        public final int targetWidth;
+        public final int targetHeight;
+        public final long sequence;
     }
 
     @SuppressWarnings("deprecation")
@@ -364,7 +745,12 @@ import javax.net.ssl.SSLSocketFactory;
         }
     }
 
-    private static byte[] checkDecide(RemoteService poster, Context context, String url)
+    /**
+     * Sends the cached validators when the poster can make conditional requests, and makes a plain
+     * request otherwise.
+     */
+    private static ConditionalRemoteService.ConditionalResponse checkDecide(RemoteService poster, Context context, String url,
+                                                                            String etag, String lastModified)
             throws RemoteService.ServiceUnavailableException {
         final MPConfig config = MPConfig.getInstance(context);
         // 判断是否连接网络
@@ -372,10 +758,17 @@ import javax.net.ssl.SSLSocketFactory;
             return null;
         }
 
-        byte[] response = null;
+        ConditionalRemoteService.ConditionalResponse response = null;
         try {
             final SSLSocketFactory socketFactory = config.getSSLSocketFactory();
-            response = poster.performRequest(url, null, socketFactory);
+            if (poster instanceof ConditionalRemoteService) {
+                response = ((ConditionalRemoteService) poster).performConditionalRequest(url, etag, lastModified, socketFactory);
+            } else {
+                final byte[] body = poster.performRequest(url, null, socketFactory);
+                if (null != body) {
+                    response = new ConditionalRemoteService.ConditionalResponse(body, false, null, null);
+                }
+            }
         } catch (final MalformedURLException e) {
             MPLog.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
         } catch (final FileNotFoundException e) {
@@ -9,7 +9,9 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -23,6 +25,13 @@ import java.util.Set;
         void onNewConnectIntegrations();
     }
 
+    /**
+     * Fetches the image for the notification that would be shown next, in the background
+     */
+    public interface ImagePrefetcher {
+        void prefetch(DecideMessages messages, InAppNotificationDescriptor notification);
+    }
+
     public DecideMessages(Context context, String token, OnNewResultsListener listener, UpdatesFromMixpanel updatesFromMixpanel, HashSet<Integer> notificationIds) {
         mContext = context;
         mToken = token;
@@ -30,7 +39,7 @@ import java.util.Set;
         mUpdatesFromMixpanel = updatesFromMixpanel;
 
         mDistinctId = null;
-        mUnseenNotifications = new LinkedList<InAppNotification>();
+        mUnseenNotifications = new LinkedList<InAppNotificationDescriptor>();
         mNotificationIds = new HashSet<Integer>(notificationIds);
         mVariants = null;
         mIntegrations = new HashSet<String>();
@@ -40,6 +49,10 @@ import java.util.Set;
         return mToken;
     }
 
+    public synchronized void setImagePrefetcher(ImagePrefetcher prefetcher) {
+        mImagePrefetcher = prefetcher;
+    }
+
     // Called from other synchronized code. Do not call into other synchronized code or you'll
     // risk deadlock
     public synchronized void setDistinctId(String distinctId) {
@@ -53,7 +66,7 @@ import java.util.Set;
         return mDistinctId;
     }
 
-    public synchronized void reportResults(List<InAppNotification> newNotifications,
+    public synchronized void reportResults(List<InAppNotificationDescriptor> newNotifications,
                                            JSONArray eventBindings,
                                            JSONArray variants,
                                            boolean automaticEvents,
@@ -64,14 +77,7 @@ import java.util.Set;
         // 处理event 事件
         mUpdatesFromMixpanel.setEventBindings(eventBindings);
         // 处理notification
-        for (final InAppNotification n : newNotifications) {
-            final int id = n.getId();
-            if (!mNotificationIds.contains(id)) {
-                mNotificationIds.add(id);
-                mUnseenNotifications.add(n);
-                newContent = true;
-            }
-        }
+        newContent = addNotifications(newNotifications);
 
         // the following logic checks if the variants have been applied by looking up their id's in the HashSet
         // this is needed to make sure the user defined `mListener` will get called on new variants receiving
@@ -161,31 +167,118 @@ import java.util.Set;
         }
     }
 
+    /**
+     * Called once the image for an unseen notification has been fetched in the background, which
+     * makes the notification available.
+     */
+    public synchronized void reportImageReady(InAppNotificationDescriptor notification) {
+        if (mUnseenNotifications.contains(notification)) {
+            MPLog.v(LOGTAG, "Notification " + notification.getId() + " has become available.");
+            if (null != mListener) {
+                mListener.onNewResults();
+            }
+        }
+    }
+
+    /**
+     * The notification whose image is worth fetching next: the first unseen one, or if there
+     * are none, the first of incoming that hasn't been seen before.
+     *
+     * @return null if there's nothing to fetch, including when that notification is already ready
+     */
+    public synchronized InAppNotificationDescriptor getPrefetchCandidate(List<InAppNotificationDescriptor> incoming) {
+        InAppNotificationDescriptor candidate = null;
+        for (final InAppNotificationDescriptor n : mUnseenNotifications) {
+            if (!n.isExhausted()) {
+                candidate = n;
+                break;
+            }
+        }
+        if (null == candidate) {
+            for (final InAppNotificationDescriptor n : incoming) {
+                if (!mNotificationIds.contains(n.getId())) {
+                    candidate = n;
+                    break;
+                }
+            }
+        }
+        return null == candidate || candidate.isReady() ? null : candidate;
+    }
+
+    private boolean addNotifications(List<InAppNotificationDescriptor> newNotifications) {
+        boolean newContent = false;
+        for (final InAppNotificationDescriptor n : newNotifications) {
+            final int id = n.getId();
+            if (!mNotificationIds.contains(id)) {
+                mNotificationIds.add(id);
+                mUnseenNotifications.add(n);
+                newContent = true;
+            }
+        }
+        return newContent;
+    }
+
     public synchronized JSONArray getVariants() {
         return mVariants;
     }
 
+    /**
+     * Returns the first unseen notification whose image is ready, parsing it now. Notifications
+     * still waiting for their images are passed over, and the next one in line is prefetched.
+     */
     public synchronized InAppNotification getNotification(boolean replace) {
         if (mUnseenNotifications.isEmpty()) {
             MPLog.v(LOGTAG, "No unseen notifications exist, none will be returned.");
             return null;
         }
-        InAppNotification n = mUnseenNotifications.remove(0);
-        if (replace) {
-            mUnseenNotifications.add(n);
+
+        InAppNotificationDescriptor picked = null;
+        InAppNotification n = null;
+        final Iterator<InAppNotificationDescriptor> iterator = mUnseenNotifications.iterator();
+        while (null == n && iterator.hasNext()) {
+            final InAppNotificationDescriptor candidate = iterator.next();
+            if (candidate.isReady()) {
+                n = parse(candidate);
+                iterator.remove();
+                picked = candidate;
+            } else if (candidate.isExhausted()) {
+                MPLog.i(LOGTAG, "Could not retrieve image for notification " + candidate.getId() +
+                        ", will not show the notification.");
+                iterator.remove();
+            }
+        }
+
+        if (null == n) {
+            MPLog.v(LOGTAG, "No unseen notifications are ready yet, none will be returned.");
+        } else if (replace) {
+            mUnseenNotifications.add(picked);
         } else {
             MPLog.v(LOGTAG, "Recording notification " + n + " as seen.");
         }
+        prefetchNext();
         return n;
     }
 
+    /**
+     * Returns the unseen notification with the given id, if its image is ready. If it isn't,
+     * its image is fetched so that it will be ready on a later call.
+     */
     public synchronized InAppNotification getNotification(int id, boolean replace) {
         InAppNotification notif = null;
-        for (int i = 0; i < mUnseenNotifications.size(); i++) {
-            if (mUnseenNotifications.get(i).getId() == id) {
-                notif = mUnseenNotifications.get(i);
-                if (!replace) {
-                    mUnseenNotifications.remove(i);
+        final Iterator<InAppNotificationDescriptor> iterator = mUnseenNotifications.iterator();
+        while (iterator.hasNext()) {
+            final InAppNotificationDescriptor candidate = iterator.next();
+            if (candidate.getId() == id) {
+                if (!candidate.isReady()) {
+                    MPLog.v(LOGTAG, "Notification " + id + " is not ready yet, fetching its image.");
+                    if (null != mImagePrefetcher) {
+                        mImagePrefetcher.prefetch(this, candidate);
+                    }
+                    break;
+                }
+                notif = parse(candidate);
+                if (!replace || null == notif) {
+                    iterator.remove();
                 }
                 break;
             }
@@ -193,6 +286,27 @@ import java.util.Set;
         return notif;
     }
 
+    /**
+     * @return the parsed notification, or null if its JSON is bad, in which case it's never shown
+     */
+    private InAppNotification parse(InAppNotificationDescriptor descriptor) {
+        try {
+            return descriptor.getNotification();
+        } catch (final BadDecideObjectException e) {
+            MPLog.e(LOGTAG, "Received a strange notification " + descriptor.getId() + " from the notifications service", e);
+            return null;
+        }
+    }
+
+    private void prefetchNext() {
+        if (null != mImagePrefetcher) {
+            final InAppNotificationDescriptor next = getPrefetchCandidate(Collections.<InAppNotificationDescriptor>emptyList());
+            if (null != next) {
+                mImagePrefetcher.prefetch(this, next);
+            }
+        }
+    }
+
     public synchronized Set<String> getIntegrations() {
         return mIntegrations;
     }
@@ -201,7 +315,7 @@ import java.util.Set;
     // won't lose it
     public synchronized void markNotificationAsUnseen(InAppNotification notif) {
         if (!MPConfig.DEBUG) {
-            mUnseenNotifications.add(notif);
+            mUnseenNotifications.add(new InAppNotificationDescriptor(notif));
         }
     }
 
@@ -239,10 +353,10 @@ import java.util.Set;
      */
     private final Set<Integer> mNotificationIds;
     /**
-     * 通知列表, InAppNotification 保存了通知的具体内容
-     * 从Decide接口获取
+     * 通知列表, 从Decide接口获取
+     * Kept as descriptors, each parsed into an InAppNotification only when it's handed out
      */
-    private final List<InAppNotification> mUnseenNotifications;
+    private final List<InAppNotificationDescriptor> mUnseenNotifications;
     /**
      * 在Mixpanel 被创建,从构造函数中传入
      * <p>
@@ -253,6 +367,7 @@ import java.util.Set;
      * ViewCrawler 实现了 UpdatesFromMixpanel接口
      */
     private final UpdatesFromMixpanel mUpdatesFromMixpanel;
+    private ImagePrefetcher mImagePrefetcher;
     private JSONArray mVariants;
     /**
      * 记录 variants的id
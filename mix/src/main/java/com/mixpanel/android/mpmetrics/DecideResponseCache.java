@@ -0,0 +1,138 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+
+import com.mixpanel.android.util.MPLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Keeps the last decide response for each token on disk, with the validators the server sent
+ * for it, so that a later check can ask for it conditionally and reuse it after a 304.
+ */
+/* package */ class DecideResponseCache {
+
+    /* package */ static class Entry {
+        public Entry(String url, String etag, String lastModified, String body) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+
+        public final String url;
+        public final String etag;
+        public final String lastModified;
+        public final String body;
+    }
+
+    public DecideResponseCache(Context context) {
+        mDirectory = new File(context.getCacheDir(), CACHE_DIRECTORY);
+    }
+
+    /**
+     * @return the cached response for token, or null if there isn't a readable one
+     */
+    public Entry get(String token) {
+        final File file = fileForToken(token);
+        if (!file.exists()) {
+            return null;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) file.length());
+            final byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+            final JSONObject stored = new JSONObject(buffer.toString("UTF-8"));
+            return new Entry(stored.getString("url"),
+                    stored.isNull("etag") ? null : stored.getString("etag"),
+                    stored.isNull("last_modified") ? null : stored.getString("last_modified"),
+                    stored.getString("body"));
+        } catch (final IOException e) {
+            MPLog.w(LOGTAG, "Can't read cached decide response", e);
+        } catch (final JSONException e) {
+            MPLog.w(LOGTAG, "Cached decide response is corrupt, discarding it", e);
+            remove(token);
+        } finally {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (final IOException e) {
+                    ;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the cached response for token. The file is written beside the old one and
+     * renamed over it, so a crash mid-write leaves the old entry intact.
+     */
+    public void put(String token, Entry entry) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            MPLog.w(LOGTAG, "Can't create decide cache directory " + mDirectory);
+            return;
+        }
+
+        final File file = fileForToken(token);
+        final File temp = new File(mDirectory, file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            final JSONObject stored = new JSONObject();
+            stored.put("url", entry.url);
+            stored.put("etag", null == entry.etag ? JSONObject.NULL : entry.etag);
+            stored.put("last_modified", null == entry.lastModified ? JSONObject.NULL : entry.lastModified);
+            stored.put("body", entry.body);
+
+            out = new FileOutputStream(temp);
+            out.write(stored.toString().getBytes("UTF-8"));
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                MPLog.w(LOGTAG, "Can't move decide response into place at " + file);
+                temp.delete();
+            }
+        } catch (final IOException e) {
+            MPLog.w(LOGTAG, "Can't write cached decide response", e);
+            temp.delete();
+        } catch (final JSONException e) {
+            MPLog.e(LOGTAG, "Apparently impossible JSONException", e);
+        } finally {
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (final IOException e) {
+                    ;
+                }
+            }
+        }
+    }
+
+    public void remove(String token) {
+        fileForToken(token).delete();
+    }
+
+    private File fileForToken(String token) {
+        return new File(mDirectory, "decide_" + Integer.toHexString(token.hashCode()));
+    }
+
+    private final File mDirectory;
+
+    private static final String CACHE_DIRECTORY = "mixpanel.decide";
+    private static final String LOGTAG = "MixpanelAPI.DCache";
+}
@@ -72,7 +72,8 @@ public abstract class InAppNotification implements Parcelable {
             mBody = JSONUtils.optionalStringKey(description, "body");
             mBodyColor = description.optInt("body_color");
             mImageUrl = description.getString("image_url");
-            mImage = Bitmap.createBitmap(500, 500, Bitmap.Config.ARGB_8888);
+            // Set once the image is fetched, there's no point allocating a placeholder for it
+            mImage = null;
         } catch (final JSONException e) {
             throw new BadDecideObjectException("Notification JSON was unexpected or bad", e);
         }
@@ -0,0 +1,162 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.graphics.Bitmap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A notification from decide that hasn't been picked for display yet. Only the fields needed to
+ * choose it and fetch its image are read up front; the rest of its JSON is parsed into an
+ * InAppNotification when DecideMessages hands it out, and its image is fetched only once it's
+ * next in line to be shown.
+ *
+ * Shared between the decide worker, the image fetch threads and customer threads.
+ */
+/* package */ class InAppNotificationDescriptor {
+
+    /**
+     * @return a descriptor for description, or null if it's a type of notification this library can't show
+     */
+    public static InAppNotificationDescriptor fromJSON(JSONObject description) throws BadDecideObjectException {
+        try {
+            final String type = description.getString("type");
+            final InAppNotification.Type parsedType;
+            if (type.equalsIgnoreCase("takeover")) {
+                parsedType = InAppNotification.Type.TAKEOVER;
+            } else if (type.equalsIgnoreCase("mini")) {
+                parsedType = InAppNotification.Type.MINI;
+            } else {
+                return null;
+            }
+            return new InAppNotificationDescriptor(description, description.getInt("id"), parsedType,
+                    description.getString("image_url"));
+        } catch (final JSONException e) {
+            throw new BadDecideObjectException("Notification JSON was unexpected or bad", e);
+        }
+    }
+
+    /**
+     * Wraps a notification that has already been parsed, along with whatever image it has
+     */
+    public InAppNotificationDescriptor(InAppNotification notification) {
+        mDescription = null;
+        mId = notification.getId();
+        mType = notification.getType();
+        mImageUrl = notification.getImageUrl();
+        mNotification = notification;
+        mImage = notification.getImage();
+        mReady = true;
+    }
+
+    private InAppNotificationDescriptor(JSONObject description, int id, InAppNotification.Type type, String imageUrl) {
+        mDescription = description;
+        mId = id;
+        mType = type;
+        mImageUrl = imageUrl;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public InAppNotification.Type getType() {
+        return mType;
+    }
+
+    public String getImageUrl() {
+        return mImageUrl;
+    }
+
+    public String getImage2xUrl() {
+        return InAppNotification.sizeSuffixUrl(mImageUrl, "@2x");
+    }
+
+    public String getImage4xUrl() {
+        return InAppNotification.sizeSuffixUrl(mImageUrl, "@4x");
+    }
+
+    /**
+     * @return true if the notification's image is in hand, so it can be shown right away
+     */
+    public synchronized boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * @return true if fetching the image has failed too many times for the notification to be shown
+     */
+    public synchronized boolean isExhausted() {
+        return !mReady && mImageAttempts >= MAX_IMAGE_ATTEMPTS;
+    }
+
+    /**
+     * @return the image fetches that have failed so far
+     */
+    public synchronized int getImageAttempts() {
+        return mImageAttempts;
+    }
+
+    /**
+     * @return true if the caller should fetch the image, or false if it's already in hand, already
+     * being fetched, or has failed too often
+     */
+    public synchronized boolean startImageFetch() {
+        if (mReady || mFetching || mImageAttempts >= MAX_IMAGE_ATTEMPTS) {
+            return false;
+        }
+        mFetching = true;
+        return true;
+    }
+
+    /**
+     * Ends a fetch begun with startImageFetch. A null image counts as a failed attempt.
+     */
+    public synchronized void finishImageFetch(Bitmap image) {
+        mFetching = false;
+        if (null == image) {
+            mImageAttempts++;
+        } else {
+            mImage = image;
+            mReady = true;
+            if (null != mNotification) {
+                mNotification.setImage(image);
+            }
+        }
+    }
+
+    /**
+     * Parses the full notification the first time it's asked for. The JSON isn't kept after that.
+     */
+    public synchronized InAppNotification getNotification() throws BadDecideObjectException {
+        if (null == mNotification) {
+            if (mType == InAppNotification.Type.TAKEOVER) {
+                mNotification = new TakeoverInAppNotification(mDescription);
+            } else {
+                mNotification = new MiniInAppNotification(mDescription);
+            }
+            mNotification.setImage(mImage);
+            mDescription = null;
+        }
+        return mNotification;
+    }
+
+    @Override
+    public String toString() {
+        return "InAppNotificationDescriptor[id=" + mId + ", type=" + mType + "]";
+    }
+
+    private final int mId;
+    private final InAppNotification.Type mType;
+    private final String mImageUrl;
+
+    // Mutable, must be synchronized
+    private JSONObject mDescription;
+    private InAppNotification mNotification;
+    private Bitmap mImage;
+    private boolean mReady;
+    private boolean mFetching;
+    private int mImageAttempts;
+
+    /* package */ static final int MAX_IMAGE_ATTEMPTS = 3;
+}
@@ -97,6 +97,9 @@ import javax.net.ssl.SSLSocketFactory;
  * <dt>com.mixpanel.android.MPConfig.ImageCacheMaxMemoryFactor</dt>
  * <dd>An integer value. The LRU cache size that Mixpanel uses to store images is calculated by the available memory divided by this factor. Defaults to 10.</dd>
  * <p>
+ * <dt>com.mixpanel.android.MPConfig.ImageCacheMaxDiskSize</dt>
+ * <dd>An integer value. The maximum number of bytes of downloaded images Mixpanel keeps on disk, per image directory. Least recently used images are deleted first. Defaults to 10 MB.</dd>
+ * <p>
  * <dt>com.mixpanel.android.MPConfig.DisableViewCrawlerForProjects</dt>
  * <dd>A resource array list (e.g. @array/my_project_list). AB tests, tweaks and codeless events will be disabled for the projects from that list. Defaults to null.</dd>
  * <p>
@@ -236,6 +239,7 @@ public class MPConfig {
         mDisableViewCrawler = metaData.getBoolean("com.mixpanel.android.MPConfig.DisableViewCrawler", false);
         mDisableDecideChecker = metaData.getBoolean("com.mixpanel.android.MPConfig.DisableDecideChecker", false);
         mImageCacheMaxMemoryFactor = metaData.getInt("com.mixpanel.android.MPConfig.ImageCacheMaxMemoryFactor", 10);
+        mImageCacheMaxDiskSize = metaData.getInt("com.mixpanel.android.MPConfig.ImageCacheMaxDiskSize", 10 * 1024 * 1024); // 10 Mb
         mIgnoreInvisibleViewsEditor = metaData.getBoolean("com.mixpanel.android.MPConfig.IgnoreInvisibleViewsVisualEditor", false);
         mAutoShowMixpanelUpdates = metaData.getBoolean("com.mixpanel.android.MPConfig.AutoShowMixpanelUpdates", true);
         mNotificationDefaults = metaData.getInt("com.mixpanel.android.MPConfig.NotificationDefaults", 0);
@@ -520,6 +524,11 @@ public class MPConfig {
         return mImageCacheMaxMemoryFactor;
     }
 
+    // ImageStore deletes least recently used image files once they take more than this many bytes
+    public int getImageCacheMaxDiskSize() {
+        return mImageCacheMaxDiskSize;
+    }
+
     ///////////////////////////////////////////////
 
     // Package access for testing only- do not call directly in library code
@@ -557,6 +566,7 @@ public class MPConfig {
                 "    DecideEndpoint " + getDecideEndpoint() + "\n" +
                 "    EditorUrl " + getEditorUrl() + "\n" +
                 "    ImageCacheMaxMemoryFactor " + getImageCacheMaxMemoryFactor() + "\n" +
+                "    ImageCacheMaxDiskSize " + getImageCacheMaxDiskSize() + "\n" +
                 "    DisableDecideChecker " + getDisableDecideChecker() + "\n" +
                 "    IgnoreInvisibleViewsEditor " + getIgnoreInvisibleViewsEditor() + "\n" +
                 "    NotificationDefaults " + getNotificationDefaults() + "\n" +
@@ -615,6 +625,7 @@ public class MPConfig {
     private final String mResourcePackageName;
     private final boolean mDisableDecideChecker;
     private final int mImageCacheMaxMemoryFactor;
+    private final int mImageCacheMaxDiskSize;
     private final boolean mIgnoreInvisibleViewsEditor;
     private final int mNotificationDefaults;
     /**
@@ -0,0 +1,321 @@
+package com.mixpanel.android.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blurs screenshots for takeover backgrounds, without RenderScript.
+ *
+ * The source is scaled down first, since blurring throws away the detail that scaling loses
+ * anyway, and the smaller image is stack blurred (the same filter as StackBlurManager) in a
+ * horizontal pass and then a vertical one. Each pass is split into bands of rows or columns
+ * that run in parallel on a small pool, and joined before the next pass starts. Fork/join isn't
+ * available before API 21, so the pool is a plain ThreadPoolExecutor joined with a latch.
+ *
+ * Pixel buffers, the per-thread stacks and the division table are kept between calls, so
+ * blurring the same size again allocates only the result bitmap. Calls are serialized.
+ */
+public class BlurEngine {
+
+    public static BlurEngine getInstance() {
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                sInstance = new BlurEngine(Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())));
+            }
+            return sInstance;
+        }
+    }
+
+    /* package */ BlurEngine(int threads) {
+        mThreads = threads;
+        mStacks = new int[threads][];
+        if (threads > 1) {
+            mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            mExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Returns a new, mutable bitmap downsample times smaller than source on each side, blurred by
+     * radius pixels of source. source itself isn't changed.
+     */
+    public synchronized Bitmap blur(Bitmap source, int radius, int downsample) {
+        final int scale = Math.max(1, downsample);
+        final int width = Math.max(1, source.getWidth() / scale);
+        final int height = Math.max(1, source.getHeight() / scale);
+
+        final Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(result);
+        canvas.drawBitmap(source, null, new Rect(0, 0, width, height), SCALING_PAINT);
+
+        final int scaledRadius = Math.max(1, Math.round((float) radius / scale));
+        final int[] pixels = pixelBuffer(width * height);
+        result.getPixels(pixels, 0, width, 0, 0, width, height);
+        blurPixels(pixels, width, height, scaledRadius);
+        result.setPixels(pixels, 0, width, 0, 0, width, height);
+        return result;
+    }
+
+    /**
+     * Blurs width * height ARGB pixels in place. Alpha comes out opaque.
+     */
+    /* package */ synchronized void blurPixels(final int[] pixels, final int width, final int height, final int radius) {
+        if (radius < 1) {
+            return;
+        }
+
+        final int[] scratch = scratchBuffer(width * height);
+        final int[] divide = divisionTable(radius);
+        for (int i = 0; i < mThreads; i++) {
+            if (null == mStacks[i] || mStacks[i].length < (2 * radius + 1) * 3) {
+                mStacks[i] = new int[(2 * radius + 1) * 3];
+            }
+        }
+
+        // Rows into scratch, then columns back into pixels
+        runBands(height, width * height, new Band() {
+            @Override
+            public void run(int first, int end, int[] stack) {
+                for (int y = first; y < end; y++) {
+                    blurLine(pixels, scratch, y * width, 1, width, radius, stack, divide);
+                }
+            }
+        });
+        runBands(width, width * height, new Band() {
+            @Override
+            public void run(int first, int end, int[] stack) {
+                for (int x = first; x < end; x++) {
+                    blurLine(scratch, pixels, x, width, height, radius, stack, divide);
+                }
+            }
+        });
+
+        if (scratch.length > MAX_RETAINED_PIXELS) {
+            mScratch = null;
+        }
+    }
+
+    /**
+     * @return bytes held between calls for buffers and tables
+     */
+    public synchronized long getRetainedBytes() {
+        long ints = 0;
+        if (null != mPixels) {
+            ints += mPixels.length;
+        }
+        if (null != mScratch) {
+            ints += mScratch.length;
+        }
+        if (null != mDivide) {
+            ints += mDivide.length;
+        }
+        for (final int[] stack : mStacks) {
+            if (null != stack) {
+                ints += stack.length;
+            }
+        }
+        return ints * 4;
+    }
+
+    private interface Band {
+        void run(int first, int end, int[] stack);
+    }
+
+    /**
+     * Splits lines 0 to count into one band per thread and waits for them all. Small images
+     * aren't worth handing to other threads, so they run on the calling thread.
+     */
+    private void runBands(final int count, int pixelCount, final Band band) {
+        if (null == mExecutor || pixelCount < MIN_PARALLEL_PIXELS || count < mThreads) {
+            band.run(0, count, mStacks[0]);
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(mThreads);
+        final Throwable[] failure = new Throwable[1];
+        final int bandSize = (count + mThreads - 1) / mThreads;
+        for (int i = 0; i < mThreads; i++) {
+            final int first = Math.min(count, i * bandSize);
+            final int end = Math.min(count, first + bandSize);
+            final int[] stack = mStacks[i];
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        band.run(first, end, stack);
+                    } catch (final Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (final InterruptedException e) {
+                // The bands are using our buffers, so we can't leave before they finish
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (failure) {
+            if (failure[0] instanceof RuntimeException) {
+                throw (RuntimeException) failure[0];
+            } else if (failure[0] instanceof Error) {
+                throw (Error) failure[0];
+            } else if (null != failure[0]) {
+                throw new RuntimeException(failure[0]);
+            }
+        }
+    }
+
+    /**
+     * Stack blurs one row or column of length pixels, starting at start and step apart, from
+     * in to out. stack needs room for (2 * radius + 1) * 3 ints.
+     */
+    /* package */ static void blurLine(int[] in, int[] out, int start, int step, int length,
+                                       int radius, int[] stack, int[] divide) {
+        final int div = radius + radius + 1;
+        final int last = length - 1;
+        int rsum = 0, gsum = 0, bsum = 0;
+        int rinsum = 0, ginsum = 0, binsum = 0;
+        int routsum = 0, goutsum = 0, boutsum = 0;
+
+        for (int i = -radius; i <= radius; i++) {
+            final int p = in[start + Math.min(last, Math.max(i, 0)) * step];
+            final int s = (i + radius) * 3;
+            final int r = (p >> 16) & 0xff;
+            final int g = (p >> 8) & 0xff;
+            final int b = p & 0xff;
+            stack[s] = r;
+            stack[s + 1] = g;
+            stack[s + 2] = b;
+            final int weight = radius + 1 - Math.abs(i);
+            rsum += r * weight;
+            gsum += g * weight;
+            bsum += b * weight;
+            if (i > 0) {
+                rinsum += r;
+                ginsum += g;
+                binsum += b;
+            } else {
+                routsum += r;
+                goutsum += g;
+                boutsum += b;
+            }
+        }
+
+        int stackpointer = radius;
+        int index = start;
+        for (int x = 0; x < length; x++) {
+            out[index] = 0xff000000 | (divide[rsum] << 16) | (divide[gsum] << 8) | divide[bsum];
+            index += step;
+
+            rsum -= routsum;
+            gsum -= goutsum;
+            bsum -= boutsum;
+
+            int s = ((stackpointer - radius + div) % div) * 3;
+            routsum -= stack[s];
+            goutsum -= stack[s + 1];
+            boutsum -= stack[s + 2];
+
+            final int p = in[start + Math.min(x + radius + 1, last) * step];
+            stack[s] = (p >> 16) & 0xff;
+            stack[s + 1] = (p >> 8) & 0xff;
+            stack[s + 2] = p & 0xff;
+
+            rinsum += stack[s];
+            ginsum += stack[s + 1];
+            binsum += stack[s + 2];
+
+            rsum += rinsum;
+            gsum += ginsum;
+            bsum += binsum;
+
+            stackpointer = (stackpointer + 1) % div;
+            s = stackpointer * 3;
+
+            routsum += stack[s];
+            goutsum += stack[s + 1];
+            boutsum += stack[s + 2];
+
+            rinsum -= stack[s];
+            ginsum -= stack[s + 1];
+            binsum -= stack[s + 2];
+        }
+    }
+
+    /**
+     * @return a table of sum / divisor for every weighted sum a line of this radius can produce
+     */
+    private int[] divisionTable(int radius) {
+        if (radius != mDivideRadius) {
+            int divsum = (radius + radius + 2) >> 1;
+            divsum *= divsum;
+            mDivide = new int[256 * divsum];
+            for (int i = 0; i < mDivide.length; i++) {
+                mDivide[i] = i / divsum;
+            }
+            mDivideRadius = radius;
+        }
+        return mDivide;
+    }
+
+    private int[] pixelBuffer(int size) {
+        if (size > MAX_RETAINED_PIXELS) {
+            mPixels = null;
+            return new int[size];
+        }
+        if (null == mPixels || mPixels.length < size) {
+            mPixels = new int[size];
+        }
+        return mPixels;
+    }
+
+    private int[] scratchBuffer(int size) {
+        if (null == mScratch || mScratch.length < size) {
+            mScratch = new int[size];
+        }
+        return mScratch;
+    }
+
+    private final int mThreads;
+    private final ThreadPoolExecutor mExecutor;
+    private final int[][] mStacks;
+    private int[] mPixels;
+    private int[] mScratch;
+    private int[] mDivide;
+    private int mDivideRadius;
+
+    private static BlurEngine sInstance;
+    private static final Object sInstanceLock = new Object();
+    private static final Paint SCALING_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+    // Below this, handing bands to other threads costs more than it saves
+    private static final int MIN_PARALLEL_PIXELS = 64 * 1024;
+    // Buffers for bigger images are dropped after use, rather than held on to
+    private static final int MAX_RETAINED_PIXELS = 512 * 512;
+}
@@ -0,0 +1,41 @@
+package com.mixpanel.android.util;
+
+import java.io.IOException;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A RemoteService that can also make conditional requests. It's separate from RemoteService so that
+ * existing implementations of RemoteService don't have to change; callers check for it and fall back
+ * to performRequest.
+ */
+public interface ConditionalRemoteService extends RemoteService {
+    /**
+     * Like performRequest with no params, but sends the validators of an earlier response
+     * (either may be null) so the server can answer 304 Not Modified instead of a body.
+     *
+     * @return the response, or null if the request couldn't be made
+     */
+    ConditionalResponse performConditionalRequest(String endpointUrl, String etag, String lastModified, SSLSocketFactory socketFactory)
+            throws ServiceUnavailableException, IOException;
+
+    class ConditionalResponse {
+        public ConditionalResponse(byte[] body, boolean notModified, String etag, String lastModified) {
+            this.body = body;
+            this.notModified = notModified;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Empty when notModified
+         */
+        public final byte[] body;
+        public final boolean notModified;
+        /**
+         * Validators of this response, null when the server sent none
+         */
+        public final String etag;
+        public final String lastModified;
+    }
+}
@@ -0,0 +1,97 @@
+package com.mixpanel.android.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The HttpService the library uses when its poster isn't overridden. It adds the request types
+ * that don't go through performRequest, conditional decide requests and streamed image downloads,
+ * which are kept off HttpService so that apps subclassing HttpService to change performRequest
+ * (to add a proxy or headers, say) still see every request.
+ * <p>
+ * Thread-safe: requests keep all their state on the stack, so decide checks for several tokens
+ * are made concurrently through the same instance.
+ */
+public class DefaultHttpService extends HttpService implements ConditionalRemoteService, StreamingRemoteService {
+
+    /**
+     * Sends etag and lastModified as If-None-Match and If-Modified-Since.
+     */
+    @Override
+    public ConditionalResponse performConditionalRequest(String endpointUrl,
+                                                         String etag,
+                                                         String lastModified,
+                                                         SSLSocketFactory socketFactory)
+            throws ServiceUnavailableException, IOException {
+        return request(endpointUrl, null, etag, lastModified, socketFactory, new ResponseReader<ConditionalResponse>() {
+            @Override
+            public ConditionalResponse read(HttpURLConnection connection, InputStream in) throws IOException {
+                final byte[] body = slurp(in);
+                return new ConditionalResponse(body,
+                        connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED,
+                        connection.getHeaderField("ETag"),
+                        connection.getHeaderField("Last-Modified"));
+            }
+        });
+    }
+
+    /**
+     * Copies the body straight to destination as it arrives, checking its size against maxBytes
+     * both from Content-Length, before reading anything, and as it's read.
+     */
+    @Override
+    public long performDownload(String endpointUrl,
+                                final File destination,
+                                final long maxBytes,
+                                SSLSocketFactory socketFactory)
+            throws ServiceUnavailableException, IOException {
+        final Long written = request(endpointUrl, null, null, null, socketFactory, new ResponseReader<Long>() {
+            @Override
+            public Long read(HttpURLConnection connection, InputStream in) throws IOException {
+                final String contentLength = connection.getHeaderField("Content-Length");
+                if (null != contentLength) {
+                    try {
+                        if (Long.parseLong(contentLength) > maxBytes) {
+                            throw new ResponseTooLargeException("Response is " + contentLength + " bytes, more than " + maxBytes);
+                        }
+                    } catch (final NumberFormatException e) {
+                        ; // We'll count as we go
+                    }
+                }
+                return copyLimited(in, destination, maxBytes);
+            }
+        });
+        return null == written ? -1 : written;
+    }
+
+    /**
+     * Writes in to destination, failing once more than maxBytes have been read.
+     *
+     * @return the number of bytes written
+     */
+    private static long copyLimited(final InputStream in, final File destination, final long maxBytes)
+            throws IOException {
+        final OutputStream out = new FileOutputStream(destination);
+        try {
+            long total = 0;
+            int nRead;
+            byte[] data = new byte[8192];
+            while ((nRead = in.read(data, 0, data.length)) != -1) {
+                total += nRead;
+                if (total > maxBytes) {
+                    throw new ResponseTooLargeException("Response is more than " + maxBytes + " bytes");
+                }
+                out.write(data, 0, nRead);
+            }
+            return total;
+        } finally {
+            out.close();
+        }
+    }
+}
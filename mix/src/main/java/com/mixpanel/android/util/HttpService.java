@@ -21,7 +21,9 @@ import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
- * An HTTP utility class for internal use in the Mixpanel library. Not thread-safe.
+ * An HTTP utility class for internal use in the Mixpanel library. Not thread-safe: subclasses
+ * may keep state between requests, so the library only sends requests from several threads at
+ * once through {@link DefaultHttpService}.
  */
 public class HttpService implements RemoteService {
 
@@ -131,9 +133,31 @@ public class HttpService implements RemoteService {
                                  Map<String, Object> params,
                                  SSLSocketFactory socketFactory)
             throws ServiceUnavailableException, IOException {
+        return request(endpointUrl, params, null, null, socketFactory, new ResponseReader<byte[]>() {
+            @Override
+            public byte[] read(HttpURLConnection connection, InputStream in) throws IOException {
+                // 将流解析成字节
+                return slurp(in);
+            }
+        });
+    }
+
+    /**
+     * Sends the request, retrying stale connections, and hands the response to reader. etag and
+     * lastModified, when not null, are sent as validators of an earlier response.
+     *
+     * @return what reader returned, or null if the request couldn't be made
+     */
+    /* package */ <T> T request(String endpointUrl,
+                          Map<String, Object> params,
+                          String etag,
+                          String lastModified,
+                          SSLSocketFactory socketFactory,
+                          ResponseReader<T> reader)
+            throws ServiceUnavailableException, IOException {
         MPLog.v(LOGTAG, "Attempting request to " + endpointUrl);
 
-        byte[] response = null;
+        T response = null;
 
         // the while(retries) loop is a workaround for a bug in some Android HttpURLConnection
         // libraries- The underlying library will attempt to reuse stale connections,
@@ -157,6 +181,12 @@ public class HttpService implements RemoteService {
 
                 connection.setConnectTimeout(2000);
                 connection.setReadTimeout(30000);
+                if (null != etag) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (null != lastModified) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
                 if (null != params) {
                     Uri.Builder builder = new Uri.Builder();
                     for (Map.Entry<String, Object> param : params.entrySet()) {
@@ -178,8 +208,7 @@ public class HttpService implements RemoteService {
                 }
                 // 服务器返回的流
                 in = connection.getInputStream();
-                // 将流解析成字节
-                response = slurp(in);
+                response = reader.read(connection, in);
                 in.close();
                 in = null;
                 succeeded = true;
@@ -215,7 +244,9 @@ public class HttpService implements RemoteService {
                     } catch (final IOException e) {
                         ;
                     }
-                if (null != connection)
+                // A response read to the end leaves its connection to be kept alive and reused by
+                // the next request to the same host, which disconnecting would close
+                if (null != connection && !succeeded)
                     connection.disconnect();
             }
         }
@@ -232,7 +263,7 @@ public class HttpService implements RemoteService {
      * @return
      * @throws IOException
      */
-    private static byte[] slurp(final InputStream inputStream)
+    /* package */ static byte[] slurp(final InputStream inputStream)
             throws IOException {
         final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
@@ -247,5 +278,9 @@ public class HttpService implements RemoteService {
         return buffer.toByteArray();
     }
 
+    /* package */ interface ResponseReader<T> {
+        T read(HttpURLConnection connection, InputStream in) throws IOException;
+    }
+
     private static final String LOGTAG = "MixpanelAPI.Message";
 }
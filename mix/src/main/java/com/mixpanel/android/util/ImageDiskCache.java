@@ -0,0 +1,384 @@
+package com.mixpanel.android.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keeps the image files in one directory within a byte budget, evicting the least recently used
+ * first. Files are written beside their final name and renamed into place, and their sizes are
+ * recorded in a journal, so a torn write is never mistaken for an image.
+ *
+ * The journal is replayed the first time the cache is used, instead of listing and measuring the
+ * whole directory. Files left by versions without a journal are measured a few at a time, and
+ * eviction also only removes a few files per call, so no single call does a large amount of IO.
+ *
+ * There is one instance per directory, shared by every ImageStore using that directory.
+ */
+/* package */ class ImageDiskCache {
+
+    public static ImageDiskCache forDirectory(File directory, String filePrefix, long maxBytes) {
+        synchronized (sCaches) {
+            final String path = directory.getAbsolutePath();
+            ImageDiskCache cache = sCaches.get(path);
+            if (null == cache) {
+                cache = new ImageDiskCache(directory, filePrefix, maxBytes);
+                sCaches.put(path, cache);
+            }
+            return cache;
+        }
+    }
+
+    private ImageDiskCache(File directory, String filePrefix, long maxBytes) {
+        mDirectory = directory;
+        mFilePrefix = filePrefix;
+        mMaxBytes = maxBytes;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mUnmeasured = new LinkedList<String>();
+        mOpened = false;
+    }
+
+    /**
+     * @return the file stored as name, or null if there isn't one or it isn't the size it was written at
+     */
+    public synchronized File get(String name) {
+        open();
+        final Long size = mEntries.get(name);
+        if (null == size) {
+            return null;
+        }
+
+        final File file = new File(mDirectory, name);
+        if (size != UNKNOWN_SIZE && file.length() != size) {
+            MPLog.w(LOGTAG, "Stored image " + name + " is missing or damaged, discarding it");
+            removeEntry(name);
+            return null;
+        }
+
+        appendJournal(READ + " " + name);
+        maintain();
+        return file;
+    }
+
+    /**
+     * @return a temp file beside where name will be stored, to write its contents into before
+     * calling commit. If it's never committed and the process dies before the caller deletes it,
+     * it's deleted the next time the cache is opened.
+     */
+    public synchronized File beginWrite(String name) {
+        // Opening clears away stale temp files, so it has to happen before anyone writes one
+        open();
+        return new File(mDirectory, name + TEMP_SUFFIX);
+    }
+
+    /**
+     * Moves temp, from beginWrite, into place as name, replacing anything already stored under
+     * that name.
+     */
+    public synchronized File commit(String name, File temp) throws IOException {
+        final File file = new File(mDirectory, name);
+        final long length = temp.length();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't move " + temp + " into place");
+        }
+        final Long previous = mEntries.put(name, length);
+        if (null != previous && previous != UNKNOWN_SIZE) {
+            mSize -= previous;
+        }
+        mSize += length;
+        appendJournal(WRITE + " " + name + " " + length);
+        maintain();
+        return file;
+    }
+
+    public synchronized void remove(String name) {
+        open();
+        removeEntry(name);
+    }
+
+    /**
+     * Forgets every entry. The caller is expected to delete the files.
+     */
+    public synchronized void clear() {
+        open();
+        mEntries.clear();
+        mUnmeasured.clear();
+        mSize = 0;
+        rebuildJournal();
+    }
+
+    /**
+     * @return bytes of images stored, not counting files that haven't been measured yet
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    private void open() {
+        if (mOpened) {
+            return;
+        }
+        mOpened = true;
+
+        // Listing only reads names, it doesn't touch the files themselves
+        final String[] names = mDirectory.list();
+        deleteTempFiles(names);
+
+        if (!mJournalFile.exists()) {
+            adoptUnjournaledFiles(names);
+            rebuildJournal();
+            return;
+        }
+
+        BufferedReader reader = null;
+        boolean intact = true;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile), "UTF-8"));
+            if (!JOURNAL_HEADER.equals(reader.readLine())) {
+                intact = false;
+            }
+            String line;
+            while (intact && null != (line = reader.readLine())) {
+                intact = replay(line);
+                mJournalLines++;
+            }
+        } catch (final IOException e) {
+            MPLog.w(LOGTAG, "Can't read image cache journal", e);
+            intact = false;
+        } finally {
+            if (null != reader) {
+                try {
+                    reader.close();
+                } catch (final IOException e) {
+                    ;
+                }
+            }
+        }
+
+        if (!intact) {
+            // Keep whatever was replayed before the damage, and start a clean journal from it
+            rebuildJournal();
+        }
+    }
+
+    private boolean replay(String line) {
+        final String[] parts = line.split(" ");
+        if (parts.length == 3 && WRITE.equals(parts[0])) {
+            final long size;
+            try {
+                size = Long.parseLong(parts[2]);
+            } catch (final NumberFormatException e) {
+                return false;
+            }
+            final Long previous = mEntries.put(parts[1], size);
+            if (null != previous && previous != UNKNOWN_SIZE) {
+                mSize -= previous;
+            }
+            if (size == UNKNOWN_SIZE) {
+                mUnmeasured.add(parts[1]);
+            } else {
+                mSize += size;
+            }
+            return true;
+        } else if (parts.length == 2 && READ.equals(parts[0])) {
+            mEntries.get(parts[1]);
+            return true;
+        } else if (parts.length == 2 && REMOVE.equals(parts[0])) {
+            final Long size = mEntries.remove(parts[1]);
+            if (null != size && size != UNKNOWN_SIZE) {
+                mSize -= size;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Deletes temp files left by writes, or journal rebuilds, that never finished
+     */
+    private void deleteTempFiles(String[] names) {
+        if (null == names) {
+            return;
+        }
+        for (final String name : names) {
+            if (name.endsWith(TEMP_SUFFIX)) {
+                final boolean ignored = new File(mDirectory, name).delete();
+            }
+        }
+    }
+
+    /**
+     * Takes in files written before there was a journal. Only their names are read here;
+     * they're journaled with an unknown size and measured later, a few at a time.
+     */
+    private void adoptUnjournaledFiles(String[] names) {
+        if (null == names) {
+            return;
+        }
+        for (final String name : names) {
+            if (name.startsWith(mFilePrefix) && !name.endsWith(TEMP_SUFFIX)) {
+                mEntries.put(name, UNKNOWN_SIZE);
+                mUnmeasured.add(name);
+            }
+        }
+    }
+
+    /**
+     * Does a bounded amount of upkeep: measures a few unmeasured files, evicts a few least
+     * recently used ones if the cache is over budget, and compacts the journal if it's grown large.
+     */
+    private void maintain() {
+        for (int i = 0; i < MAINTENANCE_BATCH && !mUnmeasured.isEmpty(); i++) {
+            measure(mUnmeasured.removeFirst());
+        }
+
+        final Iterator<Map.Entry<String, Long>> eldest = mEntries.entrySet().iterator();
+        for (int i = 0; i < MAINTENANCE_BATCH && mSize > mMaxBytes && mEntries.size() > 1 && eldest.hasNext(); i++) {
+            final Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            if (entry.getValue() != UNKNOWN_SIZE) {
+                mSize -= entry.getValue();
+            }
+            new File(mDirectory, entry.getKey()).delete();
+            appendJournal(REMOVE + " " + entry.getKey());
+        }
+
+        if (mJournalLines > JOURNAL_COMPACT_LINES && mJournalLines > 2 * mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    private void measure(String name) {
+        // Found by iterating rather than get(), which would make it recently used
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().equals(name)) {
+                if (entry.getValue() == UNKNOWN_SIZE) {
+                    final File file = new File(mDirectory, name);
+                    if (file.exists()) {
+                        entry.setValue(file.length());
+                        mSize += file.length();
+                        appendJournal(WRITE + " " + name + " " + file.length());
+                    } else {
+                        iterator.remove();
+                        appendJournal(REMOVE + " " + name);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private void removeEntry(String name) {
+        final Long size = mEntries.remove(name);
+        if (null != size && size != UNKNOWN_SIZE) {
+            mSize -= size;
+        }
+        new File(mDirectory, name).delete();
+        appendJournal(REMOVE + " " + name);
+    }
+
+    private void appendJournal(String line) {
+        try {
+            if (null == mJournal) {
+                mJournal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFile, true), "UTF-8"));
+            }
+            mJournal.write(line);
+            mJournal.write('\n');
+            mJournal.flush();
+            mJournalLines++;
+        } catch (final IOException e) {
+            MPLog.w(LOGTAG, "Can't write image cache journal", e);
+            closeJournal();
+        }
+    }
+
+    /**
+     * Writes a journal with one line per entry, oldest first, and renames it over the old one
+     */
+    private void rebuildJournal() {
+        closeJournal();
+        final File temp = new File(mDirectory, JOURNAL_FILE + TEMP_SUFFIX);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+            writer.write(JOURNAL_HEADER);
+            writer.write('\n');
+            for (final Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(WRITE + " " + entry.getKey() + " " + entry.getValue());
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(mJournalFile)) {
+                MPLog.w(LOGTAG, "Can't move image cache journal into place");
+                temp.delete();
+            }
+            mJournalLines = mEntries.size();
+        } catch (final IOException e) {
+            MPLog.w(LOGTAG, "Can't write image cache journal", e);
+            temp.delete();
+        } finally {
+            if (null != writer) {
+                try {
+                    writer.close();
+                } catch (final IOException e) {
+                    ;
+                }
+            }
+        }
+    }
+
+    private void closeJournal() {
+        if (null != mJournal) {
+            try {
+                mJournal.close();
+            } catch (final IOException e) {
+                ;
+            }
+            mJournal = null;
+        }
+    }
+
+    private final File mDirectory;
+    private final String mFilePrefix;
+    private final long mMaxBytes;
+    private final File mJournalFile;
+    /**
+     * file name - size in bytes, least recently used first
+     */
+    private final LinkedHashMap<String, Long> mEntries;
+    private final LinkedList<String> mUnmeasured;
+    private boolean mOpened;
+    private long mSize;
+    private int mJournalLines;
+    private Writer mJournal;
+
+    private static final Map<String, ImageDiskCache> sCaches = new HashMap<String, ImageDiskCache>();
+
+    private static final long UNKNOWN_SIZE = -1;
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_HEADER = "MixpanelAPI.ImageDiskCache 1";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String WRITE = "WRITE";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final int MAINTENANCE_BATCH = 8;
+    private static final int JOURNAL_COMPACT_LINES = 2000;
+
+    private static final String LOGTAG = "MixpanelAPI.ImageDiskCache";
+}
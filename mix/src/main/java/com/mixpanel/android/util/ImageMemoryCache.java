@@ -0,0 +1,326 @@
+package com.mixpanel.android.util;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory cache of decoded bitmaps for ImageStore, split into segments with their own locks so
+ * that lookups of different keys don't wait on each other. The segments share one size budget,
+ * and the least recently used entry across all of them is evicted first. Concurrent loads of
+ * the same key share a single load.
+ */
+public class ImageMemoryCache {
+
+    /* package */ interface Loader {
+        Bitmap load() throws ImageStore.CantGetImageException;
+    }
+
+    /**
+     * @param maxSize the budget for all entries, in kilobytes
+     */
+    public ImageMemoryCache(int maxSize) {
+        mMaxSize = maxSize;
+        mSegments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            mSegments[i] = new Segment();
+        }
+        mInFlight = new ConcurrentHashMap<String, Flight>();
+        mSize = new AtomicLong();
+        mClock = new AtomicLong();
+        mHits = new AtomicLong();
+        mMisses = new AtomicLong();
+        mEvictions = new AtomicLong();
+        mLoads = new AtomicLong();
+        mSharedLoads = new AtomicLong();
+    }
+
+    public Bitmap get(String key) {
+        final Bitmap bitmap = peek(key);
+        if (null == bitmap) {
+            mMisses.incrementAndGet();
+        } else {
+            mHits.incrementAndGet();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Caches bitmap for key, unless key already has a bitmap or bitmap is too big to cache at all.
+     *
+     * @return the bitmap cached for key afterwards, or bitmap if it wasn't cached
+     */
+    public Bitmap putIfAbsent(String key, Bitmap bitmap) {
+        final int size = sizeOf(bitmap);
+        if (size > mMaxSize) {
+            return bitmap;
+        }
+
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            final Entry existing = segment.entries.get(key);
+            if (null != existing) {
+                existing.stamp = mClock.incrementAndGet();
+                return existing.bitmap;
+            }
+            segment.entries.put(key, new Entry(bitmap, size, mClock.incrementAndGet()));
+        }
+        mSize.addAndGet(size);
+        trimToSize();
+        return bitmap;
+    }
+
+    /**
+     * Returns the bitmap cached for key, or loads and caches it. If another thread is already
+     * loading key, waits for that load instead of starting another.
+     */
+    /* package */ Bitmap load(String key, Loader loader) throws ImageStore.CantGetImageException {
+        final Bitmap cached = get(key);
+        if (null != cached) {
+            return cached;
+        }
+
+        final Flight flight = new Flight();
+        final Flight existing = mInFlight.putIfAbsent(key, flight);
+        if (null != existing) {
+            mSharedLoads.incrementAndGet();
+            return existing.await();
+        }
+
+        try {
+            // Another load of key may have finished between the get and the putIfAbsent
+            Bitmap bitmap = peek(key);
+            if (null == bitmap) {
+                mLoads.incrementAndGet();
+                bitmap = putIfAbsent(key, loader.load());
+            }
+            flight.finish(bitmap, null);
+            return bitmap;
+        } catch (final ImageStore.CantGetImageException e) {
+            flight.finish(null, e);
+            throw e;
+        } finally {
+            // Unchecked exceptions still have to release anyone waiting
+            if (!flight.isDone()) {
+                flight.finish(null, new ImageStore.CantGetImageException("Image load for " + key + " failed"));
+            }
+            mInFlight.remove(key, flight);
+        }
+    }
+
+    public void remove(String key) {
+        final Segment segment = segmentFor(key);
+        final Entry removed;
+        synchronized (segment) {
+            removed = segment.entries.remove(key);
+        }
+        if (null != removed) {
+            mSize.addAndGet(-removed.size);
+        }
+    }
+
+    /**
+     * Removes every entry whose key starts with prefix
+     */
+    public void removeByPrefix(String prefix) {
+        for (final Segment segment : mSegments) {
+            synchronized (segment) {
+                final Iterator<Map.Entry<String, Entry>> iterator = segment.entries.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    final Map.Entry<String, Entry> entry = iterator.next();
+                    if (entry.getKey().startsWith(prefix)) {
+                        iterator.remove();
+                        mSize.addAndGet(-entry.getValue().size);
+                    }
+                }
+            }
+        }
+    }
+
+    public void evictAll() {
+        for (final Segment segment : mSegments) {
+            synchronized (segment) {
+                for (final Entry entry : segment.entries.values()) {
+                    mSize.addAndGet(-entry.size);
+                }
+                segment.entries.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the size of all entries, in kilobytes
+     */
+    public long size() {
+        return mSize.get();
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    /**
+     * @return the loads that actually ran
+     */
+    public long getLoadCount() {
+        return mLoads.get();
+    }
+
+    /**
+     * @return the loads that waited for another thread's load of the same key instead
+     */
+    public long getSharedLoadCount() {
+        return mSharedLoads.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ImageMemoryCache[size=" + size() + "KB, max=" + mMaxSize + "KB, hits=" + getHitCount() +
+                ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() +
+                ", loads=" + getLoadCount() + ", shared loads=" + getSharedLoadCount() + "]";
+    }
+
+    private Bitmap peek(String key) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            final Entry entry = segment.entries.get(key);
+            if (null == entry) {
+                return null;
+            }
+            entry.stamp = mClock.incrementAndGet();
+            return entry.bitmap;
+        }
+    }
+
+    /**
+     * Evicts the least recently used entry of all the segments until the cache is within budget.
+     * Each segment keeps its entries in access order, so only the head of each needs comparing.
+     */
+    private void trimToSize() {
+        while (mSize.get() > mMaxSize) {
+            Segment oldestSegment = null;
+            String oldestKey = null;
+            long oldestStamp = Long.MAX_VALUE;
+            for (final Segment segment : mSegments) {
+                synchronized (segment) {
+                    if (!segment.entries.isEmpty()) {
+                        final Map.Entry<String, Entry> eldest = segment.entries.entrySet().iterator().next();
+                        if (eldest.getValue().stamp < oldestStamp) {
+                            oldestSegment = segment;
+                            oldestKey = eldest.getKey();
+                            oldestStamp = eldest.getValue().stamp;
+                        }
+                    }
+                }
+            }
+
+            if (null == oldestSegment) {
+                return;
+            }
+
+            synchronized (oldestSegment) {
+                final Entry entry = oldestSegment.entries.get(oldestKey);
+                // If it was used or replaced since we looked, look again
+                if (null != entry && entry.stamp == oldestStamp) {
+                    oldestSegment.entries.remove(oldestKey);
+                    mSize.addAndGet(-entry.size);
+                    mEvictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        // Spread the high bits down, since keys often differ only in their last characters
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return mSegments[hash & (SEGMENTS - 1)];
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight() / 1024;
+    }
+
+    private static class Entry {
+        public Entry(Bitmap bitmap, int size, long stamp) {
+            this.bitmap = bitmap;
+            this.size = size;
+            this.stamp = stamp;
+        }
+
+        public final Bitmap bitmap;
+        public final int size;
+        public long stamp;
+    }
+
+    private static class Segment {
+        // Access ordered, so the eldest entry is the least recently used
+        public final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * A load in progress, which other threads asking for the same key wait on
+     */
+    private static class Flight {
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        public synchronized void finish(Bitmap bitmap, ImageStore.CantGetImageException failure) {
+            mBitmap = bitmap;
+            mFailure = failure;
+            mDone = true;
+            notifyAll();
+        }
+
+        public synchronized Bitmap await() throws ImageStore.CantGetImageException {
+            while (!mDone) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ImageStore.CantGetImageException("Interrupted waiting for image", e);
+                }
+            }
+            if (null != mFailure) {
+                throw new ImageStore.CantGetImageException(mFailure.getMessage(), mFailure);
+            }
+            return mBitmap;
+        }
+
+        private boolean mDone;
+        private Bitmap mBitmap;
+        private ImageStore.CantGetImageException mFailure;
+    }
+
+    private final int mMaxSize;
+    private final Segment[] mSegments;
+    private final ConcurrentHashMap<String, Flight> mInFlight;
+    private final AtomicLong mSize;
+    private final AtomicLong mClock;
+    private final AtomicLong mHits;
+    private final AtomicLong mMisses;
+    private final AtomicLong mEvictions;
+    private final AtomicLong mLoads;
+    private final AtomicLong mSharedLoads;
+
+    // Must be a power of two
+    private static final int SEGMENTS = 8;
+}
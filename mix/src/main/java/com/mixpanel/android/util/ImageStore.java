@@ -3,7 +3,6 @@ package com.mixpanel.android.util;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.support.v4.util.LruCache;
 import android.util.Base64;
 
 import com.mixpanel.android.mpmetrics.MPConfig;
@@ -19,8 +18,10 @@ import java.security.NoSuchAlgorithmException;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
- * ABSOLUTELY NOT thread, or even process safe.
- * Writes and reads files and directories at known paths, and uses a shared instance of MessageDigest.
+ * Thread safe, but NOT process safe.
+ * Writes and reads files and directories at known paths, and uses a shared instance of MessageDigest,
+ * which is locked while it's in use. Downloads of the same url are serialized, so only the first
+ * one touches the network.
  */
 public class ImageStore {
     public static class CantGetImageException extends Exception {
@@ -34,7 +35,7 @@ public class ImageStore {
     }
 
     public ImageStore(Context context, String moduleName) {
-        this(context, DEFAULT_DIRECTORY_PREFIX + moduleName, new HttpService());
+        this(context, DEFAULT_DIRECTORY_PREFIX + moduleName, new DefaultHttpService());
     }
 
     public ImageStore(Context context, String directoryName, RemoteService poster) {
@@ -55,6 +56,7 @@ public class ImageStore {
         }
 
         mDigest = useDigest;
+        mDiskCache = ImageDiskCache.forDirectory(mDirectory, FILE_PREFIX, mConfig.getImageCacheMaxDiskSize());
 
         // 创建LRUCache
         if (sMemoryCache == null) {
@@ -63,12 +65,7 @@ public class ImageStore {
                     int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
                     int cacheSize = maxMemory / mConfig.getImageCacheMaxMemoryFactor();
 
-                    sMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
-                        @Override
-                        protected int sizeOf(String key, Bitmap bitmap) {
-                            return bitmap.getRowBytes() * bitmap.getHeight() / 1024;
-                        }
-                    };
+                    sMemoryCache = new ImageMemoryCache(cacheSize);
                 }
             }
         }
@@ -82,39 +79,41 @@ public class ImageStore {
      * @throws CantGetImageException
      */
     public File getImageFile(String url) throws CantGetImageException {
-        final File file = storedFile(url);
-        byte[] bytes = null;
+        synchronized (sDownloadLocks[(url.hashCode() & Integer.MAX_VALUE) % sDownloadLocks.length]) {
+            return getImageFileLocked(url);
+        }
+    }
 
-        if (file == null || !file.exists()) {
+    private File getImageFileLocked(String url) throws CantGetImageException {
+        final String name = storedName(url);
+        File file = null == name ? null : mDiskCache.get(name);
+
+        if (file == null) {
+            if (null == name) {
+                throw new CantGetImageException("Images can't be stored on this platform");
+            }
+
+            // 直接写入临时文件, 图片不能过大
+            final File temp = mDiskCache.beginWrite(name);
             try {
                 final SSLSocketFactory factory = mConfig.getSSLSocketFactory();
-                bytes = mPoster.performRequest(url, null, factory);
+                final long written = download(url, temp, factory);
+                if (written < 0) {
+                    throw new CantGetImageException("No image was returned from " + url);
+                }
+                file = mDiskCache.commit(name, temp);
+            } catch (StreamingRemoteService.ResponseTooLargeException e) {
+                throw new CantGetImageException("Image at " + url + " is too large to store", e);
+            } catch (FileNotFoundException e) {
+                throw new CantGetImageException("It appears that ImageStore is misconfigured, or disk storage is unavailable- can't write to bitmap directory", e);
             } catch (IOException e) {
                 throw new CantGetImageException("Can't download bitmap", e);
             } catch (RemoteService.ServiceUnavailableException e) {
                 throw new CantGetImageException("Couldn't download image due to service availability", e);
-            }
-
-            if (null != bytes) {
-                // 图片不能过大
-                if (null != file && bytes.length < MAX_BITMAP_SIZE) {
-                    OutputStream out = null;
-                    try {
-                        out = new FileOutputStream(file);
-                        out.write(bytes);
-                    } catch (FileNotFoundException e) {
-                        throw new CantGetImageException("It appears that ImageStore is misconfigured, or disk storage is unavailable- can't write to bitmap directory", e);
-                    } catch (IOException e) {
-                        throw new CantGetImageException("Can't store bitmap", e);
-                    } finally {
-                        if (null != out) {
-                            try {
-                                out.close();
-                            } catch (IOException e) {
-                                MPLog.w(LOGTAG, "Problem closing output file", e);
-                            }
-                        }
-                    }
+            } finally {
+                // Only left behind if the download failed part way
+                if (temp.exists()) {
+                    final boolean ignored = temp.delete();
                 }
             }
         }
@@ -122,20 +121,60 @@ public class ImageStore {
         return file;
     }
 
-    public Bitmap getImage(String url) throws CantGetImageException {
-        // 从缓存中获取图片
-        Bitmap cachedBitmap = getBitmapFromMemCache(url);
-        // 缓存中没有
-        if (cachedBitmap == null) {
-            //  下载图片至本地
-            final File imageFile = getImageFile(url);
-            // 加载至内存中
-            cachedBitmap = decodeImage(imageFile);
-            // 添加到LRUCache
-            addBitmapToMemoryCache(url, cachedBitmap);
+    /**
+     * Streams the image into destination when the poster can, and otherwise reads it into memory
+     * with performRequest and writes it out.
+     *
+     * @return the number of bytes written, or -1 if the request couldn't be made
+     */
+    private long download(String url, File destination, SSLSocketFactory factory)
+            throws RemoteService.ServiceUnavailableException, IOException {
+        if (mPoster instanceof StreamingRemoteService) {
+            return ((StreamingRemoteService) mPoster).performDownload(url, destination, MAX_BITMAP_SIZE, factory);
+        }
+
+        final byte[] bytes = mPoster.performRequest(url, null, factory);
+        if (null == bytes) {
+            return -1;
+        }
+        if (bytes.length > MAX_BITMAP_SIZE) {
+            throw new StreamingRemoteService.ResponseTooLargeException("Response is " + bytes.length + " bytes, more than " + MAX_BITMAP_SIZE);
+        }
+        final OutputStream out = new FileOutputStream(destination);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
         }
+        return bytes.length;
+    }
 
-        return cachedBitmap;
+    public Bitmap getImage(String url) throws CantGetImageException {
+        return getImage(url, 0, 0);
+    }
+
+    public Bitmap getImage(String url, int targetWidth, int targetHeight) throws CantGetImageException {
+        return getImage(url, targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Returns the image at url, decoded at the smallest power of two fraction of its size that is
+     * still at least targetWidth by targetHeight. A target of zero leaves that side unconstrained,
+     * so getImage(url, 0, 0) decodes at full size. Use RGB_565 only for images without alpha.
+     */
+    public Bitmap getImage(final String url, final int targetWidth, final int targetHeight, final Bitmap.Config config)
+            throws CantGetImageException {
+        final String key = memoryCacheKey(url, targetWidth, targetHeight, config);
+        // 从缓存中获取图片, 缓存中没有就加载, 同时请求同一张图片的线程共用一次加载
+        return sMemoryCache.load(key, new ImageMemoryCache.Loader() {
+            @Override
+            public Bitmap load() throws CantGetImageException {
+                //  下载图片至本地
+                final File imageFile = getImageFile(url);
+                // 加载至内存中
+                return decodeImage(imageFile, targetWidth, targetHeight, config);
+            }
+        });
     }
 
     /**
@@ -145,17 +184,28 @@ public class ImageStore {
      * @return
      * @throws CantGetImageException
      */
-    private static Bitmap decodeImage(File file) throws CantGetImageException {
+    private static Bitmap decodeImage(File file, int targetWidth, int targetHeight, Bitmap.Config config)
+            throws CantGetImageException {
         BitmapFactory.Options option = new BitmapFactory.Options();
         option.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(file.getAbsolutePath(), option);
-        float imageSize = (float) option.outHeight * option.outWidth;
+
+        final int sampleSize = calculateSampleSize(option.outWidth, option.outHeight, targetWidth, targetHeight);
+        final int width = option.outWidth / sampleSize;
+        final int height = option.outHeight / sampleSize;
+        final int bytesPerPixel = config == Bitmap.Config.RGB_565 ? 2 : 4;
+        float imageSize = (float) width * height * bytesPerPixel;
         // 图片大小过大,内存不足
         if (imageSize > getAvailableMemory()) {
             throw new CantGetImageException("Do not have enough memory for the image");
         }
+
+        option.inJustDecodeBounds = false;
+        option.inSampleSize = sampleSize;
+        option.inPreferredConfig = config;
+
         // 解析
-        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        final Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), option);
         // 无法打开..或被删除了...
         if (null == bitmap) {
             final boolean ignored = file.delete();
@@ -165,6 +215,19 @@ public class ImageStore {
         return bitmap;
     }
 
+    /* package */ static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0 || (targetWidth <= 0 && targetHeight <= 0)) {
+            return sampleSize;
+        }
+
+        while ((targetWidth <= 0 || width / (sampleSize * 2) >= targetWidth) &&
+                (targetHeight <= 0 || height / (sampleSize * 2) >= targetHeight)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
     private static float getAvailableMemory() {
         Runtime runtime = Runtime.getRuntime();
         float used = runtime.totalMemory() - runtime.freeMemory();  // used      = heap - free
@@ -172,6 +235,7 @@ public class ImageStore {
     }
 
     public void clearStorage() {
+        mDiskCache.clear();
         File[] files = mDirectory.listFiles();
         int length = files.length;
         for (int i = 0; i < length; i++) {
@@ -186,61 +250,78 @@ public class ImageStore {
     }
 
     public void deleteStorage(String url) {
-        final File file = storedFile(url);
-        if (null != file) {
-            final boolean ignored = file.delete();
-            removeBitmapFromMemCache(url);
+        final String name = storedName(url);
+        if (null != name) {
+            mDiskCache.remove(name);
+            // Every size decoded from url goes with it
+            sMemoryCache.removeByPrefix(url + KEY_SEPARATOR);
         }
     }
 
-    private File storedFile(String url) {
+    private String storedName(String url) {
         if (null == mDigest) {
             return null;
         }
 
-        final byte[] hashed = mDigest.digest(url.getBytes());
-        final String safeName = FILE_PREFIX + Base64.encodeToString(hashed, Base64.URL_SAFE | Base64.NO_WRAP);
-        return new File(mDirectory, safeName);
+        final byte[] hashed;
+        synchronized (mDigest) {
+            hashed = mDigest.digest(url.getBytes());
+        }
+        return FILE_PREFIX + Base64.encodeToString(hashed, Base64.URL_SAFE | Base64.NO_WRAP);
+    }
+
+    /**
+     * Memory cache entries are kept per decoded size and config, not just per url
+     */
+    public static String memoryCacheKey(String url, int targetWidth, int targetHeight, Bitmap.Config config) {
+        return url + KEY_SEPARATOR + targetWidth + "x" + targetHeight + KEY_SEPARATOR + config;
     }
 
     public static void addBitmapToMemoryCache(String key, Bitmap bitmap) {
-        if (getBitmapFromMemCache(key) == null) {
-            synchronized (sMemoryCache) {
-                sMemoryCache.put(key, bitmap);
-            }
-        }
+        sMemoryCache.putIfAbsent(key, bitmap);
     }
 
     public static Bitmap getBitmapFromMemCache(String key) {
-        synchronized (sMemoryCache) {
-            return sMemoryCache.get(key);
-        }
+        return sMemoryCache.get(key);
     }
 
     public static void removeBitmapFromMemCache(String key) {
-        synchronized (sMemoryCache) {
-            sMemoryCache.remove(key);
-        }
+        sMemoryCache.remove(key);
     }
 
     public static void clearMemCache() {
-        synchronized (sMemoryCache) {
-            sMemoryCache.evictAll();
-        }
+        sMemoryCache.evictAll();
+    }
+
+    /**
+     * @return the shared memory cache, for its hit, miss and eviction counts
+     */
+    public static ImageMemoryCache getMemoryCache() {
+        return sMemoryCache;
     }
 
     private final File mDirectory;
     private final RemoteService mPoster;
     private final MessageDigest mDigest;
     private final MPConfig mConfig;
+    private final ImageDiskCache mDiskCache;
     /**
      *
      */
-    private static LruCache<String, Bitmap> sMemoryCache;
+    private static volatile ImageMemoryCache sMemoryCache;
 
     private static final String DEFAULT_DIRECTORY_PREFIX = "MixpanelAPI.Images.";
     private static final int MAX_BITMAP_SIZE = 10000000; // 10 MB
     private static final String FILE_PREFIX = "MP_IMG_";
+    private static final String KEY_SEPARATOR = "#";
+    private static final int DOWNLOAD_LOCKS = 16;
+    // Downloads of urls that hash to the same lock wait for each other
+    private static final Object[] sDownloadLocks = new Object[DOWNLOAD_LOCKS];
+    static {
+        for (int i = 0; i < sDownloadLocks.length; i++) {
+            sDownloadLocks[i] = new Object();
+        }
+    }
 
     @SuppressWarnings("unused")
     private static final String LOGTAG = "MixpanelAPI.ImageStore";
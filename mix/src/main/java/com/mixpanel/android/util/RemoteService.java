@@ -8,7 +8,10 @@ import java.util.Map;
 
 import javax.net.ssl.SSLSocketFactory;
 
-
+/**
+ * Sends the library's requests. Implementations other than {@link DefaultHttpService} aren't
+ * assumed to be thread-safe, and are only ever asked for one request at a time.
+ */
 public interface RemoteService {
     boolean isOnline(Context context, OfflineMode offlineMode);
 
@@ -0,0 +1,31 @@
+package com.mixpanel.android.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A RemoteService that can write a response straight to a file. It's separate from RemoteService so
+ * that existing implementations of RemoteService don't have to change; callers check for it and fall
+ * back to performRequest.
+ */
+public interface StreamingRemoteService extends RemoteService {
+    /**
+     * Downloads endpointUrl straight into destination, without holding the body in memory.
+     * Throws ResponseTooLargeException as soon as the body is known to be larger than maxBytes,
+     * in which case destination holds only part of it and should be discarded.
+     *
+     * @return the number of bytes written, or -1 if the request couldn't be made
+     */
+    long performDownload(String endpointUrl, File destination, long maxBytes, SSLSocketFactory socketFactory)
+            throws ServiceUnavailableException, IOException;
+
+    class ResponseTooLargeException extends IOException {
+        private static final long serialVersionUID = 3395812906542398412L;
+
+        public ResponseTooLargeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package com.mixpanel.android.viewcrawler;
 
+import android.annotation.TargetApi;
+import android.util.LruCache;
 import android.view.View;
 
+import com.mixpanel.android.mpmetrics.MPConfig;
 import com.mixpanel.android.util.MPLog;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 
+@TargetApi(MPConfig.UI_FEATURES_MIN_API)
 /* package */ class Caller {
 
 
@@ -132,6 +137,10 @@ import java.lang.reflect.Method;
         return type;
     }
 
+    /**
+     * Looks up the method in the process-wide cache before falling back to a scan of
+     * klass.getMethods(), which copies the class's whole public method table on every call.
+     */
     private Method pickMethod(Class<?> klass) {
         // 配置文件中的 方法参数类型
         final Class<?>[] argumentTypes = new Class[mMethodArgs.length];
@@ -139,6 +148,19 @@ import java.lang.reflect.Method;
             argumentTypes[i] = mMethodArgs[i].getClass();
         }
 
+        final MethodKey key = new MethodKey(klass, mMethodName, argumentTypes, mMethodResultType);
+        Method method = sMethodCache.get(key);
+        if (null == method) {
+            method = findMethod(klass, argumentTypes);
+            if (null != method) {
+                sMethodCache.put(key, method);
+            }
+        }
+
+        return method;
+    }
+
+    private Method findMethod(Class<?> klass, Class<?>[] argumentTypes) {
         for (final Method method : klass.getMethods()) {
             final String foundName = method.getName();
             final Class<?>[] params = method.getParameterTypes();
@@ -176,12 +198,56 @@ import java.lang.reflect.Method;
         return null;
     }
 
+    private static class MethodKey {
+        public MethodKey(Class<?> targetClass, String methodName, Class<?>[] argumentTypes, Class<?> resultType) {
+            mTargetClass = targetClass;
+            mMethodName = methodName;
+            mArgumentTypes = argumentTypes;
+            mResultType = resultType;
+            mHashCode = ((targetClass.hashCode() * 31 + methodName.hashCode()) * 31 +
+                    Arrays.hashCode(argumentTypes)) * 31 + resultType.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MethodKey)) {
+                return false;
+            }
+
+            final MethodKey other = (MethodKey) o;
+            return mTargetClass == other.mTargetClass &&
+                    mResultType == other.mResultType &&
+                    mMethodName.equals(other.mMethodName) &&
+                    Arrays.equals(mArgumentTypes, other.mArgumentTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        private final Class<?> mTargetClass;
+        private final String mMethodName;
+        private final Class<?>[] mArgumentTypes;
+        private final Class<?> mResultType;
+        private final int mHashCode;
+    }
+
     private final String mMethodName;
     private final Object[] mMethodArgs;
     private final Class<?> mMethodResultType;
     private final Class<?> mTargetClass;
     private final Method mTargetMethod;
 
+    private static final int METHOD_CACHE_SIZE = 512;
+
+    // Methods found by pickMethod, shared by every Caller. Misses aren't cached, since
+    // they end in a NoSuchMethodException and the edit being discarded anyway.
+    private static final LruCache<MethodKey, Method> sMethodCache = new LruCache<MethodKey, Method>(METHOD_CACHE_SIZE);
+
     @SuppressWarnings("unused")
     private static final String LOGTAG = "MixpanelABTest.Caller";
 }
@@ -3,6 +3,7 @@ package com.mixpanel.android.viewcrawler;
 import android.app.Activity;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewTreeObserver;
@@ -10,6 +11,8 @@ import android.view.ViewTreeObserver;
 import com.mixpanel.android.util.MPLog;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -75,11 +78,18 @@ import java.util.Set;
         MPLog.v("EditState", "setEdits , newEdits.size = " + newEdits.size());
         // Delete images that are no longer needed
 
+        // Parsed edits are reused across updates. A visitor that carries over keeps its changes in
+        // place, since cleaning it up here would undo them until the new binding visits again.
+        final Set<ViewVisitor> carriedOver = new HashSet<ViewVisitor>();
+        for (final List<ViewVisitor> visitors : newEdits.values()) {
+            carriedOver.addAll(visitors);
+        }
+
         synchronized (mCurrentEdits) {
             for (final EditBinding stale : mCurrentEdits) {
                 // 停止循环
                 // 清除缓存
-                stale.kill();
+                stale.kill(carriedOver);
             }
             //清空
             mCurrentEdits.clear();
@@ -89,12 +99,54 @@ import java.util.Set;
             //清空
             mIntendedEdits.clear();
             //将传入的信息 转存到mIntendedEdits 集合中
-            mIntendedEdits.putAll(newEdits);
+            for (final Map.Entry<String, List<ViewVisitor>> entry : newEdits.entrySet()) {
+                mIntendedEdits.put(entry.getKey(), batchLayoutUpdates(entry.getValue()));
+            }
         }
 
         applyEditsOnUiThread();
     }
 
+    /**
+     * Replaces layout updates that share a path with one LayoutUpdateBatch, so a RelativeLayout
+     * changed by many of them is checked and laid out once per visit instead of once per update.
+     */
+    private static List<ViewVisitor> batchLayoutUpdates(List<ViewVisitor> visitors) {
+        final Map<String, List<ViewVisitor.LayoutUpdateVisitor>> updatesByPath =
+                new HashMap<String, List<ViewVisitor.LayoutUpdateVisitor>>();
+        for (final ViewVisitor visitor : visitors) {
+            if (visitor instanceof ViewVisitor.LayoutUpdateVisitor) {
+                final String pathKey = visitor.getPath().toString();
+                List<ViewVisitor.LayoutUpdateVisitor> updates = updatesByPath.get(pathKey);
+                if (null == updates) {
+                    updates = new ArrayList<ViewVisitor.LayoutUpdateVisitor>();
+                    updatesByPath.put(pathKey, updates);
+                }
+                updates.add((ViewVisitor.LayoutUpdateVisitor) visitor);
+            }
+        }
+
+        final List<ViewVisitor> batched = new ArrayList<ViewVisitor>(visitors.size());
+        for (final ViewVisitor visitor : visitors) {
+            if (!(visitor instanceof ViewVisitor.LayoutUpdateVisitor)) {
+                batched.add(visitor);
+                continue;
+            }
+
+            // The batch takes the place of the first update on its path
+            final List<ViewVisitor.LayoutUpdateVisitor> updates = updatesByPath.remove(visitor.getPath().toString());
+            if (null == updates) {
+                continue;
+            } else if (updates.size() == 1) {
+                batched.add(visitor);
+            } else {
+                batched.add(new ViewVisitor.LayoutUpdateBatch(updates));
+            }
+        }
+
+        return batched;
+    }
+
     /**
      * 判断是否在主线程中,如果不是则切换到主线程中
      * <p>
@@ -178,6 +230,7 @@ import java.util.Set;
     Should be instantiated and live on the UI thread */
     private static class EditBinding implements
             ViewTreeObserver.OnGlobalLayoutListener,
+            ViewTreeObserver.OnScrollChangedListener,
             Runnable {
         /**
          * @param viewRoot        DecorView.getRootView()
@@ -191,12 +244,14 @@ import java.util.Set;
             mHandler = uiThreadHandler;
             mAlive = true;
             mDying = false;
+            mKeptEdits = Collections.emptySet();
 
             final ViewTreeObserver observer = viewRoot.getViewTreeObserver();
             //防止出现异常,必须先判断是否存活
             if (observer.isAlive()) {
                 //注册回调,在视图发生变化时,或者可见度发生变化,则会执行run
                 observer.addOnGlobalLayoutListener(this);
+                observer.addOnScrollChangedListener(this);
             }
             //手动开启run循环
             run();
@@ -207,7 +262,42 @@ import java.util.Set;
          */
         @Override
         public void onGlobalLayout() {
-            run();
+            if (!mAlive) {
+                return;
+            }
+
+            // A layout can change anything, not just attach rows, so it gets a full visit. Layouts
+            // can come every frame though, so those soon after a visit wait for the next one.
+            final long sinceVisitMillis = SystemClock.uptimeMillis() - mLastVisitMillis;
+            if (sinceVisitMillis >= MIN_LAYOUT_VISIT_MILLIS) {
+                run();
+            } else {
+                rebind();
+                mHandler.removeCallbacks(this);
+                mHandler.postDelayed(this, MIN_LAYOUT_VISIT_MILLIS - sinceVisitMillis);
+            }
+        }
+
+        /**
+         * Lists and RecyclerViews attach new rows while scrolling
+         */
+        @Override
+        public void onScrollChanged() {
+            rebind();
+        }
+
+        /**
+         * Binds only the rows newly attached to known scrolling containers when possible,
+         * leaving the full rescan to the next run()
+         */
+        private void rebind() {
+            if (!mAlive) {
+                return;
+            }
+
+            if (null == mViewRoot.get() || mDying || !mEdit.visitAttachedChildren()) {
+                run();
+            }
         }
 
         @Override
@@ -236,13 +326,18 @@ import java.util.Set;
             //  mEdit 是 EventTriggeringVisitor 类型的
             // 具体逻辑: 找到指定view , 给指定view 设置 Accessibility
             mEdit.visit(viewRoot);
+            mLastVisitMillis = SystemClock.uptimeMillis();
             //移除当前消息队列中的Runnable
             mHandler.removeCallbacks(this);
             //另外发送一条message 到消息队列中,延迟1s
             mHandler.postDelayed(this, 1000);
         }
 
-        public void kill() {
+        /**
+         * @param keptEdits edits that other bindings go on applying, whose changes are left in place
+         */
+        public void kill(Set<ViewVisitor> keptEdits) {
+            mKeptEdits = keptEdits;
             mDying = true;
             // 需要在run()方法中 做一些 清除 AccesibilityDelegate 的操作
             mHandler.post(this);
@@ -258,11 +353,12 @@ import java.util.Set;
                     final ViewTreeObserver observer = viewRoot.getViewTreeObserver();
                     if (observer.isAlive()) {
                         observer.removeGlobalOnLayoutListener(this); // Deprecated Name
+                        observer.removeOnScrollChangedListener(this);
                     }
                 }
                 //AddAccessibilityEventVisitor.cleanup()
                 //移除控件的AccesibilityDelegate!!!!!
-                mEdit.cleanup();
+                mEdit.cleanupExcept(mKeptEdits);
             }
             mAlive = false;
         }
@@ -271,10 +367,18 @@ import java.util.Set;
          * 用来控制结束循环
          */
         private volatile boolean mDying;
+        /**
+         * Edits that cleanUp leaves in place, because a newer binding has taken them over
+         */
+        private volatile Set<ViewVisitor> mKeptEdits;
         /**
          * 当前循环是否继续
          */
         private boolean mAlive;
+        /**
+         * Uptime of the last full visit, layouts are throttled against it
+         */
+        private long mLastVisitMillis;
         /**
          * 正常情况下是 DecorView
          * <p>
@@ -295,6 +399,8 @@ import java.util.Set;
          * 运行在主线程的Handler
          */
         private final Handler mHandler;
+
+        private static final long MIN_LAYOUT_VISIT_MILLIS = 100;
     }
 
     /**
@@ -1,27 +1,39 @@
 package com.mixpanel.android.viewcrawler;
 
+import android.annotation.TargetApi;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import com.mixpanel.android.java_websocket.client.WebSocketClient;
 import com.mixpanel.android.java_websocket.drafts.Draft_17;
 import com.mixpanel.android.java_websocket.exceptions.NotSendableException;
 import com.mixpanel.android.java_websocket.exceptions.WebsocketNotConnectedException;
 import com.mixpanel.android.java_websocket.framing.Framedata;
 import com.mixpanel.android.java_websocket.handshake.ServerHandshake;
+import com.mixpanel.android.mpmetrics.MPConfig;
 import com.mixpanel.android.util.MPLog;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.StringReader;
 import java.net.Socket;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * EditorClient should handle all communication to and from the socket. It should be fairly naive and
  * only know how to delegate messages to the ABHandler class.
  */
+@TargetApi(MPConfig.UI_FEATURES_MIN_API)
 /* package */ class EditorConnection {
 
     public class EditorConnectionException extends IOException {
@@ -34,17 +46,19 @@ import java.nio.ByteBuffer;
 
     /**
      * 该接口声明了 各种与web端编辑页面交互的 行为
+     * <p>
+     * Requests are handed the payload of their message, not the whole message.
      */
     public interface Editor {
-        void sendSnapshot(JSONObject message);
+        void sendSnapshot(JSONObject payload);
 
-        void performEdit(JSONObject message);
+        void performEdit(JSONObject payload);
 
-        void clearEdits(JSONObject message);
+        void clearEdits(JSONObject payload);
 
-        void bindEvents(JSONObject message);
+        void bindEvents(JSONObject payload);
 
-        void setTweaks(JSONObject message);
+        void setTweaks(JSONObject payload);
 
         void sendDeviceInfo();
 
@@ -78,21 +92,178 @@ import java.nio.ByteBuffer;
         return mClient.isOpen();
     }
 
+    /**
+     * @return bytes waiting to be written to the editor
+     */
+    public long getOutboundQueuedBytes() {
+        return mClient.getOutboundQueuedBytes();
+    }
+
+    /**
+     * @return bytes written to the editor since the connection was made
+     */
+    public long getOutboundBytesWritten() {
+        return mClient.getOutboundBytesWritten();
+    }
+
+    /**
+     * Everything sent from here to finishSnapshot is one snapshot, which the next snapshot
+     * replaces if the editor hasn't started receiving it yet.
+     *
+     * @return false if the editor is too far behind to be sent another snapshot
+     */
+    public boolean startSnapshot() {
+        return mClient.beginReplaceableFrames();
+    }
+
+    public void finishSnapshot() {
+        mClient.endReplaceableFrames();
+    }
+
+    /**
+     * @return snapshots replaced by a later one before the editor got them
+     */
+    public long getReplacedSnapshots() {
+        return mClient.getReplacedFrameGroups();
+    }
+
+    /**
+     * @return snapshots that weren't sent because the editor was too far behind
+     */
+    public long getSkippedSnapshots() {
+        return mClient.getSkippedFrameGroups();
+    }
+
     public BufferedOutputStream getBufferedOutputStream() {
-        return new BufferedOutputStream(new WebSocketOutputStream());
+        return getBufferedOutputStream(DEFAULT_FRAGMENT_SIZE);
+    }
+
+    /**
+     * Everything written to the returned stream is sent as a single TEXT message, in fragments of
+     * fragmentSize bytes. Flushing doesn't send partial fragments, the message is finished when
+     * the stream is closed.
+     */
+    public BufferedOutputStream getBufferedOutputStream(int fragmentSize) {
+        return new BufferedOutputStream(new WebSocketOutputStream(Framedata.Opcode.TEXT, fragmentSize), fragmentSize);
+    }
+
+    /**
+     * Sends data as a single BINARY message, in fragments of fragmentSize bytes.
+     */
+    public void sendBinary(byte[] data, int fragmentSize)
+            throws EditorConnectionException {
+        final WebSocketOutputStream out = new WebSocketOutputStream(Framedata.Opcode.BINARY, fragmentSize);
+        out.write(data, 0, data.length);
+        out.close();
+    }
+
+    /**
+     * The type of a message from the editor, and its payload
+     */
+    /* package */ static class EditorMessage {
+        public EditorMessage(String type, JSONObject payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        /**
+         * null if the message had none
+         */
+        public final String type;
+        /**
+         * null if the message had none, or if its type is one no handler takes a payload for
+         */
+        public final JSONObject payload;
+    }
+
+    /**
+     * Reads a message in a single pass. Only the payload is built into a JSONObject, and only
+     * for the types handlers take one for, the rest of the message is skipped over.
+     */
+    /* package */ static EditorMessage readMessage(String message) throws IOException, JSONException {
+        final JsonReader reader = new JsonReader(new StringReader(message));
+        try {
+            String type = null;
+            JSONObject payload = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                final JsonToken next = reader.peek();
+                if ("type".equals(name) && next == JsonToken.STRING) {
+                    type = reader.nextString();
+                } else if ("payload".equals(name) && next == JsonToken.BEGIN_OBJECT &&
+                        (null == type || KNOWN_MESSAGE_TYPES.contains(type))) {
+                    // A payload ahead of the type has to be read before we know if it's wanted
+                    payload = readObject(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return new EditorMessage(type, payload);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        final JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            object.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private static JSONArray readArray(JsonReader reader) throws IOException, JSONException {
+        final JSONArray array = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            array.put(readValue(reader));
+        }
+        reader.endArray();
+        return array;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                // The same Integer, Long or Double that new JSONObject(String) would have made
+                return new JSONTokener(reader.nextString()).nextValue();
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new JSONException("Unexpected " + reader.peek() + " in message");
+        }
     }
 
     private class EditorClient extends WebSocketClient {
         /**
          * @param uri            服务器请求地址
          * @param connectTimeout 请求超时时间
-         * @param sslSocket
+         * @param sslSocket      null for a ws:// uri
          * @throws InterruptedException
          */
         public EditorClient(URI uri, int connectTimeout, Socket sslSocket) throws InterruptedException {
             super(uri, new Draft_17(), null, connectTimeout);
-            // 开启SSL
-            setSocket(sslSocket);
+            if (null == sslSocket) {
+                // Unencrypted editors are served by one non-blocking thread
+                setUseSelector(true);
+            } else {
+                // 开启SSL
+                setSocket(sslSocket);
+            }
         }
 
         @Override
@@ -104,29 +275,45 @@ import java.nio.ByteBuffer;
         public void onMessage(String message) {
             MPLog.v(LOGTAG, "Received message from editor:\n" + message);
             try {
-                final JSONObject messageJson = new JSONObject(message);
-                final String type = messageJson.getString("type");
+                final EditorMessage editorMessage = readMessage(message);
+                final String type = editorMessage.type;
+                if (null == type) {
+                    MPLog.e(LOGTAG, "Received a message with no type:" + message);
+                    return;
+                }
                 if (type.equals("device_info_request")) {
                     // 发送设备信息
                     mService.sendDeviceInfo();
-                } else if (type.equals("snapshot_request")) {
+                    return;
+                }
+                if (!KNOWN_MESSAGE_TYPES.contains(type)) {
+                    return;
+                }
+
+                // Handlers complain about the fields they're missing, as they did with the whole message
+                final JSONObject payload = null == editorMessage.payload ? new JSONObject() : editorMessage.payload;
+                if (type.equals("snapshot_request")) {
                     // 发送截图 以及 视图信息(坐标等)
-                    mService.sendSnapshot(messageJson);
+                    mService.sendSnapshot(payload);
                 } else if (type.equals("change_request")) {
                     // AB测试相关
-                    mService.performEdit(messageJson);
+                    mService.performEdit(payload);
                 } else if (type.equals("event_binding_request")) {
                     // 事件下发,需要在本地 添加这些事件
-                    mService.bindEvents(messageJson);
+                    mService.bindEvents(payload);
                 } else if (type.equals("clear_request")) {
                     // AB测试相关
-                    mService.clearEdits(messageJson);
+                    mService.clearEdits(payload);
                 } else if (type.equals("tweak_request")) {
                     // AB测试相关
-                    mService.setTweaks(messageJson);
+                    mService.setTweaks(payload);
                 }
             } catch (final JSONException e) {
                 MPLog.e(LOGTAG, "Bad JSON received:" + message, e);
+            } catch (final IOException e) {
+                MPLog.e(LOGTAG, "Bad JSON received:" + message, e);
+            } catch (final IllegalStateException e) {
+                MPLog.e(LOGTAG, "Bad JSON received:" + message, e);
             }
         }
 
@@ -146,7 +333,18 @@ import java.nio.ByteBuffer;
         }
     }
 
+    /**
+     * Coalesces writes into fragments of a fixed size, so that each frame carries a full
+     * fragment instead of whatever a single write happened to contain.
+     */
     private class WebSocketOutputStream extends OutputStream {
+        public WebSocketOutputStream(Framedata.Opcode opcode, int fragmentSize) {
+            mOpcode = opcode;
+            mFragment = new byte[Math.max(MIN_FRAGMENT_SIZE, fragmentSize)];
+            mFragmentLength = 0;
+            mClosed = false;
+        }
+
         @Override
         public void write(int b)
                 throws EditorConnectionException {
@@ -165,27 +363,45 @@ import java.nio.ByteBuffer;
         @Override
         public void write(byte[] b, int off, int len)
                 throws EditorConnectionException {
-            final ByteBuffer message = ByteBuffer.wrap(b, off, len);
-            try {
-                mClient.sendFragmentedFrame(Framedata.Opcode.TEXT, message, false);
-            } catch (final WebsocketNotConnectedException e) {
-                throw new EditorConnectionException(e);
-            } catch (final NotSendableException e) {
-                throw new EditorConnectionException(e);
+            while (len > 0) {
+                if (mFragmentLength == mFragment.length) {
+                    sendFragment(false);
+                }
+                final int copied = Math.min(len, mFragment.length - mFragmentLength);
+                System.arraycopy(b, off, mFragment, mFragmentLength, copied);
+                mFragmentLength += copied;
+                off += copied;
+                len -= copied;
             }
         }
 
         @Override
         public void close()
                 throws EditorConnectionException {
+            if (!mClosed) {
+                mClosed = true;
+                sendFragment(true);
+            }
+        }
+
+        private void sendFragment(boolean fin)
+                throws EditorConnectionException {
+            // The frame is copied out of mFragment before sendFragmentedFrame returns
+            final ByteBuffer message = ByteBuffer.wrap(mFragment, 0, mFragmentLength);
             try {
-                mClient.sendFragmentedFrame(Framedata.Opcode.TEXT, EMPTY_BYTE_BUFFER, true);
+                mClient.sendFragmentedFrame(mOpcode, message, fin);
             } catch (final WebsocketNotConnectedException e) {
                 throw new EditorConnectionException(e);
             } catch (final NotSendableException e) {
                 throw new EditorConnectionException(e);
             }
+            mFragmentLength = 0;
         }
+
+        private final Framedata.Opcode mOpcode;
+        private final byte[] mFragment;
+        private int mFragmentLength;
+        private boolean mClosed;
     }
 
     /**
@@ -201,7 +417,11 @@ import java.nio.ByteBuffer;
      * 连接超时时间
      */
     private static final int CONNECT_TIMEOUT = 5000;
-    private static final ByteBuffer EMPTY_BYTE_BUFFER = ByteBuffer.allocate(0);
+    public static final int DEFAULT_FRAGMENT_SIZE = 8192;
+    private static final int MIN_FRAGMENT_SIZE = 1024;
+
+    private static final Set<String> KNOWN_MESSAGE_TYPES = new HashSet<String>(Arrays.asList(
+            "snapshot_request", "change_request", "event_binding_request", "clear_request", "tweak_request"));
 
     private static final String LOGTAG = "MixpanelAPI.EditorCnctn";
 }
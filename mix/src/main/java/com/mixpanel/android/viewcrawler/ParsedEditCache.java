@@ -0,0 +1,107 @@
+package com.mixpanel.android.viewcrawler;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Edits parsed from variant and editor changes, keyed by the JSON content of the change, so
+ * that changes which survive an update aren't parsed again. Parsing is dominated by reflection
+ * and blocking asset downloads, so changes that aren't cached are read in parallel.
+ * <p>
+ * This relies on ImageStore being thread safe: its digest is locked while in use and
+ * downloads of the same url are serialized, so changes sharing an asset fetch it once.
+ * <p>
+ * Not thread safe, should only be used from the ViewCrawler handler thread.
+ */
+/* package */ class ParsedEditCache {
+
+    public ParsedEditCache(EditProtocol protocol) {
+        mProtocol = protocol;
+        mParsedEdits = new HashMap<String, EditProtocol.Edit>();
+        mPendingEdits = new HashMap<String, Future<EditProtocol.Edit>>();
+        mUpdatedEdits = new HashMap<String, EditProtocol.Edit>();
+    }
+
+    /**
+     * Starts reading change in the background, unless it's cached or already being read.
+     */
+    public void startReading(final JSONObject change) {
+        final String content = change.toString();
+        if (mParsedEdits.containsKey(content) || mPendingEdits.containsKey(content)) {
+            return;
+        }
+
+        if (null == mEditReader) {
+            mEditReader = new ThreadPoolExecutor(EDIT_READER_THREADS, EDIT_READER_THREADS,
+                    EDIT_READER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            mEditReader.allowCoreThreadTimeOut(true);
+        }
+
+        mPendingEdits.put(content, mEditReader.submit(new Callable<EditProtocol.Edit>() {
+            @Override
+            public EditProtocol.Edit call() throws Exception {
+                return mProtocol.readEdit(change);
+            }
+        }));
+    }
+
+    /**
+     * Returns the cached edit for change if its content hasn't changed, or waits for the read
+     * begun by startReading. Edits returned here are kept by the next call to finishUpdate.
+     */
+    public EditProtocol.Edit read(JSONObject change)
+            throws EditProtocol.BadInstructionsException, EditProtocol.CantGetEditAssetsException {
+        final String content = change.toString();
+        EditProtocol.Edit edit = mParsedEdits.get(content);
+        if (null == edit) {
+            startReading(change);
+            try {
+                edit = mPendingEdits.get(content).get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EditProtocol.CantGetEditAssetsException("Interrupted while reading an edit", e);
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof EditProtocol.BadInstructionsException) {
+                    throw (EditProtocol.BadInstructionsException) cause;
+                } else if (cause instanceof EditProtocol.CantGetEditAssetsException) {
+                    throw (EditProtocol.CantGetEditAssetsException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+
+        mUpdatedEdits.put(content, edit);
+        return edit;
+    }
+
+    /**
+     * Drops the edits for changes that weren't read since the last update. Edits that failed to
+     * read aren't cached, so they're read again on the next update.
+     */
+    public void finishUpdate() {
+        mParsedEdits.clear();
+        mParsedEdits.putAll(mUpdatedEdits);
+        mUpdatedEdits.clear();
+        mPendingEdits.clear();
+    }
+
+    private final EditProtocol mProtocol;
+    private final Map<String, EditProtocol.Edit> mParsedEdits;
+    private final Map<String, Future<EditProtocol.Edit>> mPendingEdits;
+    private final Map<String, EditProtocol.Edit> mUpdatedEdits;
+    private ThreadPoolExecutor mEditReader;
+
+    private static final int EDIT_READER_THREADS = 3;
+    private static final long EDIT_READER_KEEP_ALIVE_SECONDS = 30;
+}
@@ -2,13 +2,16 @@ package com.mixpanel.android.viewcrawler;
 
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 
 import com.mixpanel.android.util.MPLog;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Paths in the view hierarchy, and the machinery for finding views using them.
@@ -120,8 +123,50 @@ import java.util.List;
         public void accumulate(View v);
     }
 
+    /**
+     * Told when a path crosses into a scrolling container (a ListView, GridView or RecyclerView)
+     * whose children are matched independently of one another, so that newly attached children
+     * can later be matched on their own with {@link #findTargetsInChild}, without walking the
+     * whole view tree again.
+     */
+    public interface ScrollingContainerListener {
+        public void onScrollingContainerMatched(ViewGroup container, List<PathElement> childPath);
+    }
+
     public Pathfinder() {
         mIndexStack = new IntStack();
+        mScrollingContainerClasses = new HashMap<Class<?>, Boolean>();
+    }
+
+    public void setScrollingContainerListener(ScrollingContainerListener listener) {
+        mScrollingContainerListener = listener;
+    }
+
+    /**
+     * Matches childPath against a single child of a scrolling container, as previously reported
+     * to a {@link ScrollingContainerListener}. Only valid for paths whose first element has no
+     * index, since an indexed element depends on the child's siblings.
+     */
+    public void findTargetsInChild(View child,
+                                   List<PathElement> childPath,
+                                   Accumulator accumulator) {
+        if (childPath.isEmpty()) {
+            return;
+        }
+
+        if (mIndexStack.full()) {
+            MPLog.w(LOGTAG, "There appears to be a concurrency issue in the pathfinding code." +
+                    " Path will not be matched.");
+            return;
+        }
+
+        final int indexKey = mIndexStack.alloc();
+        final View match = findPrefixedMatch(childPath.get(0), child, indexKey);
+        mIndexStack.free();
+
+        if (null != match) {
+            findTargetsInMatchedView(match, childPath.subList(1, childPath.size()), accumulator);
+        }
     }
 
     /**
@@ -231,6 +276,13 @@ import java.util.List;
         final PathElement matchElement = remainingPath.get(0);
         // 继续截取...
         final List<PathElement> nextPath = remainingPath.subList(1, remainingPath.size());
+        // Unindexed elements match each child on its own, so children attached later
+        // (by scrolling or recycling) can be matched without rescanning from the root.
+        if (null != mScrollingContainerListener &&
+                matchElement.index == -1 &&
+                isScrollingContainer(parent)) {
+            mScrollingContainerListener.onScrollingContainerMatched(parent, remainingPath);
+        }
         // 获取子类数量
         final int childCount = parent.getChildCount();
         // 分配栈中的一个地址,赋值为0
@@ -396,6 +448,18 @@ import java.util.List;
         }
     }
 
+    private boolean isScrollingContainer(View view) {
+        final Class<?> klass = view.getClass();
+        Boolean isContainer = mScrollingContainerClasses.get(klass);
+        if (null == isContainer) {
+            isContainer = view instanceof AbsListView ||
+                    hasClassName(view, SUPPORT_RECYCLER_VIEW_CLASS) ||
+                    hasClassName(view, ANDROIDX_RECYCLER_VIEW_CLASS);
+            mScrollingContainerClasses.put(klass, isContainer);
+        }
+        return isContainer;
+    }
+
     /**
      * Bargain-bin pool of integers, for use in avoiding allocations during path crawl
      * <p>
@@ -464,6 +528,11 @@ import java.util.List;
     }
 
     private final IntStack mIndexStack;
+    private final Map<Class<?>, Boolean> mScrollingContainerClasses;
+    private ScrollingContainerListener mScrollingContainerListener;
+
+    private static final String SUPPORT_RECYCLER_VIEW_CLASS = "android.support.v7.widget.RecyclerView";
+    private static final String ANDROIDX_RECYCLER_VIEW_CLASS = "androidx.recyclerview.widget.RecyclerView";
 
     @SuppressWarnings("unused")
     private static final String LOGTAG = "MixpanelAPI.PathFinder";
@@ -6,6 +6,7 @@ import android.app.Application;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
 import android.os.Build;
@@ -15,6 +16,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.JsonWriter;
 import android.util.Log;
 
@@ -49,6 +51,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -76,6 +79,7 @@ public class ViewCrawler implements UpdatesFromMixpanel,
         //字体的缩放因子,通常与density相等,但是调节系统字体大小之后会改变
         mScaledDensity = Resources.getSystem().getDisplayMetrics().scaledDensity;
         mTweaksUpdatedListeners = Collections.newSetFromMap(new ConcurrentHashMap<OnMixpanelTweaksUpdatedListener, Boolean>());
+        mPendingTrackReports = new HashMap<String, Integer>();
         // 创建一个带Handler 的Thread
         final HandlerThread thread = new HandlerThread(ViewCrawler.class.getCanonicalName());
         thread.setPriority(Process.THREAD_PRIORITY_BACKGROUND);
@@ -117,6 +121,25 @@ public class ViewCrawler implements UpdatesFromMixpanel,
         mMessageThreadHandler.sendMessage(message);
     }
 
+    /**
+     * Decide variants and event bindings applied, and skipped as the same as those already applied
+     */
+    /* package */ int getChangedDecideVariants() {
+        return mMessageThreadHandler.getChangedDecideVariants();
+    }
+
+    /* package */ int getUnchangedDecideVariants() {
+        return mMessageThreadHandler.getUnchangedDecideVariants();
+    }
+
+    /* package */ int getChangedDecideBindings() {
+        return mMessageThreadHandler.getChangedDecideBindings();
+    }
+
+    /* package */ int getUnchangedDecideBindings() {
+        return mMessageThreadHandler.getUnchangedDecideBindings();
+    }
+
     /**
      * 会在MixpanelApi 构造函数中最后 被调用
      */
@@ -193,6 +216,16 @@ public class ViewCrawler implements UpdatesFromMixpanel,
 
     @Override
     public void reportTrack(String eventName) {
+        // Repeats of an event whose report hasn't gone out yet are counted into that report
+        synchronized (mPendingTrackReports) {
+            final Integer pending = mPendingTrackReports.get(eventName);
+            if (null != pending) {
+                mPendingTrackReports.put(eventName, pending + 1);
+                return;
+            }
+            mPendingTrackReports.put(eventName, 1);
+        }
+
         final Message m = mMessageThreadHandler.obtainMessage();
         m.what = MESSAGE_SEND_EVENT_TRACKED;
         m.obj = eventName;
@@ -401,6 +434,16 @@ public class ViewCrawler implements UpdatesFromMixpanel,
             mEmptyExperiments = new HashSet<MPPair<Integer, Integer>>();
             mPersistentEventBindings = new HashSet<MPPair<String, JSONObject>>();
             mSeenExperiments = new HashSet<MPPair<Integer, Integer>>();
+            mEditCache = new ParsedEditCache(mProtocol);
+            mChangedDecideBindings = new AtomicInteger();
+            mUnchangedDecideBindings = new AtomicInteger();
+            mChangedDecideVariants = new AtomicInteger();
+            mUnchangedDecideVariants = new AtomicInteger();
+            mPendingSnapshotRequest = null;
+            mLastSnapshotStartMillis = 0;
+            mSnapshotPeriodMillis = 0;
+            mMaxSnapshotFps = DEFAULT_MAX_SNAPSHOT_FPS;
+            mSnapshotIntervalMillis = (long) (1000 / DEFAULT_MAX_SNAPSHOT_FPS);
             mStartLock = new ReentrantLock();
             //等待 start()调用
             mStartLock.lock();
@@ -410,6 +453,22 @@ public class ViewCrawler implements UpdatesFromMixpanel,
             mStartLock.unlock();
         }
 
+        public int getChangedDecideVariants() {
+            return mChangedDecideVariants.get();
+        }
+
+        public int getUnchangedDecideVariants() {
+            return mUnchangedDecideVariants.get();
+        }
+
+        public int getChangedDecideBindings() {
+            return mChangedDecideBindings.get();
+        }
+
+        public int getUnchangedDecideBindings() {
+            return mUnchangedDecideBindings.get();
+        }
+
 
         /**
          * 调用顺序
@@ -446,8 +505,12 @@ public class ViewCrawler implements UpdatesFromMixpanel,
                         sendDeviceInfo();
                         break;
                     case MESSAGE_SEND_STATE_FOR_EDITING:
-                        MPLog.v("ViewCrawlerHandler", "MESSAGE_SEND_STATE_FOR_EDITING,sendSnapshot");
-                        sendSnapshot((JSONObject) msg.obj);
+                        MPLog.v("ViewCrawlerHandler", "MESSAGE_SEND_STATE_FOR_EDITING,scheduleSnapshot");
+                        scheduleSnapshot((JSONObject) msg.obj);
+                        break;
+                    case MESSAGE_SNAPSHOT_DUE:
+                        MPLog.v("ViewCrawlerHandler", "MESSAGE_SNAPSHOT_DUE,sendScheduledSnapshot");
+                        sendScheduledSnapshot();
                         break;
                     case MESSAGE_SEND_EVENT_TRACKED:
                         MPLog.v("ViewCrawlerHandler", "MESSAGE_SEND_EVENT_TRACKED,sendReportTrackToEditor");
@@ -521,6 +584,11 @@ public class ViewCrawler implements UpdatesFromMixpanel,
             final String storedBindings = preferences.getString(SHARED_PREF_BINDINGS_KEY,
                     null);
 
+            // What's on disk is what decide last sent, later responses only matter if they differ
+            mPersistedVariants = storedChanges;
+            mAppliedVariants = storedChanges;
+            mAppliedDecideBindings = storedBindings;
+
             mAppliedVisualChanges.clear();
             mAppliedTweaks.clear();
             mSeenExperiments.clear();
@@ -545,10 +613,15 @@ public class ViewCrawler implements UpdatesFromMixpanel,
          * @param variants
          */
         private void persistVariants(JSONArray variants) {
+            final String variantsString = variants.toString();
+            if (variantsString.equals(mPersistedVariants)) {
+                return;
+            }
             final SharedPreferences preferences = getSharedPreferences();
             final SharedPreferences.Editor editor = preferences.edit();
-            editor.putString(SHARED_PREF_CHANGES_KEY, variants.toString());
+            editor.putString(SHARED_PREF_CHANGES_KEY, variantsString);
             editor.apply();
+            mPersistedVariants = variantsString;
         }
 
 
@@ -671,17 +744,19 @@ public class ViewCrawler implements UpdatesFromMixpanel,
                 return;
             }
 
+            // wss://switchboard.mixpanel.com/connect/
+            final String url = MPConfig.getInstance(mContext).getEditorUrl() + mToken;
+//            final String url = MPConfig.getInstance(mContext).getEditorUrl();
+            // A plain ws:// editor (for example, one running on a development machine) doesn't need SSL
+            final boolean secure = !url.startsWith("ws:");
             final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
-            if (null == socketFactory) {
+            if (secure && null == socketFactory) {
                 MPLog.v(LOGTAG, "SSL is not available on this device, no connection will be attempted to the events editor.");
                 return;
             }
-            // wss://switchboard.mixpanel.com/connect/
-            final String url = MPConfig.getInstance(mContext).getEditorUrl() + mToken;
-//            final String url = MPConfig.getInstance(mContext).getEditorUrl();
             try {
                 //创建一个sslSocket
-                final Socket sslSocket = socketFactory.createSocket();
+                final Socket sslSocket = secure ? socketFactory.createSocket() : null;
                 //创建连接管理对象
                 // 创建了Editor() , 定义了一些与Web编辑端交互的行为方法
                 mEditorConnection = new EditorConnection(
@@ -705,24 +780,20 @@ public class ViewCrawler implements UpdatesFromMixpanel,
                 return;
             }
 
-            final JSONObject errorObject = new JSONObject();
-            try {
-                errorObject.put("error_message", errorMessage);
-            } catch (final JSONException e) {
-                MPLog.e(LOGTAG, "Apparently impossible JSONException", e);
-            }
-
             final OutputStreamWriter writer = new OutputStreamWriter(mEditorConnection.getBufferedOutputStream());
+            final JsonWriter j = new JsonWriter(writer);
             try {
-                writer.write("{\"type\": \"error\", ");
-                writer.write("\"payload\": ");
-                writer.write(errorObject.toString());
-                writer.write("}");
+                j.beginObject();
+                j.name("type").value("error");
+                j.name("payload").beginObject();
+                j.name("error_message").value(errorMessage);
+                j.endObject(); // payload
+                j.endObject();
             } catch (final IOException e) {
                 MPLog.e(LOGTAG, "Can't write error message to editor", e);
             } finally {
                 try {
-                    writer.close();
+                    j.close();
                 } catch (final IOException e) {
                     MPLog.e(LOGTAG, "Could not close output writer to editor", e);
                 }
@@ -802,25 +873,98 @@ public class ViewCrawler implements UpdatesFromMixpanel,
             }
         }
 
+        /**
+         * Snapshot requests are answered at most mMaxSnapshotFps times a second, and no faster
+         * than the last snapshot took to capture, encode and drain from the socket. The max_fps
+         * an editor asks for is clamped to MIN_SNAPSHOT_FPS..MAX_SNAPSHOT_FPS. Requests that
+         * arrive while one is waiting replace it, so a slow editor gets one snapshot rather than
+         * a backlog of them.
+         */
+        private void scheduleSnapshot(JSONObject payload) {
+            if (payload.has("max_fps")) {
+                final double maxFps = payload.optDouble("max_fps", DEFAULT_MAX_SNAPSHOT_FPS);
+                if (!Double.isNaN(maxFps)) {
+                    mMaxSnapshotFps = Math.min(MAX_SNAPSHOT_FPS, Math.max(MIN_SNAPSHOT_FPS, maxFps));
+                }
+            }
+
+            // A replaced request may carry the snapshot config the later one relies on
+            if (null != mPendingSnapshotRequest && !payload.has("config") &&
+                    mPendingSnapshotRequest.has("config")) {
+                try {
+                    payload.put("config", mPendingSnapshotRequest.get("config"));
+                } catch (final JSONException e) {
+                    MPLog.e(LOGTAG, "Apparently impossible JSONException", e);
+                }
+            }
+            mPendingSnapshotRequest = payload;
+
+            if (!hasMessages(MESSAGE_SNAPSHOT_DUE)) {
+                final long nextSnapshotMillis = mLastSnapshotStartMillis + mSnapshotIntervalMillis;
+                final long delay = Math.max(0, nextSnapshotMillis - SystemClock.uptimeMillis());
+                sendEmptyMessageDelayed(MESSAGE_SNAPSHOT_DUE, delay);
+            }
+        }
+
+        private void sendScheduledSnapshot() {
+            final JSONObject payload = mPendingSnapshotRequest;
+            mPendingSnapshotRequest = null;
+            if (null == payload) {
+                return;
+            }
+
+            final long startMillis = SystemClock.uptimeMillis();
+            final long writtenBefore = null == mEditorConnection ? 0 : mEditorConnection.getOutboundBytesWritten();
+            if (mLastSnapshotStartMillis > 0) {
+                mSnapshotPeriodMillis = startMillis - mLastSnapshotStartMillis;
+            }
+            mLastSnapshotStartMillis = startMillis;
+
+            sendSnapshot(payload);
+
+            // Time left for the socket to send what's still queued, at the rate it just managed
+            final long elapsedMillis = SystemClock.uptimeMillis() - startMillis;
+            long drainMillis = 0;
+            if (null != mEditorConnection) {
+                final long queued = mEditorConnection.getOutboundQueuedBytes();
+                final long written = mEditorConnection.getOutboundBytesWritten() - writtenBefore;
+                if (queued > 0) {
+                    drainMillis = written > 0 ? queued * elapsedMillis / written : elapsedMillis;
+                }
+            }
+
+            final long minIntervalMillis = (long) (1000 / mMaxSnapshotFps);
+            mSnapshotIntervalMillis = Math.max(minIntervalMillis, elapsedMillis + drainMillis);
+        }
+
         /**
          * Send a snapshot response,
          * with crawled views and screenshot image, to the connected web UI.
          */
-        private void sendSnapshot(JSONObject message) {
+        private void sendSnapshot(JSONObject payload) {
             final long startSnapshot = System.currentTimeMillis();
+            final boolean delta;
+            final Bitmap.CompressFormat imageFormat;
+            final int imageQuality;
+            final int maxImageWidth;
+            final boolean binaryImages;
+            final int fragmentSize;
             try {
-
-                final JSONObject payload = message.getJSONObject("payload");
+                // Editors that understand delta snapshots ask for them, everyone else gets full snapshots
+                delta = payload.optBoolean("delta", false);
+                // Full size, lossless PNG screenshots unless the editor asks for something cheaper
+                imageFormat = ViewSnapshot.compressFormatFromName(payload.optString("image_format", "png"));
+                imageQuality = payload.optInt("image_quality", 100);
+                maxImageWidth = payload.optInt("max_image_width", 0);
+                // Screenshots as separate BINARY messages skip the Base64 expansion, again only when asked
+                binaryImages = payload.optBoolean("binary_images", false);
+                fragmentSize = payload.optInt("fragment_size", EditorConnection.DEFAULT_FRAGMENT_SIZE);
                 if (payload.has("config")) {
                     // 解析从Web编辑端 返回的config
                     // 并返回ViewSnapShot
                     mSnapshot = mProtocol.readSnapshotConfig(payload);
                     MPLog.v(LOGTAG, "Initializing snapshot with configuration");
                 }
-            } catch (final JSONException e) {
-                MPLog.e(LOGTAG, "Payload with snapshot config required with snapshot request", e);
-                sendError("Payload with snapshot config required with snapshot request");
-                return;
             } catch (final EditProtocol.BadInstructionsException e) {
                 MPLog.e(LOGTAG, "Editor sent malformed message with snapshot request", e);
                 sendError(e.getMessage());
@@ -835,8 +979,28 @@ public class ViewCrawler implements UpdatesFromMixpanel,
                 return;
             }
             // ELSE config is valid:
+            mSnapshot.setScreenshotOptions(imageFormat, imageQuality, maxImageWidth);
+            mSnapshot.setBinaryImages(binaryImages);
 
-            final OutputStream out = mEditorConnection.getBufferedOutputStream();
+            final long replacedBefore = mEditorConnection.getReplacedSnapshots();
+            if (!mEditorConnection.startSnapshot()) {
+                MPLog.i(LOGTAG, "Editor is still receiving earlier snapshots, skipping this one.");
+                return;
+            }
+            if (mEditorConnection.getReplacedSnapshots() != replacedBefore) {
+                // Deltas would build on the snapshot the editor never got
+                mSnapshot.resetDeltas();
+            }
+
+            try {
+                writeSnapshot(delta, fragmentSize, startSnapshot);
+            } finally {
+                mEditorConnection.finishSnapshot();
+            }
+        }
+
+        private void writeSnapshot(boolean delta, int fragmentSize, long startSnapshot) {
+            final OutputStream out = mEditorConnection.getBufferedOutputStream(fragmentSize);
             final OutputStreamWriter writer = new OutputStreamWriter(out);
 
             try {
@@ -848,12 +1012,29 @@ public class ViewCrawler implements UpdatesFromMixpanel,
                     writer.flush();
 
                     //***************
-                    mSnapshot.snapshots(mEditState, out);
+                    mSnapshot.snapshots(mEditState, out, delta);
                 }
 
                 final long snapshotTime = System.currentTimeMillis() - startSnapshot;
                 writer.write(",\"snapshot_time_millis\": ");
                 writer.write(Long.toString(snapshotTime));
+                writer.write(",\"image_encode_millis\": ");
+                writer.write(Long.toString(mSnapshot.getLastEncodeMillis()));
+                writer.write(",\"image_bytes\": ");
+                writer.write(Long.toString(mSnapshot.getLastEncodedBytes()));
+                // The rate snapshots are actually being sent at, measured between the starts of the
+                // last two, for editors that pace their requests. Left out of the first snapshot.
+                if (mSnapshotPeriodMillis > 0) {
+                    writer.write(",\"effective_fps\": ");
+                    writer.write(Double.toString(1000.0 / mSnapshotPeriodMillis));
+                }
+                // Snapshots this connection replaced or skipped because the editor fell behind
+                final long droppedSnapshots = mEditorConnection.getReplacedSnapshots() +
+                        mEditorConnection.getSkippedSnapshots();
+                if (droppedSnapshots > 0) {
+                    writer.write(",\"dropped_snapshots\": ");
+                    writer.write(Long.toString(droppedSnapshots));
+                }
 
                 writer.write("}"); // } payload
                 writer.write("}"); // } whole message
@@ -866,6 +1047,16 @@ public class ViewCrawler implements UpdatesFromMixpanel,
                     MPLog.e(LOGTAG, "Can't close writer.", e);
                 }
             }
+
+            // Images follow the snapshot_response in the order of their binary_index
+            final List<byte[]> images = mSnapshot.takeBinaryImages();
+            try {
+                for (final byte[] image : images) {
+                    mEditorConnection.sendBinary(image, fragmentSize);
+                }
+            } catch (final EditorConnection.EditorConnectionException e) {
+                MPLog.e(LOGTAG, "Can't send snapshot images to server", e);
+            }
         }
 
         /**
@@ -874,6 +1065,11 @@ public class ViewCrawler implements UpdatesFromMixpanel,
          * 通知关联的 web ui 界面, 有一个事件被抓取到了
          */
         private void sendReportTrackToEditor(String eventName) {
+            final int count;
+            synchronized (mPendingTrackReports) {
+                final Integer pending = mPendingTrackReports.remove(eventName);
+                count = null == pending ? 1 : pending;
+            }
 
             // 判断连接管理类 是否被创建了 是否有效  是否处于连接状态
             if (mEditorConnection == null ||
@@ -895,6 +1091,9 @@ public class ViewCrawler implements UpdatesFromMixpanel,
                 {
                     j.beginObject();
                     j.name("event_name").value(eventName);
+                    if (count > 1) {
+                        j.name("count").value(count);
+                    }
                     j.endObject();
                 }
                 // 子对象 { "type"   :"track_message",
@@ -946,9 +1145,8 @@ public class ViewCrawler implements UpdatesFromMixpanel,
         /**
          * Accept and apply a change from the connected UI.
          */
-        private void handleEditorChangeReceived(JSONObject changeMessage) {
+        private void handleEditorChangeReceived(JSONObject payload) {
             try {
-                final JSONObject payload = changeMessage.getJSONObject("payload");
                 final JSONArray actions = payload.getJSONArray("actions");
 
                 for (int i = 0; i < actions.length(); i++) {
@@ -968,9 +1166,8 @@ public class ViewCrawler implements UpdatesFromMixpanel,
         /**
          * Remove a change from the connected UI.
          */
-        private void handleEditorBindingsCleared(JSONObject clearMessage) {
+        private void handleEditorBindingsCleared(JSONObject payload) {
             try {
-                final JSONObject payload = clearMessage.getJSONObject("payload");
                 final JSONArray actions = payload.getJSONArray("actions");
 
                 // Don't throw any JSONExceptions after this, or you'll leak the item
@@ -985,9 +1182,8 @@ public class ViewCrawler implements UpdatesFromMixpanel,
             applyVariantsAndEventBindings();
         }
 
-        private void handleEditorTweaksReceived(JSONObject tweaksMessage) {
+        private void handleEditorTweaksReceived(JSONObject payload) {
             try {
-                final JSONObject payload = tweaksMessage.getJSONObject("payload");
                 final JSONArray tweaks = payload.getJSONArray("tweaks");
                 final int length = tweaks.length();
                 for (int i = 0; i < length; i++) {
@@ -1010,9 +1206,20 @@ public class ViewCrawler implements UpdatesFromMixpanel,
         private void handleVariantsReceived(JSONArray variants) {
             // 往SP中保存 variants
             persistVariants(variants);
+
+            // Compared with what was applied rather than persisted, since storeVariants
+            // persists new variants before they're applied here
+            final String variantsString = variants.toString();
+            if (variantsString.equals(mAppliedVariants)) {
+                mUnchangedDecideVariants.incrementAndGet();
+                return;
+            }
+
             // 加载到内存中
-            loadVariants(variants.toString(), true);
+            loadVariants(variantsString, true);
             applyVariantsAndEventBindings();
+            mAppliedVariants = variantsString;
+            mChangedDecideVariants.incrementAndGet();
         }
 
         /**
@@ -1021,14 +1228,28 @@ public class ViewCrawler implements UpdatesFromMixpanel,
          * 接收并应用 来自本地持久化Sp中的 event binding
          */
         private void handleEventBindingsReceived(JSONArray eventBindings) {
+            // decide sends the same bindings on almost every check, and they're already applied
+            final String bindings = eventBindings.toString();
+            if (bindings.equals(mAppliedDecideBindings)) {
+                mUnchangedDecideBindings.incrementAndGet();
+                return;
+            }
+
+            final long startMillis = SystemClock.uptimeMillis();
             final SharedPreferences preferences = getSharedPreferences();
             final SharedPreferences.Editor editor = preferences.edit();
-            editor.putString(SHARED_PREF_BINDINGS_KEY, eventBindings.toString());
+            editor.putString(SHARED_PREF_BINDINGS_KEY, bindings);
             editor.apply();
             // 将event 数据加载到内存中
-            loadEventBindings(eventBindings.toString());
+            loadEventBindings(bindings);
             // 绑定事件等
             applyVariantsAndEventBindings();
+            mAppliedDecideBindings = bindings;
+
+            mChangedDecideBindings.incrementAndGet();
+            mDecideApplyMillis += SystemClock.uptimeMillis() - startMillis;
+            MPLog.v(LOGTAG, "Applied event bindings from decide: " + mChangedDecideBindings + " changes applied in " +
+                    mDecideApplyMillis + "ms, " + mUnchangedDecideBindings + " unchanged responses skipped");
         }
 
         /**
@@ -1036,11 +1257,9 @@ public class ViewCrawler implements UpdatesFromMixpanel,
          * <p>
          * 处理当收到 Web端 下发的 event事件
          */
-        private void handleEditorBindingsReceived(JSONObject message) {
+        private void handleEditorBindingsReceived(JSONObject payload) {
             final JSONArray eventBindings;
             try {
-                // 获取到 payload 字段信息
-                final JSONObject payload = message.getJSONObject("payload");
                 // 获取 events 字段信息
                 eventBindings = payload.getJSONArray("events");
             } catch (final JSONException e) {
@@ -1098,6 +1317,8 @@ public class ViewCrawler implements UpdatesFromMixpanel,
 
             // Free (or make available) snapshot memory
             mSnapshot = null;
+            mPendingSnapshotRequest = null;
+            removeMessages(MESSAGE_SNAPSHOT_DUE);
 
             MPLog.v(LOGTAG, "Editor closed- freeing snapshot");
 
@@ -1134,13 +1355,14 @@ public class ViewCrawler implements UpdatesFromMixpanel,
 
             Set<String> updatedTweaks = new HashSet<>();
 
+            startReadingEdits();
+
             // 对variants 中的 acitons 进行处理
             {
                 for (VariantChange changeInfo : mAppliedVisualChanges) {
                     try {
                         // 解析成 Edit
-                        final EditProtocol.Edit edit =
-                                mProtocol.readEdit(changeInfo.change);
+                        final EditProtocol.Edit edit = mEditCache.read(changeInfo.change);
                         // 添加到 集合
                         newVisitors.add(new MPPair<String, ViewVisitor>(
                                 changeInfo.activityName,
@@ -1200,8 +1422,7 @@ public class ViewCrawler implements UpdatesFromMixpanel,
             {
                 for (MPPair<String, JSONObject> changeInfo : mEditorChanges.values()) {
                     try {
-                        final EditProtocol.Edit edit =
-                                mProtocol.readEdit(changeInfo.second);
+                        final EditProtocol.Edit edit = mEditCache.read(changeInfo.second);
                         newVisitors.add(new MPPair<String, ViewVisitor>(changeInfo.first, edit.visitor));
                         mEditorAssetUrls.addAll(edit.imageUrls);
                     } catch (final EditProtocol.CantGetEditAssetsException e) {
@@ -1214,6 +1435,9 @@ public class ViewCrawler implements UpdatesFromMixpanel,
                 }
             }
 
+            // Edits for changes that are gone are dropped from the cache
+            mEditCache.finishUpdate();
+
             {
                 for (MPPair<String, Object> tweak : mEditorTweaks.values()) {
                     if (mTweaks.isNewValue(tweak.first, tweak.second)) {
@@ -1310,6 +1534,19 @@ public class ViewCrawler implements UpdatesFromMixpanel,
             }
         }
 
+        /**
+         * Starts parsing every variant and editor change that isn't cached yet, so new changes
+         * are read in parallel while applyVariantsAndEventBindings works through them in order.
+         */
+        private void startReadingEdits() {
+            for (VariantChange changeInfo : mAppliedVisualChanges) {
+                mEditCache.startReading(changeInfo.change);
+            }
+            for (MPPair<String, JSONObject> changeInfo : mEditorChanges.values()) {
+                mEditCache.startReading(changeInfo.second);
+            }
+        }
+
         private void trackSeenExperiments(Set<MPPair<Integer, Integer>> toTrack) {
             if (toTrack != null && toTrack.size() > 0) {
                 final JSONObject variantObject = new JSONObject();
@@ -1367,6 +1604,35 @@ public class ViewCrawler implements UpdatesFromMixpanel,
         private final Lock mStartLock;
         private final EditProtocol mProtocol;
         private final ImageStore mImageStore;
+        /**
+         * Edits from the last call to applyVariantsAndEventBindings, keyed by their JSON content
+         */
+        private final ParsedEditCache mEditCache;
+        /**
+         * The payload of the latest snapshot request not yet answered, see scheduleSnapshot
+         */
+        private JSONObject mPendingSnapshotRequest;
+        /**
+         * The decide event bindings and variants last applied and persisted, as JSON
+         */
+        private String mAppliedDecideBindings;
+        private String mAppliedVariants;
+        private String mPersistedVariants;
+        /**
+         * Decide updates applied and skipped as unchanged, read from other threads by the getters
+         */
+        private final AtomicInteger mChangedDecideBindings;
+        private final AtomicInteger mUnchangedDecideBindings;
+        private final AtomicInteger mChangedDecideVariants;
+        private final AtomicInteger mUnchangedDecideVariants;
+        private long mDecideApplyMillis;
+        private long mLastSnapshotStartMillis;
+        /**
+         * Time between the starts of the last two snapshots, or 0 before the second one
+         */
+        private long mSnapshotPeriodMillis;
+        private long mSnapshotIntervalMillis;
+        private double mMaxSnapshotFps;
 
         private final Map<String, MPPair<String, JSONObject>> mEditorChanges;
         private final Map<String, MPPair<String, Object>> mEditorTweaks;
@@ -1425,37 +1691,37 @@ public class ViewCrawler implements UpdatesFromMixpanel,
     private class Editor implements EditorConnection.Editor {
         //{"type":"snapshot_request","payload":{"image_hash":"b5f1d4867209bb3516db082fdff48040"}}
         @Override
-        public void sendSnapshot(JSONObject message) {
+        public void sendSnapshot(JSONObject payload) {
             final Message msg = mMessageThreadHandler.obtainMessage(ViewCrawler.MESSAGE_SEND_STATE_FOR_EDITING);
-            msg.obj = message;
+            msg.obj = payload;
             mMessageThreadHandler.sendMessage(msg);
         }
 
         @Override
-        public void performEdit(JSONObject message) {
+        public void performEdit(JSONObject payload) {
             final Message msg = mMessageThreadHandler.obtainMessage(ViewCrawler.MESSAGE_HANDLE_EDITOR_CHANGES_RECEIVED);
-            msg.obj = message;
+            msg.obj = payload;
             mMessageThreadHandler.sendMessage(msg);
         }
 
         @Override
-        public void clearEdits(JSONObject message) {
+        public void clearEdits(JSONObject payload) {
             final Message msg = mMessageThreadHandler.obtainMessage(ViewCrawler.MESSAGE_HANDLE_EDITOR_CHANGES_CLEARED);
-            msg.obj = message;
+            msg.obj = payload;
             mMessageThreadHandler.sendMessage(msg);
         }
 
         @Override
-        public void setTweaks(JSONObject message) {
+        public void setTweaks(JSONObject payload) {
             final Message msg = mMessageThreadHandler.obtainMessage(ViewCrawler.MESSAGE_HANDLE_EDITOR_TWEAKS_RECEIVED);
-            msg.obj = message;
+            msg.obj = payload;
             mMessageThreadHandler.sendMessage(msg);
         }
 
         @Override
-        public void bindEvents(JSONObject message) {
+        public void bindEvents(JSONObject payload) {
             final Message msg = mMessageThreadHandler.obtainMessage(ViewCrawler.MESSAGE_HANDLE_EDITOR_BINDINGS_RECEIVED);
-            msg.obj = message;
+            msg.obj = payload;
             mMessageThreadHandler.sendMessage(msg);
         }
 
@@ -1556,6 +1822,8 @@ public class ViewCrawler implements UpdatesFromMixpanel,
     private final float mScaledDensity;
     //支持并发的Set
     private final Set<OnMixpanelTweaksUpdatedListener> mTweaksUpdatedListeners;
+    // event name -> number of times tracked since its report was queued
+    private final Map<String, Integer> mPendingTrackReports;
 
     private static final String SHARED_PREF_EDITS_FILE = "mixpanel.viewcrawler.changes";
     private static final String SHARED_PREF_CHANGES_KEY = "mixpanel.viewcrawler.changes";
@@ -1588,9 +1856,15 @@ public class ViewCrawler implements UpdatesFromMixpanel,
     private static final int MESSAGE_SEND_LAYOUT_ERROR = 12;
 
     private static final int MESSAGE_PERSIST_VARIANTS_RECEIVED = 13;
+    // 定时发送合并后的截图请求
+    private static final int MESSAGE_SNAPSHOT_DUE = 14;
 
     private static final int EMULATOR_CONNECT_ATTEMPT_INTERVAL_MILLIS = 1000 * 30;
 
+    private static final double DEFAULT_MAX_SNAPSHOT_FPS = 10;
+    private static final double MIN_SNAPSHOT_FPS = 0.2;
+    private static final double MAX_SNAPSHOT_FPS = 30;
+
     @SuppressWarnings("unused")
     private static final String LOGTAG = "MixpanelAPI.ViewCrawler";
 }
@@ -14,14 +14,18 @@ import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Base64OutputStream;
 import android.util.DisplayMetrics;
 import android.util.JsonWriter;
 import android.util.LruCache;
+import android.view.PixelCopy;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.Window;
 import android.widget.RelativeLayout;
 
 import com.mixpanel.android.mpmetrics.MPConfig;
@@ -30,16 +34,24 @@ import com.mixpanel.android.util.MPLog;
 
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
@@ -54,7 +66,73 @@ import java.util.concurrent.TimeoutException;
         mResourceIds = resourceIds;
         mMainThreadHandler = new Handler(Looper.getMainLooper());
         mRootViewFinder = new RootViewFinder();
-        mClassnameCache = new ClassNameCache(MAX_CLASS_NAME_CACHE_SIZE);
+        mViewClassInfoCache = new ViewClassInfoCache(MAX_CLASS_NAME_CACHE_SIZE);
+        mDrawableClassesCache = new DrawableClassesCache(MAX_CLASS_NAME_CACHE_SIZE);
+        mDeltaStates = new HashMap<String, DeltaState>();
+        mImageEncoder = new ImageEncoder();
+        mMaxScreenshotWidth = 0;
+    }
+
+    /**
+     * Sets how screenshots are encoded in later snapshots, and the width they are scaled down to
+     * fit, or 0 to send them at the default density.
+     */
+    public void setScreenshotOptions(Bitmap.CompressFormat format, int quality, int maxWidth) {
+        mImageEncoder.setFormat(format, quality);
+        mMaxScreenshotWidth = maxWidth;
+    }
+
+    /**
+     * When binary is true, later snapshots refer to each image as {"binary_index", "bytes"}
+     * instead of embedding it in Base64, and the encoded images must be sent separately, in
+     * order, from {@link #takeBinaryImages()}.
+     */
+    public void setBinaryImages(boolean binary) {
+        mImageEncoder.setBinary(binary);
+    }
+
+    /**
+     * @return the images referred to by index from the last call to snapshots, which are
+     * then forgotten
+     */
+    public List<byte[]> takeBinaryImages() {
+        return mImageEncoder.takeBinaryImages();
+    }
+
+    /**
+     * Forgets what earlier delta snapshots sent, for when the editor never got them, so that
+     * the next delta snapshot of every activity is a full one.
+     */
+    public void resetDeltas() {
+        mDeltaStates.clear();
+    }
+
+    /**
+     * @return milliseconds spent encoding screenshots during the last call to snapshots
+     */
+    public long getLastEncodeMillis() {
+        return mImageEncoder.getEncodeMillis();
+    }
+
+    /**
+     * @return bytes of screenshot written during the last call to snapshots, Base64 or binary
+     */
+    public long getLastEncodedBytes() {
+        return mImageEncoder.getEncodedBytes();
+    }
+
+    /**
+     * @param name "png", "jpeg" or "webp" as sent by the editor
+     * @return the matching format, or PNG for anything else
+     */
+    public static Bitmap.CompressFormat compressFormatFromName(String name) {
+        if ("jpeg".equals(name)) {
+            return Bitmap.CompressFormat.JPEG;
+        } else if ("webp".equals(name)) {
+            return Bitmap.CompressFormat.WEBP;
+        } else {
+            return Bitmap.CompressFormat.PNG;
+        }
     }
 
     /**
@@ -66,6 +144,20 @@ import java.util.concurrent.TimeoutException;
      */
     public void snapshots(UIThreadSet<Activity> liveActivities,
                           OutputStream out) throws IOException {
+        snapshots(liveActivities, out, false);
+    }
+
+    /**
+     * Like {@link #snapshots(UIThreadSet, OutputStream)}, but when delta is true, activities that
+     * were already sent with delta on contain only the views whose serialized form changed, the
+     * hashCodes of views that are gone, and the screenshot tiles whose pixels changed. Each
+     * activity is marked with "delta", and falls back to a full snapshot when there is nothing
+     * to compare against.
+     */
+    public void snapshots(UIThreadSet<Activity> liveActivities,
+                          OutputStream out,
+                          boolean delta) throws IOException {
+        mImageEncoder.resetStats();
         //传入当前 正在运行的Activity列表
         mRootViewFinder.findInActivities(liveActivities);
 
@@ -108,23 +200,53 @@ import java.util.concurrent.TimeoutException;
             writer.write("\"scale\":");
             writer.write(String.format("%s", info.scale));
             writer.write(",");
-            writer.write("\"serialized_objects\":");
-            {
-                final JsonWriter j = new JsonWriter(writer);
-                j.beginObject();
-                j.name("rootObject").value(info.rootView.hashCode());
-                j.name("objects");
-                // 获取当前类 和子类的 各种信息
-                // 会遍历当前类的子类
-                snapshotViewHierarchy(j, info.rootView);
-                j.endObject();
-                j.flush();
+            if (info.truncated) {
+                writer.write("\"truncated\":true,");
+            }
+            if (!delta) {
+                mDeltaStates.remove(info.activityName);
+                writer.write("\"serialized_objects\":");
+                {
+                    final JsonWriter j = new JsonWriter(writer);
+                    j.beginObject();
+                    j.name("rootObject").value(info.rootView.hashCode());
+                    j.name("objects");
+                    // 获取当前类 和子类的 各种信息
+                    // 会遍历当前类的子类
+                    writeViewHierarchy(j, info.views);
+                    j.endObject();
+                    j.flush();
+                }
+                writer.write(",");
+                writer.write("\"screenshot\":");
+                writer.flush();
+                //将截图转换成base64形式的字符,并添加到json中
+                info.screenshot.writeBitmapJSON(mImageEncoder, out);
+            } else {
+                final DeltaState previous = mDeltaStates.get(info.activityName);
+                final DeltaState current = new DeltaState();
+                writer.write("\"delta\":");
+                writer.write(null == previous ? "false" : "true");
+                writer.write(",");
+                writer.write("\"serialized_objects\":{\"rootObject\":");
+                writer.write(Integer.toString(info.rootView.hashCode()));
+                writer.write(",\"objects\":");
+                writeViewHierarchyChanges(writer,
+                        info.views,
+                        null == previous ? null : previous.viewHashes,
+                        current.viewHashes);
+                writer.write(",\"removed\":");
+                writeRemovedViews(writer,
+                        null == previous ? null : previous.viewHashes,
+                        current.viewHashes,
+                        info.truncated);
+                writer.write("},");
+                writer.write("\"screenshot_tiles\":");
+                writer.flush();
+                current.tiles = info.screenshot.writeChangedTilesJSON(
+                        null == previous ? null : previous.tiles, mImageEncoder, out);
+                mDeltaStates.put(info.activityName, current);
             }
-            writer.write(",");
-            writer.write("\"screenshot\":");
-            writer.flush();
-            //将截图转换成base64形式的字符,并添加到json中
-            info.screenshot.writeBitmapJSON(Bitmap.CompressFormat.PNG, 100, out);
             writer.write("}");
 
         }
@@ -140,6 +262,8 @@ import java.util.concurrent.TimeoutException;
 
     /**
      * 从rooView开始遍历,获取信息
+     * <p>
+     * Captures and serializes on the calling thread, for tests and callers already on the UI thread.
      *
      * @param j
      * @param rootView
@@ -147,22 +271,77 @@ import java.util.concurrent.TimeoutException;
      */
     void snapshotViewHierarchy(JsonWriter j, View rootView)
             throws IOException {
-        j.beginArray();
-        snapshotView(j, rootView);
-        j.endArray();
+        final List<CapturedView> views = new ArrayList<CapturedView>();
+        captureViewHierarchy(rootView, views, Long.MAX_VALUE);
+        writeViewHierarchy(j, views);
     }
 
-    private void snapshotView(JsonWriter j, View view)
+    /**
+     * Writes a JSON array of the views under rootView whose serialized form hashes differently
+     * than in previousHashes (every view if previousHashes is null), and records the hash of
+     * every view visited in currentHashes, by view hashCode.
+     */
+    void snapshotViewHierarchyChanges(Writer out,
+                                      View rootView,
+                                      Map<Integer, Long> previousHashes,
+                                      Map<Integer, Long> currentHashes)
             throws IOException {
-        //如果不可见,根据配置文件进行操作
-        if (view.getVisibility() == View.INVISIBLE &&
-                mConfig.getIgnoreInvisibleViewsEditor()) {
+        final List<CapturedView> views = new ArrayList<CapturedView>();
+        captureViewHierarchy(rootView, views, Long.MAX_VALUE);
+        writeViewHierarchyChanges(out, views, previousHashes, currentHashes);
+    }
+
+    /**
+     * Writes a JSON array of the hashCodes in previousHashes that are missing from currentHashes.
+     * A truncated capture leaves out views that may still be on screen, so in that case nothing
+     * is written and their hashes are carried over into currentHashes for the next delta to check.
+     */
+    /* package */ static void writeRemovedViews(Writer out,
+                                                Map<Integer, Long> previousHashes,
+                                                Map<Integer, Long> currentHashes,
+                                                boolean truncated)
+            throws IOException {
+        out.write("[");
+        if (null != previousHashes) {
+            boolean first = true;
+            for (final Map.Entry<Integer, Long> sent : previousHashes.entrySet()) {
+                final Integer hashCode = sent.getKey();
+                if (currentHashes.containsKey(hashCode)) {
+                    continue;
+                }
+
+                if (truncated) {
+                    currentHashes.put(hashCode, sent.getValue());
+                } else {
+                    if (!first) {
+                        out.write(",");
+                    }
+                    out.write(hashCode.toString());
+                    first = false;
+                }
+            }
+        }
+        out.write("]");
+    }
+
+    /**
+     * Phase one of a snapshot, which must run on the UI thread: copies everything the editor
+     * needs from the views under view into views, in depth first order. Stops early once
+     * SystemClock.uptimeMillis() passes deadline, leaving the rest of the tree out.
+     *
+     * @return false if the capture ran out of time
+     */
+    private boolean captureViewHierarchy(View view, List<CapturedView> views, long deadline) {
+        if (isIgnored(view)) {
             // 配置文件 决定忽略不可见的控件,那么直接结束
-            return;
+            return true;
+        }
+
+        if (SystemClock.uptimeMillis() > deadline) {
+            return false;
         }
-        //获取控件id
+
         final int viewId = view.getId();
-        //获取id对应的id-name
         final String viewIdName;
         if (-1 == viewId) {
             viewIdName = null;
@@ -170,186 +349,418 @@ import java.util.concurrent.TimeoutException;
             viewIdName = mResourceIds.nameForId(viewId);
         }
 
+        // 当前类及其父类的名称, 以及适用的属性, 每个类只计算一次
+        final ViewClassInfo classInfo = mViewClassInfoCache.get(view.getClass());
+
+        views.add(new CapturedView(view,
+                viewIdName,
+                classInfo.classes,
+                captureProperties(view, classInfo.propertyIndexes)));
+
+        if (view instanceof ViewGroup) {
+            final ViewGroup group = (ViewGroup) view;
+            final int childCount = group.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                final View child = group.getChildAt(i);
+                // child can be null when views are getting disposed.
+                if (null != child && !captureViewHierarchy(child, views, deadline)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Captures the views under info.rootView and then its screenshot, on the UI thread. Each root
+     * view gets its own MAX_CAPTURE_MILLIS, started after any earlier screenshot, so that slow
+     * screenshots (PixelCopy may wait PIXEL_COPY_TIMEOUT_MILLIS, createSnapshot redraws the whole
+     * window in software) can't eat into the time for capturing views.
+     */
+    /* package */ void captureRootView(RootViewInfo info) {
+        final List<CapturedView> views = new ArrayList<CapturedView>();
+        final long deadline = SystemClock.uptimeMillis() + MAX_CAPTURE_MILLIS;
+        if (!captureViewHierarchy(info.rootView, views, deadline)) {
+            MPLog.i(LOGTAG, "Capturing the views of " + info.activityName + " took more than " +
+                    MAX_CAPTURE_MILLIS + " milliseconds, the snapshot will be incomplete.");
+            info.truncated = true;
+        }
+        info.views = views;
+        //创建截图,保存信息在info对象中
+        takeScreenshot(info);
+    }
+
+    // Overridden in tests
+    /* package */ void takeScreenshot(RootViewInfo info) {
+        mRootViewFinder.takeScreenshot(info);
+    }
+
+    private boolean isIgnored(View view) {
+        //如果不可见,根据配置文件进行操作
+        return view.getVisibility() == View.INVISIBLE &&
+                mConfig.getIgnoreInvisibleViewsEditor();
+    }
+
+    /**
+     * 通过解析 snapshot_request  下发的 配置信息
+     * <p>
+     * 去获取对应的控件的指定属性, one value per entry in mProperties, null where the property
+     * doesn't apply or has no value. Values are copied into immutable forms.
+     *
+     * @param v
+     * @param propertyIndexes the properties that apply to the class of v, see {@link ViewClassInfo}
+     */
+    private Object[] captureProperties(View v, int[] propertyIndexes) {
+        final Object[] values = new Object[mProperties.size()];
+        //遍历 适用于该控件的属性
+        for (final int i : propertyIndexes) {
+            final PropertyDescription desc = mProperties.get(i);
+            //get到指定属性
+            final Object value = desc.accessor.applyMethod(v);
+            // 根据不同的类型 进行转换
+            if (null == value) {
+                // Don't produce anything in this case
+            } else if (value instanceof Number || value instanceof Boolean) {
+                values[i] = value;
+            } else if (value instanceof ColorStateList) {
+                values[i] = ((ColorStateList) value).getDefaultColor();
+            } else if (value instanceof Drawable) {
+                final Drawable drawable = (Drawable) value;
+                values[i] = new CapturedDrawable(drawable, mDrawableClassesCache.get(drawable.getClass()));
+            } else {
+                values[i] = value.toString();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Phase two of a snapshot, safe on any thread.
+     */
+    private void writeViewHierarchy(JsonWriter j, List<CapturedView> views)
+            throws IOException {
+        j.beginArray();
+        final int viewCount = views.size();
+        for (int i = 0; i < viewCount; i++) {
+            writeViewObject(j, views.get(i));
+        }
+        j.endArray();
+    }
+
+    private void writeViewHierarchyChanges(Writer out,
+                                           List<CapturedView> views,
+                                           Map<Integer, Long> previousHashes,
+                                           Map<Integer, Long> currentHashes)
+            throws IOException {
+        out.write("[");
+        boolean first = true;
+        final int viewCount = views.size();
+        for (int i = 0; i < viewCount; i++) {
+            final CapturedView view = views.get(i);
+            final StringWriter serialized = new StringWriter();
+            final JsonWriter j = new JsonWriter(serialized);
+            writeViewObject(j, view);
+            j.flush();
+
+            final String viewJson = serialized.toString();
+            final Long contentHash = hash64(viewJson);
+            if (null == previousHashes || !contentHash.equals(previousHashes.get(view.hashCode))) {
+                if (!first) {
+                    out.write(",");
+                }
+                out.write(viewJson);
+                first = false;
+            }
+            currentHashes.put(view.hashCode, contentHash);
+        }
+        out.write("]");
+    }
+
+    private void writeViewObject(JsonWriter j, CapturedView view)
+            throws IOException {
         j.beginObject();
-        j.name("hashCode").value(view.hashCode());
-        j.name("id").value(viewId);
-        j.name("mp_id_name").value(viewIdName);
+        j.name("hashCode").value(view.hashCode);
+        j.name("id").value(view.id);
+        j.name("mp_id_name").value(view.idName);
 
         // 保存contentDescription
-        final CharSequence description = view.getContentDescription();
-        if (null == description) {
+        if (null == view.contentDescription) {
             j.name("contentDescription").nullValue();
         } else {
-            j.name("contentDescription").value(description.toString());
+            j.name("contentDescription").value(view.contentDescription);
         }
 
-        //保存TAG
-        final Object tag = view.getTag();
-        if (null == tag) {
-            j.name("tag").nullValue();
-        } else if (tag instanceof CharSequence) {
-            j.name("tag").value(tag.toString());
+        //保存TAG, only null and CharSequence tags are sent
+        if (view.hasTag) {
+            if (null == view.tag) {
+                j.name("tag").nullValue();
+            } else {
+                j.name("tag").value(view.tag);
+            }
         }
 
         //获取该控件的 坐标信息
-        j.name("top").value(view.getTop());
-        j.name("left").value(view.getLeft());
-        j.name("width").value(view.getWidth());
-        j.name("height").value(view.getHeight());
-        j.name("scrollX").value(view.getScrollX());
-        j.name("scrollY").value(view.getScrollY());
-        j.name("visibility").value(view.getVisibility());
-
-        //如果Android-sdk版本大于3.0 出现了 translationX,translationY
-        float translationX = 0;
-        float translationY = 0;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            translationX = view.getTranslationX();
-            translationY = view.getTranslationY();
-        }
-
-        j.name("translationX").value(translationX);
-        j.name("translationY").value(translationY);
+        j.name("top").value(view.top);
+        j.name("left").value(view.left);
+        j.name("width").value(view.width);
+        j.name("height").value(view.height);
+        j.name("scrollX").value(view.scrollX);
+        j.name("scrollY").value(view.scrollY);
+        j.name("visibility").value(view.visibility);
+        j.name("translationX").value(view.translationX);
+        j.name("translationY").value(view.translationY);
 
         j.name("classes");
         j.beginArray();
-        //获取类的字节码
-        Class<?> klass = view.getClass();
-        //将当前类 和 其父类关系都添加
-        do {
-            // 获取CanonicalName ,并进行缓存
-            j.value(mClassnameCache.get(klass));
-            //获取其父类字节码
-            klass = klass.getSuperclass();
-        } while (klass != Object.class && klass != null);
+        for (final String className : view.classes) {
+            j.value(className);
+        }
         j.endArray();
-        // 采集由Web编辑端 下发的 配置文件中的属性,通过这些属性配置,去获取指定信息
-        // 添加到Json中
-        addProperties(j, view);
+
+        // 采集由Web编辑端 下发的 配置文件中的属性
+        writeProperties(j, view.properties);
 
         //如果LayoutParams是 RelativeLayout,则将Runles添加到json
-        ViewGroup.LayoutParams layoutParams = view.getLayoutParams();
-        if (layoutParams instanceof RelativeLayout.LayoutParams) {
-            RelativeLayout.LayoutParams relativeLayoutParams = (RelativeLayout.LayoutParams) layoutParams;
-            int[] rules = relativeLayoutParams.getRules();
+        if (null != view.layoutRules) {
             j.name("layoutRules");
             j.beginArray();
-            for (int rule : rules) {
+            for (int rule : view.layoutRules) {
                 j.value(rule);
             }
             j.endArray();
         }
 
-        // 获取到其子类,遍历所有的子类
         // 获取所有子类的HashCode
         j.name("subviews");
         j.beginArray();
-        if (view instanceof ViewGroup) {
-            final ViewGroup group = (ViewGroup) view;
-            final int childCount = group.getChildCount();
-            for (int i = 0; i < childCount; i++) {
-                final View child = group.getChildAt(i);
-                // child can be null when views are getting disposed.
-                if (null != child) {
-                    j.value(child.hashCode());
-                }
-            }
+        for (int childHashCode : view.subviews) {
+            j.value(childHashCode);
         }
         j.endArray();
         j.endObject();
+    }
 
-        // 对子类进行同样的操作
-        if (view instanceof ViewGroup) {
-            final ViewGroup group = (ViewGroup) view;
-            final int childCount = group.getChildCount();
-            for (int i = 0; i < childCount; i++) {
-                final View child = group.getChildAt(i);
-                // child can be null when views are getting disposed.
-                if (null != child) {
-                    snapshotView(j, child);
+    private void writeProperties(JsonWriter j, Object[] values)
+            throws IOException {
+        final int propertyCount = mProperties.size();
+        for (int i = 0; i < propertyCount; i++) {
+            final Object value = values[i];
+            if (null == value) {
+                continue;
+            }
+
+            final String name = mProperties.get(i).name;
+            if (value instanceof Number) {
+                j.name(name).value((Number) value);
+            } else if (value instanceof Boolean) {
+                j.name(name).value((Boolean) value);
+            } else if (value instanceof CapturedDrawable) {
+                final CapturedDrawable drawable = (CapturedDrawable) value;
+                j.name(name);
+                j.beginObject();
+                j.name("classes");
+                j.beginArray();
+                for (final String className : drawable.classes) {
+                    j.value(className);
                 }
+                j.endArray();
+                j.name("dimensions");
+                j.beginObject();
+                j.name("left").value(drawable.left);
+                j.name("right").value(drawable.right);
+                j.name("top").value(drawable.top);
+                j.name("bottom").value(drawable.bottom);
+                j.endObject();
+                if (null != drawable.color) {
+                    j.name("color").value(drawable.color);
+                }
+                j.endObject();
+            } else {
+                j.name(name).value(value.toString());
             }
         }
     }
 
-
     /**
-     * 通过解析 snapshot_request  下发的 配置信息
-     * <p>
-     * 去获取对应的控件的指定属性
-     *
-     * @param j
-     * @param v
-     * @throws IOException
+     * Everything a snapshot reports about a single view, copied from the view on the UI thread
      */
-    private void addProperties(JsonWriter j, View v)
-            throws IOException {
-        //获取控件字节码
-        final Class<?> viewClass = v.getClass();
-        //遍历 配置文件下发的 需要采集的属性
-        for (final PropertyDescription desc : mProperties) {
-            // 先匹配到指定的View,同时 判断是否有需要get的属性
-            // isAssignableFrom 表示 俩者是否相同 或 前者是后者的超类或接口
-            // 只有符合条件,才表示viewClass 拥有该属性,才能够去获取该属性
-            if (desc.targetClass.isAssignableFrom(viewClass) && null != desc.accessor) {
-                //get到指定属性
-                final Object value = desc.accessor.applyMethod(v);
-                // 根据不同的类型 进行转换
-                if (null == value) {
-                    // Don't produce anything in this case
-                } else if (value instanceof Number) {
-                    j.name(desc.name).value((Number) value);
-                } else if (value instanceof Boolean) {
-                    j.name(desc.name).value((Boolean) value);
-                } else if (value instanceof ColorStateList) {
-                    j.name(desc.name).value((Integer) ((ColorStateList) value).getDefaultColor());
-                } else if (value instanceof Drawable) {
-                    final Drawable drawable = (Drawable) value;
-                    final Rect bounds = drawable.getBounds();
-                    j.name(desc.name);
-                    j.beginObject();
-                    j.name("classes");
-                    j.beginArray();
-                    Class klass = drawable.getClass();
-                    while (klass != Object.class) {
-                        j.value(klass.getCanonicalName());
-                        klass = klass.getSuperclass();
-                    }
-                    j.endArray();
-                    j.name("dimensions");
-                    j.beginObject();
-                    j.name("left").value(bounds.left);
-                    j.name("right").value(bounds.right);
-                    j.name("top").value(bounds.top);
-                    j.name("bottom").value(bounds.bottom);
-                    j.endObject();
-                    if (drawable instanceof ColorDrawable) {
-                        final ColorDrawable colorDrawable = (ColorDrawable) drawable;
-                        j.name("color").value(colorDrawable.getColor());
+    private static class CapturedView {
+        public CapturedView(View view, String idName, String[] classes, Object[] properties) {
+            this.hashCode = view.hashCode();
+            this.id = view.getId();
+            this.idName = idName;
+
+            final CharSequence description = view.getContentDescription();
+            this.contentDescription = null == description ? null : description.toString();
+
+            final Object viewTag = view.getTag();
+            this.hasTag = null == viewTag || viewTag instanceof CharSequence;
+            this.tag = null == viewTag ? null : viewTag.toString();
+
+            this.top = view.getTop();
+            this.left = view.getLeft();
+            this.width = view.getWidth();
+            this.height = view.getHeight();
+            this.scrollX = view.getScrollX();
+            this.scrollY = view.getScrollY();
+            this.visibility = view.getVisibility();
+            this.translationX = view.getTranslationX();
+            this.translationY = view.getTranslationY();
+            this.classes = classes;
+            this.properties = properties;
+
+            final ViewGroup.LayoutParams layoutParams = view.getLayoutParams();
+            if (layoutParams instanceof RelativeLayout.LayoutParams) {
+                this.layoutRules = ((RelativeLayout.LayoutParams) layoutParams).getRules().clone();
+            } else {
+                this.layoutRules = null;
+            }
+
+            if (view instanceof ViewGroup) {
+                final ViewGroup group = (ViewGroup) view;
+                final int childCount = group.getChildCount();
+                final int[] childHashCodes = new int[childCount];
+                int found = 0;
+                for (int i = 0; i < childCount; i++) {
+                    final View child = group.getChildAt(i);
+                    // child can be null when views are getting disposed.
+                    if (null != child) {
+                        childHashCodes[found] = child.hashCode();
+                        found++;
                     }
-                    j.endObject();
-                } else {
-                    j.name(desc.name).value(value.toString());
+                }
+                this.subviews = found == childCount ? childHashCodes : Arrays.copyOf(childHashCodes, found);
+            } else {
+                this.subviews = NO_SUBVIEWS;
+            }
+        }
+
+        public final int hashCode;
+        public final int id;
+        public final String idName;
+        public final String contentDescription;
+        public final boolean hasTag;
+        public final String tag;
+        public final int top;
+        public final int left;
+        public final int width;
+        public final int height;
+        public final int scrollX;
+        public final int scrollY;
+        public final int visibility;
+        public final float translationX;
+        public final float translationY;
+        public final String[] classes;
+        public final Object[] properties;
+        public final int[] layoutRules;
+        public final int[] subviews;
+
+        private static final int[] NO_SUBVIEWS = new int[0];
+    }
+
+    private static class CapturedDrawable {
+        public CapturedDrawable(Drawable drawable, String[] classes) {
+            this.classes = classes;
+
+            final Rect bounds = drawable.getBounds();
+            this.left = bounds.left;
+            this.right = bounds.right;
+            this.top = bounds.top;
+            this.bottom = bounds.bottom;
+
+            if (drawable instanceof ColorDrawable) {
+                this.color = ((ColorDrawable) drawable).getColor();
+            } else {
+                this.color = null;
+            }
+        }
+
+        public final String[] classes;
+        public final int left;
+        public final int right;
+        public final int top;
+        public final int bottom;
+        public final Integer color;
+    }
+
+    /**
+     * What a snapshot needs to know about a view class, worked out the first time a view of
+     * that class is seen rather than for every view.
+     */
+    private static class ViewClassInfo {
+        public ViewClassInfo(String[] classes, int[] propertyIndexes) {
+            this.classes = classes;
+            this.propertyIndexes = propertyIndexes;
+        }
+
+        /**
+         * Canonical names of the class and its superclasses, below Object
+         */
+        public final String[] classes;
+        /**
+         * Indexes into mProperties of the properties that have an accessor and apply to the class
+         */
+        public final int[] propertyIndexes;
+    }
+
+    private class ViewClassInfoCache extends LruCache<Class<?>, ViewClassInfo> {
+        public ViewClassInfoCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected ViewClassInfo create(Class<?> viewClass) {
+            final List<String> classes = new ArrayList<String>();
+            Class<?> klass = viewClass;
+            //将当前类 和 其父类关系都添加
+            do {
+                classes.add(klass.getCanonicalName());
+                klass = klass.getSuperclass();
+            } while (klass != Object.class && klass != null);
+
+            final int propertyCount = mProperties.size();
+            final int[] matches = new int[propertyCount];
+            int found = 0;
+            for (int i = 0; i < propertyCount; i++) {
+                final PropertyDescription desc = mProperties.get(i);
+                // isAssignableFrom 表示 俩者是否相同 或 前者是后者的超类或接口
+                // 只有符合条件,才表示viewClass 拥有该属性,才能够去获取该属性
+                if (desc.targetClass.isAssignableFrom(viewClass) && null != desc.accessor) {
+                    matches[found] = i;
+                    found++;
                 }
             }
+
+            return new ViewClassInfo(classes.toArray(new String[classes.size()]),
+                    Arrays.copyOf(matches, found));
         }
     }
 
-    private static class ClassNameCache extends LruCache<Class<?>, String> {
-        public ClassNameCache(int maxSize) {
+    private static class DrawableClassesCache extends LruCache<Class<?>, String[]> {
+        public DrawableClassesCache(int maxSize) {
             super(maxSize);
         }
 
         @Override
-        protected String create(Class<?> klass) {
-            return klass.getCanonicalName();
+        protected String[] create(Class<?> drawableClass) {
+            final List<String> classNames = new ArrayList<String>();
+            Class<?> klass = drawableClass;
+            while (klass != Object.class) {
+                classNames.add(klass.getCanonicalName());
+                klass = klass.getSuperclass();
+            }
+            return classNames.toArray(new String[classNames.size()]);
         }
     }
 
-    private static class RootViewFinder implements Callable<List<RootViewInfo>> {
+    /**
+     * Runs on the UI thread, taking the screenshot and capturing the view hierarchy of every
+     * live activity, so that nothing touches live views once the snapshot is being serialized.
+     */
+    private class RootViewFinder implements Callable<List<RootViewInfo>> {
         public RootViewFinder() {
             mDisplayMetrics = new DisplayMetrics();
-            mRootViews = new ArrayList<RootViewInfo>();
             mCachedBitmap = new CachedBitmap();
         }
 
@@ -359,7 +770,8 @@ import java.util.concurrent.TimeoutException;
 
         @Override
         public List<RootViewInfo> call() throws Exception {
-            mRootViews.clear();
+            // A fresh list each time, a late call must not change a list that is being serialized
+            final List<RootViewInfo> rootViews = new ArrayList<RootViewInfo>();
 
             final Set<Activity> liveActivities = mLiveActivities.getAll();
             //遍历当前存活的activity
@@ -367,21 +779,20 @@ import java.util.concurrent.TimeoutException;
                 // 获取Activity类的名称
                 final String activityName = a.getClass().getCanonicalName();
                 // 获取RootView,理论上来说就是DecorView
-                final View rootView = a.getWindow().getDecorView().getRootView();
+                final Window window = a.getWindow();
+                final View rootView = window.getDecorView().getRootView();
                 // 获取屏幕的一些信息,保存到 mDisplayMetrics
                 a.getWindowManager().getDefaultDisplay().getMetrics(mDisplayMetrics);
-                final RootViewInfo info = new RootViewInfo(activityName, rootView);
-                mRootViews.add(info);
+                final RootViewInfo info = new RootViewInfo(activityName, rootView, window);
+                rootViews.add(info);
             }
             //开始 所有的这些rootView创建截图
-            final int viewCount = mRootViews.size();
+            final int viewCount = rootViews.size();
             for (int i = 0; i < viewCount; i++) {
-                final RootViewInfo info = mRootViews.get(i);
-                //创建截图,保存信息在info对象中
-                takeScreenshot(info);
+                captureRootView(rootViews.get(i));
             }
 
-            return mRootViews;
+            return rootViews;
         }
 
 
@@ -390,31 +801,40 @@ import java.util.concurrent.TimeoutException;
          *
          * @param info
          */
-        private void takeScreenshot(final RootViewInfo info) {
+        public void takeScreenshot(final RootViewInfo info) {
             final View rootView = info.rootView;
             Bitmap rawBitmap = null;
 
-            try {
-                //获取createSnapshot 方法,获得当前屏幕截图
-                final Method createSnapshot = View.class.getDeclaredMethod(
-                        "createSnapshot",
-                        Bitmap.Config.class,
-                        Integer.TYPE,
-                        Boolean.TYPE);
-                createSnapshot.setAccessible(true);
-                rawBitmap = (Bitmap) createSnapshot.invoke(rootView,
-                        Bitmap.Config.RGB_565,
-                        Color.WHITE, false);
-            } catch (final NoSuchMethodException e) {
-                MPLog.v(LOGTAG, "Can't call createSnapshot, will use drawCache", e);
-            } catch (final IllegalArgumentException e) {
-                MPLog.d(LOGTAG, "Can't call createSnapshot with arguments", e);
-            } catch (final InvocationTargetException e) {
-                MPLog.e(LOGTAG, "Exception when calling createSnapshot", e);
-            } catch (final IllegalAccessException e) {
-                MPLog.e(LOGTAG, "Can't access createSnapshot, using drawCache", e);
-            } catch (final ClassCastException e) {
-                MPLog.e(LOGTAG, "createSnapshot didn't return a bitmap?", e);
+            // PixelCopy.request(Window, ...) is only there from Oreo
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                rawBitmap = copyWindowPixels(info.window, rootView);
+            }
+            // Unlike the drawing cache, the copy is ours alone and can be freed once it's scaled
+            final Bitmap pixelCopy = rawBitmap;
+
+            if (null == rawBitmap) {
+                try {
+                    //获取createSnapshot 方法,获得当前屏幕截图
+                    final Method createSnapshot = View.class.getDeclaredMethod(
+                            "createSnapshot",
+                            Bitmap.Config.class,
+                            Integer.TYPE,
+                            Boolean.TYPE);
+                    createSnapshot.setAccessible(true);
+                    rawBitmap = (Bitmap) createSnapshot.invoke(rootView,
+                            Bitmap.Config.RGB_565,
+                            Color.WHITE, false);
+                } catch (final NoSuchMethodException e) {
+                    MPLog.v(LOGTAG, "Can't call createSnapshot, will use drawCache", e);
+                } catch (final IllegalArgumentException e) {
+                    MPLog.d(LOGTAG, "Can't call createSnapshot with arguments", e);
+                } catch (final InvocationTargetException e) {
+                    MPLog.e(LOGTAG, "Exception when calling createSnapshot", e);
+                } catch (final IllegalAccessException e) {
+                    MPLog.e(LOGTAG, "Can't access createSnapshot, using drawCache", e);
+                } catch (final ClassCastException e) {
+                    MPLog.e(LOGTAG, "createSnapshot didn't return a bitmap?", e);
+                }
             }
 
             //使用另外一种方式获取当前视图截图
@@ -439,6 +859,11 @@ import java.util.concurrent.TimeoutException;
                 if (rawDensity != Bitmap.DENSITY_NONE) {
                     scale = ((float) mClientDensity) / rawDensity;
                 }
+                // Scale down further if the editor asked for a narrower screenshot
+                final int maxWidth = mMaxScreenshotWidth;
+                if (maxWidth > 0 && rawBitmap.getWidth() * scale > maxWidth) {
+                    scale = ((float) maxWidth) / rawBitmap.getWidth();
+                }
                 //原始 长宽
                 final int rawWidth = rawBitmap.getWidth();
                 final int rawHeight = rawBitmap.getHeight();
@@ -451,6 +876,9 @@ import java.util.concurrent.TimeoutException;
                     mCachedBitmap.recreate(destWidth, destHeight, mClientDensity, rawBitmap);
                 }
             }
+            if (null != pixelCopy) {
+                pixelCopy.recycle();
+            }
             // 恢复drawingCacheEnabled选项
             if (null != originalCacheState && !originalCacheState) {
                 rootView.setDrawingCacheEnabled(false);
@@ -462,18 +890,79 @@ import java.util.concurrent.TimeoutException;
         }
 
         /**
-         * 当前存活的Activity 列表
+         * Copies the window's surface with PixelCopy, which reads back what the hardware renderer
+         * drew instead of drawing the hierarchy again in software. Waits for the copy on the UI
+         * thread, for at most PIXEL_COPY_TIMEOUT_MILLIS.
+         *
+         * @return the copy, or null if it couldn't be made and an older method should be used
          */
-        private UIThreadSet<Activity> mLiveActivities;
+        @TargetApi(Build.VERSION_CODES.O)
+        private Bitmap copyWindowPixels(Window window, View rootView) {
+            final int width = rootView.getWidth();
+            final int height = rootView.getHeight();
+            if (null == window || width <= 0 || height <= 0 || !rootView.isHardwareAccelerated()) {
+                return null;
+            }
+
+            final Bitmap bitmap;
+            try {
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+            } catch (final OutOfMemoryError e) {
+                return null;
+            }
+
+            final CountDownLatch copied = new CountDownLatch(1);
+            final int[] copyResult = {PixelCopy.ERROR_UNKNOWN};
+            try {
+                PixelCopy.request(window, bitmap, new PixelCopy.OnPixelCopyFinishedListener() {
+                    @Override
+                    public void onPixelCopyFinished(int result) {
+                        copyResult[0] = result;
+                        copied.countDown();
+                    }
+                }, getPixelCopyHandler());
+            } catch (final IllegalArgumentException e) {
+                MPLog.v(LOGTAG, "Can't use PixelCopy on this window, will use createSnapshot", e);
+                bitmap.recycle();
+                return null;
+            }
+
+            try {
+                if (!copied.await(PIXEL_COPY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    MPLog.v(LOGTAG, "PixelCopy timed out, will use createSnapshot");
+                    return null;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+
+            if (copyResult[0] != PixelCopy.SUCCESS) {
+                MPLog.v(LOGTAG, "PixelCopy failed with result " + copyResult[0] + ", will use createSnapshot");
+                bitmap.recycle();
+                return null;
+            }
+
+            return bitmap;
+        }
+
+        // PixelCopy calls back on a Handler, which can't be the main thread we are waiting on
+        private Handler getPixelCopyHandler() {
+            if (null == mPixelCopyHandler) {
+                final HandlerThread thread = new HandlerThread("com.mixpanel.android.PixelCopy");
+                thread.start();
+                mPixelCopyHandler = new Handler(thread.getLooper());
+            }
+            return mPixelCopyHandler;
+        }
+
         /**
-         * 保存了 Activity 和 DecorView的关系
-         * RootViewInfo 是对俩者关系的封装类
-         * <p>
-         * 以及相关的截图信息
+         * 当前存活的Activity 列表
          */
-        private final List<RootViewInfo> mRootViews;
+        private UIThreadSet<Activity> mLiveActivities;
         private final DisplayMetrics mDisplayMetrics;
         private final CachedBitmap mCachedBitmap;
+        private Handler mPixelCopyHandler;
         /**
          * 默认屏幕密度
          */
@@ -483,6 +972,7 @@ import java.util.concurrent.TimeoutException;
     private static class CachedBitmap {
         public CachedBitmap() {
             mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            mDestination = new Rect();
             mCached = null;
         }
 
@@ -507,45 +997,258 @@ import java.util.concurrent.TimeoutException;
             if (null != mCached) {
                 //将原图画到缓存的Bitmap上
                 final Canvas scaledCanvas = new Canvas(mCached);
-                scaledCanvas.drawBitmap(source, 0, 0, mPaint);
+                mDestination.set(0, 0, width, height);
+                scaledCanvas.drawBitmap(source, null, mDestination, mPaint);
             }
         }
 
-        // Writes a QUOTED base64 string (or the string null) to the output stream
+        // Writes the image written by the encoder (or the string null) to the output stream
 
         /**
          * 将图片转成base64,添加到json中
          *
-         * @param format
-         * @param quality
+         * @param encoder
          * @param out
          * @throws IOException
          */
-        public synchronized void writeBitmapJSON(Bitmap.CompressFormat format,
-                                                 int quality,
-                                                 OutputStream out)
+        public synchronized void writeBitmapJSON(ImageEncoder encoder, OutputStream out)
                 throws IOException {
             if (null == mCached || mCached.getWidth() == 0 || mCached.getHeight() == 0) {
                 out.write("null".getBytes());
             } else {
-                out.write('"');
-                final Base64OutputStream imageOut = new Base64OutputStream(out, Base64.NO_WRAP);
-                mCached.compress(Bitmap.CompressFormat.PNG, 100, imageOut);
-                imageOut.flush();
-                out.write('"');
+                encoder.writeImageJSON(mCached, out);
             }
         }
 
+        /**
+         * Writes {"tile_size", "width", "height", "tiles": [{"x", "y", "image"}...]}, where each
+         * image is written by the encoder for a tile whose pixels hash differently than in previous
+         * (every tile if previous is null or of a different size), or the string null if there
+         * is no screenshot.
+         *
+         * @return the tile hashes of this screenshot, or null if there is none
+         */
+        public synchronized TileHashes writeChangedTilesJSON(TileHashes previous, ImageEncoder encoder, OutputStream out)
+                throws IOException {
+            if (null == mCached || mCached.getWidth() == 0 || mCached.getHeight() == 0) {
+                out.write("null".getBytes());
+                return null;
+            }
+
+            final int width = mCached.getWidth();
+            final int height = mCached.getHeight();
+            final int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+            final int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+            final TileHashes current = new TileHashes(width, height, new long[columns * rows]);
+            final boolean comparable = null != previous &&
+                    previous.width == width && previous.height == height;
+            if (null == mTilePixels) {
+                mTilePixels = new int[TILE_SIZE * TILE_SIZE];
+            }
+
+            out.write(("{\"tile_size\":" + TILE_SIZE +
+                    ",\"width\":" + width +
+                    ",\"height\":" + height +
+                    ",\"tiles\":[").getBytes());
+            boolean first = true;
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    final int x = column * TILE_SIZE;
+                    final int y = row * TILE_SIZE;
+                    final int tileWidth = Math.min(TILE_SIZE, width - x);
+                    final int tileHeight = Math.min(TILE_SIZE, height - y);
+                    mCached.getPixels(mTilePixels, 0, tileWidth, x, y, tileWidth, tileHeight);
+                    final long tileHash = hash64(mTilePixels, tileWidth * tileHeight);
+                    final int tileIndex = row * columns + column;
+                    current.hashes[tileIndex] = tileHash;
+                    if (comparable && previous.hashes[tileIndex] == tileHash) {
+                        continue;
+                    }
+
+                    if (!first) {
+                        out.write(',');
+                    }
+                    first = false;
+                    out.write(("{\"x\":" + x + ",\"y\":" + y + ",\"image\":").getBytes());
+                    final Bitmap tile = Bitmap.createBitmap(mCached, x, y, tileWidth, tileHeight);
+                    encoder.writeImageJSON(tile, out);
+                    if (tile != mCached) {
+                        tile.recycle();
+                    }
+                    out.write('}');
+                }
+            }
+            out.write("]}".getBytes());
+
+            return current;
+        }
+
         private Bitmap mCached;
+        private int[] mTilePixels;
         private final Paint mPaint;
+        private final Rect mDestination;
     }
 
-    private static class RootViewInfo {
-        public RootViewInfo(String activityName, View rootView) {
+    /**
+     * Compresses screenshots in the format the editor asked for, and keeps track of how long
+     * that took and how much it produced. Only used on the thread that calls snapshots.
+     */
+    private static class ImageEncoder {
+        public ImageEncoder() {
+            mFormat = Bitmap.CompressFormat.PNG;
+            mQuality = 100;
+            mBinary = false;
+            mBinaryImages = new ArrayList<byte[]>();
+        }
+
+        public void setBinary(boolean binary) {
+            mBinary = binary;
+        }
+
+        public List<byte[]> takeBinaryImages() {
+            final List<byte[]> images = new ArrayList<byte[]>(mBinaryImages);
+            mBinaryImages.clear();
+            return images;
+        }
+
+        public void setFormat(Bitmap.CompressFormat format, int quality) {
+            mFormat = format;
+            mQuality = Math.max(0, Math.min(100, quality));
+        }
+
+        public void resetStats() {
+            mEncodeMillis = 0;
+            mEncodedBytes = 0;
+            mBinaryImages.clear();
+        }
+
+        public long getEncodeMillis() {
+            return mEncodeMillis;
+        }
+
+        public long getEncodedBytes() {
+            return mEncodedBytes;
+        }
+
+        // Writes bitmap to out as a QUOTED base64 string, or in binary mode as a reference
+        // to an image kept for takeBinaryImages
+        public void writeImageJSON(Bitmap bitmap, OutputStream out) throws IOException {
+            final long startMillis = SystemClock.uptimeMillis();
+            if (mBinary) {
+                final ByteArrayOutputStream image = new ByteArrayOutputStream();
+                bitmap.compress(mFormat, mQuality, image);
+                final byte[] imageBytes = image.toByteArray();
+                out.write(("{\"binary_index\":" + mBinaryImages.size() +
+                        ",\"bytes\":" + imageBytes.length + "}").getBytes());
+                mBinaryImages.add(imageBytes);
+                mEncodeMillis += SystemClock.uptimeMillis() - startMillis;
+                mEncodedBytes += imageBytes.length;
+                return;
+            }
+
+            final CountingOutputStream counted = new CountingOutputStream(out);
+            counted.write('"');
+            final Base64OutputStream imageOut = new Base64OutputStream(counted, Base64.NO_WRAP);
+            bitmap.compress(mFormat, mQuality, imageOut);
+            // Closing writes the final base64 block, and leaves out open
+            imageOut.close();
+            counted.write('"');
+            mEncodeMillis += SystemClock.uptimeMillis() - startMillis;
+            mEncodedBytes += counted.getCount();
+        }
+
+        private Bitmap.CompressFormat mFormat;
+        private int mQuality;
+        private boolean mBinary;
+        private final List<byte[]> mBinaryImages;
+        private long mEncodeMillis;
+        private long mEncodedBytes;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+
+        // Doesn't close the wrapped stream, which still has the rest of the snapshot to carry
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        private long mCount;
+    }
+
+    private static class TileHashes {
+        public TileHashes(int width, int height, long[] hashes) {
+            this.width = width;
+            this.height = height;
+            this.hashes = hashes;
+        }
+
+        public final int width;
+        public final int height;
+        public final long[] hashes;
+    }
+
+    /**
+     * What was last sent for an activity in a delta snapshot
+     */
+    private static class DeltaState {
+        public DeltaState() {
+            viewHashes = new HashMap<Integer, Long>();
+            tiles = null;
+        }
+
+        public final Map<Integer, Long> viewHashes;
+        public TileHashes tiles;
+    }
+
+    // 64 bit FNV-1a, 32 bit hashes collide too often to decide what can be left out of a snapshot
+    private static long hash64(String s) {
+        long hash = FNV_OFFSET_BASIS;
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            hash ^= s.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long hash64(int[] values, int count) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < count; i++) {
+            hash ^= values[i];
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /* package */ static class RootViewInfo {
+        public RootViewInfo(String activityName, View rootView, Window window) {
             this.activityName = activityName;
             this.rootView = rootView;
+            this.window = window;
             this.screenshot = null;
             this.scale = 1.0f;
+            this.views = Collections.emptyList();
+            this.truncated = false;
         }
 
         public final String activityName;
@@ -553,8 +1256,14 @@ import java.util.concurrent.TimeoutException;
          * 理论来说是 DecorView
          */
         public final View rootView;
+        public final Window window;
         public CachedBitmap screenshot;
         public float scale;
+        /**
+         * The views under rootView, captured on the UI thread
+         */
+        public List<CapturedView> views;
+        public boolean truncated;
     }
 
     /**
@@ -572,9 +1281,13 @@ import java.util.concurrent.TimeoutException;
     /**
      * LruCache,
      * <p>
-     * 类字节码 - 类名称
+     * 控件类字节码 - 类名称及适用的属性
+     */
+    private final ViewClassInfoCache mViewClassInfoCache;
+    /**
+     * Drawable类字节码 - 类及父类名称
      */
-    private final ClassNameCache mClassnameCache;
+    private final DrawableClassesCache mDrawableClassesCache;
     /**
      * 运行在主线程的 Handler
      */
@@ -584,7 +1297,25 @@ import java.util.concurrent.TimeoutException;
      */
     private final ResourceIds mResourceIds;
 
+    /**
+     * Activity name - what was last sent for it, for delta snapshots
+     */
+    private final Map<String, DeltaState> mDeltaStates;
+    private final ImageEncoder mImageEncoder;
+    /**
+     * Read on the UI thread while taking screenshots
+     */
+    private volatile int mMaxScreenshotWidth;
+
     private static final int MAX_CLASS_NAME_CACHE_SIZE = 255;
+    /**
+     * How long the UI thread may spend capturing view hierarchies for one snapshot
+     */
+    private static final long MAX_CAPTURE_MILLIS = 100;
+    private static final long PIXEL_COPY_TIMEOUT_MILLIS = 200;
+    private static final int TILE_SIZE = 128;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
 
     @SuppressWarnings("unused")
     private static final String LOGTAG = "MixpanelAPI.Snapshot";
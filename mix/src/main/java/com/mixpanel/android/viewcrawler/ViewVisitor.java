@@ -14,6 +14,7 @@ import android.widget.TextView;
 import com.mixpanel.android.mpmetrics.MPConfig;
 import com.mixpanel.android.util.MPLog;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -21,6 +22,7 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -205,22 +207,17 @@ import java.util.WeakHashMap;
             mName = name;
             mAlive = true;
             mOnLayoutErrorListener = onLayoutErrorListener;
-            mCycleDetector = new CycleDetector();
         }
 
         @Override
         public void cleanup() {
             // TODO find a way to optimize this.. remove this visitor and trigger a re-layout??
             for (Map.Entry<View, int[]> original : mOriginalValues.entrySet()) {
-                final View changedView = original.getKey();
-                final int[] originalValue = original.getValue();
-                final RelativeLayout.LayoutParams originalParams = (RelativeLayout.LayoutParams) changedView.getLayoutParams();
-                for (int i = 0; i < originalValue.length; i++) {
-                    originalParams.addRule(i, originalValue[i]);
-                }
-                changedView.setLayoutParams(originalParams);
+                restoreRules(original.getKey(), original.getValue());
             }
-            mAlive = false;
+            // A visitor cleaned up when its activity goes away can be applied again to the next
+            // instance, so cleanup forgets the views it changed instead of retiring the visitor
+            mOriginalValues.clear();
         }
 
         @Override
@@ -233,21 +230,45 @@ import java.util.WeakHashMap;
             }
         }
 
-        // layout changes are performed on the children of found according to the LayoutRule
+        // layout changes are performed on the children of found according to the LayoutRule.
+        // All of the rules are applied to the children's params first, then the new layout is
+        // checked for cycles once per axis and the parent is laid out once.
         @Override
         public void accumulate(View found) {
-            ViewGroup parent = (ViewGroup) found;
-            SparseArray<View> idToChild = new SparseArray<View>();
+            final ViewGroup parent = (ViewGroup) found;
+            final SparseArray<View> idToChild = childrenById(parent);
 
-            int count = parent.getChildCount();
-            for (int i = 0; i < count; i++) {
-                View child = parent.getChildAt(i);
-                int childId = child.getId();
-                if (childId > 0) {
-                    idToChild.put(childId, child);
-                }
+            final int changes = applyRules(idToChild);
+            if (NO_CHANGES == changes) {
+                return;
             }
 
+            if (!verifyLayout(changes, idToChild)) {
+                cleanup();
+                mAlive = false;
+                mOnLayoutErrorListener.onLayoutError(new LayoutErrorMessage("circular_dependency", mName));
+                return;
+            }
+
+            // The params were updated in place, a single pass over the parent picks them all up
+            parent.requestLayout();
+        }
+
+        /**
+         * @return false once this update has been found to make a circular layout
+         */
+        /* package */ boolean isAlive() {
+            return mAlive;
+        }
+
+        /**
+         * Applies this update's rules to the children of one parent, remembering the rules each
+         * child had first. Nothing is verified or laid out.
+         *
+         * @return NO_CHANGES, or RULES_CHANGED along with the axes whose rules changed
+         */
+        /* package */ int applyRules(SparseArray<View> idToChild) {
+            int changes = NO_CHANGES;
             int size = mArgs.size();
             for (int i = 0; i < size; i++) {
                 LayoutRule layoutRule = mArgs.get(i);
@@ -257,7 +278,7 @@ import java.util.WeakHashMap;
                 }
 
                 RelativeLayout.LayoutParams currentParams = (RelativeLayout.LayoutParams) currentChild.getLayoutParams();
-                final int[] currentRules = currentParams.getRules().clone();
+                final int[] currentRules = currentParams.getRules();
 
                 if (currentRules[layoutRule.verb] == layoutRule.anchor) {
                     continue;
@@ -266,31 +287,70 @@ import java.util.WeakHashMap;
                 if (mOriginalValues.containsKey(currentChild)) {
                     ; // Cache exactly one set of rules per child view
                 } else {
-                    mOriginalValues.put(currentChild, currentRules);
+                    mOriginalValues.put(currentChild, currentRules.clone());
                 }
 
                 currentParams.addRule(layoutRule.verb, layoutRule.anchor);
-
-                final Set<Integer> rules;
+                changes |= RULES_CHANGED;
                 if (mHorizontalRules.contains(layoutRule.verb)) {
-                    rules = mHorizontalRules;
+                    changes |= HORIZONTAL_RULES_CHANGED;
                 } else if (mVerticalRules.contains(layoutRule.verb)) {
-                    rules = mVerticalRules;
-                } else {
-                    rules = null;
+                    changes |= VERTICAL_RULES_CHANGED;
                 }
+            }
 
-                if (rules != null && !verifyLayout(rules, idToChild)) {
-                    cleanup();
-                    mOnLayoutErrorListener.onLayoutError(new LayoutErrorMessage("circular_dependency", mName));
-                    return;
+            return changes;
+        }
+
+        /**
+         * Puts back the rules this update changed on the children of one parent, leaving the
+         * views it changed under any other parent alone.
+         */
+        /* package */ void restoreChildren(SparseArray<View> idToChild) {
+            int size = idToChild.size();
+            for (int i = 0; i < size; i++) {
+                final View child = idToChild.valueAt(i);
+                final int[] originalValue = mOriginalValues.remove(child);
+                if (null != originalValue) {
+                    restoreRules(child, originalValue);
                 }
+            }
+        }
+
+        /* package */ static SparseArray<View> childrenById(ViewGroup parent) {
+            SparseArray<View> idToChild = new SparseArray<View>();
 
-                currentChild.setLayoutParams(currentParams);
+            int count = parent.getChildCount();
+            for (int i = 0; i < count; i++) {
+                View child = parent.getChildAt(i);
+                int childId = child.getId();
+                if (childId > 0) {
+                    idToChild.put(childId, child);
+                }
+            }
+
+            return idToChild;
+        }
+
+        /**
+         * @return false if the axes named in changes, as returned by applyRules, are now circular
+         */
+        /* package */ static boolean verifyLayout(int changes, SparseArray<View> idToChild) {
+            if ((changes & HORIZONTAL_RULES_CHANGED) != 0 && !verifyLayout(mHorizontalRules, idToChild)) {
+                return false;
             }
+            return (changes & VERTICAL_RULES_CHANGED) == 0 || verifyLayout(mVerticalRules, idToChild);
         }
 
-        private boolean verifyLayout(Set<Integer> rules, SparseArray<View> idToChild) {
+        private static void restoreRules(View changedView, int[] originalValue) {
+            final RelativeLayout.LayoutParams originalParams = (RelativeLayout.LayoutParams) changedView.getLayoutParams();
+            for (int i = 0; i < originalValue.length; i++) {
+                originalParams.addRule(i, originalValue[i]);
+            }
+            changedView.setLayoutParams(originalParams);
+        }
+
+        private static boolean verifyLayout(Set<Integer> rules, SparseArray<View> idToChild) {
             // We don't really care about the order, as long as it's always the same.
             final TreeMap<View, List<View>> dependencyGraph = new TreeMap<View, List<View>>(new Comparator<View>() {
                 @Override
@@ -323,7 +383,7 @@ import java.util.WeakHashMap;
                 dependencyGraph.put(child, dependencies);
             }
 
-            return mCycleDetector.hasCycle(dependencyGraph);
+            return new CycleDetector().hasCycle(dependencyGraph);
         }
 
         protected String name() {
@@ -344,7 +404,87 @@ import java.util.WeakHashMap;
         ));
         private boolean mAlive;
         private final OnLayoutErrorListener mOnLayoutErrorListener;
-        private final CycleDetector mCycleDetector;
+
+        /* package */ static final int NO_CHANGES = 0;
+        /* package */ static final int RULES_CHANGED = 1;
+        /* package */ static final int HORIZONTAL_RULES_CHANGED = 2;
+        /* package */ static final int VERTICAL_RULES_CHANGED = 4;
+    }
+
+    /**
+     * Layout updates that share a path, applied together. Each RelativeLayout they change is
+     * checked for cycles and laid out once per visit, rather than once for every update.
+     */
+    public static class LayoutUpdateBatch extends ViewVisitor {
+        public LayoutUpdateBatch(List<LayoutUpdateVisitor> updates) {
+            super(updates.get(0).getPath());
+            mUpdates = updates;
+        }
+
+        @Override
+        public void cleanup() {
+            // Newest first, so a child changed by several updates ends up with the rules it started with
+            for (int i = mUpdates.size() - 1; i >= 0; i--) {
+                mUpdates.get(i).cleanup();
+            }
+        }
+
+        @Override
+        public void cleanupExcept(Set<ViewVisitor> kept) {
+            for (int i = mUpdates.size() - 1; i >= 0; i--) {
+                mUpdates.get(i).cleanupExcept(kept);
+            }
+        }
+
+        @Override
+        public void visit(View rootView) {
+            // Updates that made a circular layout have already reported it and stay out of the way
+            for (final LayoutUpdateVisitor update : mUpdates) {
+                if (update.isAlive()) {
+                    getPathfinder().findTargetsInRoot(rootView, getPath(), this);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void accumulate(View found) {
+            final ViewGroup parent = (ViewGroup) found;
+            final SparseArray<View> idToChild = LayoutUpdateVisitor.childrenById(parent);
+
+            int changes = LayoutUpdateVisitor.NO_CHANGES;
+            for (final LayoutUpdateVisitor update : mUpdates) {
+                if (update.isAlive()) {
+                    changes |= update.applyRules(idToChild);
+                }
+            }
+            if (LayoutUpdateVisitor.NO_CHANGES == changes) {
+                return;
+            }
+
+            if (!LayoutUpdateVisitor.verifyLayout(changes, idToChild)) {
+                // Undo the batch on this parent and apply the updates one at a time, so that only
+                // the ones that close a cycle are retired and reported by name
+                for (int i = mUpdates.size() - 1; i >= 0; i--) {
+                    mUpdates.get(i).restoreChildren(idToChild);
+                }
+                for (final LayoutUpdateVisitor update : mUpdates) {
+                    if (update.isAlive()) {
+                        update.accumulate(found);
+                    }
+                }
+                return;
+            }
+
+            parent.requestLayout();
+        }
+
+        @Override
+        protected String name() {
+            return "Layout Update Batch";
+        }
+
+        private final List<LayoutUpdateVisitor> mUpdates;
     }
 
     public static class LayoutRule {
@@ -377,6 +517,7 @@ import java.util.WeakHashMap;
                                             String eventName,
                                             OnEventListener listener) {
             super(path, eventName, listener, false);
+            trackScrollingContainers();
             mEventType = accessibilityEventType;
             mWatching = new WeakHashMap<View, TrackingAccessibilityDelegate>();
         }
@@ -395,6 +536,7 @@ import java.util.WeakHashMap;
                  * 待删除的 sdk设置的 AccesibilityDelegate
                  */
                 final TrackingAccessibilityDelegate toCleanup = entry.getValue();
+                toCleanup.removeBinding(this);
 
                 /**
                  * 控件当前的delegate
@@ -403,23 +545,12 @@ import java.util.WeakHashMap;
 
                 //与已经设置的SDK-delegate进行比较,
                 // 如果相同,则说明 当前 view的 delegate 就是sdk设置的那个,那么恢复原先的状态
-                if (currentViewDelegate == toCleanup) {
-
-                    // 如果相同,则取出之前创建Delegate时传入的本来就存在的delegate
-                    // 如果存在的话..
+                // Only restore the original delegate if nobody has replaced ours in the meantime,
+                // and no other visitor is still bound through it.
+                // (It isn't too weird for ours to be gone, for example, it's expected when views get recycled)
+                if (toCleanup.isEmpty() && currentViewDelegate == toCleanup) {
+                    // 取出之前创建Delegate时传入的本来就存在的delegate
                     v.setAccessibilityDelegate(toCleanup.getRealDelegate());
-
-                    //SDK设置的delegate 与 view的当前的 delegate不相同
-                    //但是 当前的delegate 确实是 sdk设置的(通过类型判断)
-                    //这说明可能是因为  sdk-delegate1 嵌套了 sdk-delegate2(分别对应不同的事件)
-                } else if (currentViewDelegate instanceof TrackingAccessibilityDelegate) {
-                    final TrackingAccessibilityDelegate newChain =
-                            (TrackingAccessibilityDelegate) currentViewDelegate;
-                    //从当前的sdk-delegate链中 移除 sdk-delegate
-                    newChain.removeFromDelegateChain(toCleanup);
-                } else {
-                    // Assume we've been replaced, zeroed out, or for some other reason we're already gone.
-                    // (This isn't too weird, for example, it's expected when views get recycled)
                 }
             }
             //清空保存 控件- AccessibilityDelegate 关系的集合
@@ -437,32 +568,33 @@ import java.util.WeakHashMap;
             // 可能是非SDK设置的,即来自用户或者系统
             // 也可能是 sdk设置的
             // 也可能为空
-            final View.AccessibilityDelegate realDelegate = getOldDelegate(found);
+            final View.AccessibilityDelegate currentDelegate = getOldDelegate(found);
 
+            final TrackingAccessibilityDelegate tracker;
             //判断已经存在的delegate类型 是否是SDK设置的TrackingAccessibilityDelegate
-            if (realDelegate instanceof TrackingAccessibilityDelegate) {
-
-                final TrackingAccessibilityDelegate currentTracker =
-                        (TrackingAccessibilityDelegate) realDelegate;
+            if (currentDelegate instanceof TrackingAccessibilityDelegate) {
+                // Every visitor bound to a view shares its single tracking delegate
+                tracker = (TrackingAccessibilityDelegate) currentDelegate;
                 //判断已经存在的这个 delegate 是否抓取 当前的事件
                 // 防止重复设置
-                if (currentTracker.willFireEvent(getEventName())) {
+                if (tracker.willFireEvent(getEventName())) {
                     return; // Don't double track
                 }
-                // 已经存在的这个delegate 不抓取当前事件,所以需要新增delegate
+                // 已经存在的这个delegate 不抓取当前事件,所以需要新增绑定
+            } else {
+                // 运行到这里,说明 currentDelegate 为空 或非SDK 设置
+
+                // We aren't installed on this view yet, wrap whatever was there before
+                // 创建一个sdk-Delegate(TrackingAccessibilityDelegate),
+                // 用来抓取事件,会传入 之前已经存在的 delegate....
+                tracker = new TrackingAccessibilityDelegate(currentDelegate);
+                //将sdk的delegate 设置为当前delegate
+                found.setAccessibilityDelegate(tracker);
             }
 
-            // 运行到这里,说明 realDelegate 为空 或非SDK 设置 或 sdk设置(但是事件不匹配)
-
-            // We aren't already in the tracking call chain of the view
-            // 创建一个sdk-Delegate(TrackingAccessibilityDelegate),
-            // 用来抓取事件,会传入 之前已经存在的 delegate....
-            final TrackingAccessibilityDelegate newDelegate =
-                    new TrackingAccessibilityDelegate(realDelegate);
-            //将sdk的delegate 设置为当前delegate
-            found.setAccessibilityDelegate(newDelegate);
+            tracker.addBinding(this);
             // Delegate 和View的关系 保存
-            mWatching.put(found, newDelegate);
+            mWatching.put(found, tracker);
         }
 
         @Override
@@ -502,63 +634,77 @@ import java.util.WeakHashMap;
         /**
          * AddAccessibilityEventVisitor 的内部类
          * <p>
-         * 每个AddAccessibilityEventVisitor 都会对应一个event_name
+         * 每个控件只会设置一个, 所有绑定到该控件的 AddAccessibilityEventVisitor(每个都对应一个event_name) 共享
+         * <p>
+         * The one delegate installed on a tracked view, shared by every AddAccessibilityEventVisitor
+         * bound to it. Bindings are kept in flat arrays, so dispatching an event is a single scan
+         * followed by a call to the delegate we replaced, no matter how many visitors are bound.
+         * <p>
+         * Bindings are only changed and dispatched on the UI thread.
          */
-        private class TrackingAccessibilityDelegate extends View.AccessibilityDelegate {
+        private static class TrackingAccessibilityDelegate extends View.AccessibilityDelegate {
 
             /**
              * realDelegate 是之前已经存在的 Delegate....
              * 1. 可能空
              * 2. 可能非SDK设置
-             * 3. 可能SDK设置
              *
              * @param realDelegate
              */
             public TrackingAccessibilityDelegate(View.AccessibilityDelegate realDelegate) {
                 mRealDelegate = realDelegate;
+                mEventTypes = new int[0];
+                mBindings = new AddAccessibilityEventVisitor[0];
             }
 
             public View.AccessibilityDelegate getRealDelegate() {
                 return mRealDelegate;
             }
 
+            public boolean isEmpty() {
+                return mBindings.length == 0;
+            }
+
             public boolean willFireEvent(final String eventName) {
-                // 判断当前 Delegate 是否抓取该事件
-                if (getEventName() == eventName) {
-                    return true;
-
-                    // 判断嵌套的 delegate 是否抓取
-                } else if (mRealDelegate instanceof TrackingAccessibilityDelegate) {
-                    // 递归...
-                    return ((TrackingAccessibilityDelegate) mRealDelegate).willFireEvent(eventName);
-                } else {
-                    return false;
+                // 判断当前 Delegate 的绑定 是否抓取该事件
+                for (final AddAccessibilityEventVisitor binding : mBindings) {
+                    if (binding.getEventName() == eventName) {
+                        return true;
+                    }
                 }
+                return false;
             }
 
-            /**
-             * 嵌套只可能是出现在  自定义的 TrackingAccessibilityDelegate中
-             *
-             * @param other
-             */
-            public void removeFromDelegateChain(final TrackingAccessibilityDelegate other) {
-                // 如果 当前delegate中的嵌套delegate 和 传入的相同
-                // 说明 这个传入的delegate 被嵌套在了 当前 delegate中..
-                if (mRealDelegate == other) {
-                    //  other 中可能还有 嵌套的 delegate....
-                    // 再次通过 getRealDelegate 取出
-                    mRealDelegate = other.getRealDelegate();
-
-
-                    //俩者不相同,但是 realDelegate还是 SDK-delegate类型,这说明 还有一层嵌套
-                    //那么继续进行嵌套的删除
-                } else if (mRealDelegate instanceof TrackingAccessibilityDelegate) {
-                    final TrackingAccessibilityDelegate child =
-                            (TrackingAccessibilityDelegate) mRealDelegate;
-                    // 递归了... 直到找到对应的那个, 然后将 默认的 delegate(可能空,可能非SDK设置) 重新赋值给控件
-                    child.removeFromDelegateChain(other);
-                } else {
-                    // We can't see any further down the chain, just return.
+            public void addBinding(AddAccessibilityEventVisitor binding) {
+                final int count = mBindings.length;
+                for (int i = 0; i < count; i++) {
+                    if (mBindings[i] == binding) {
+                        return;
+                    }
+                }
+
+                final int[] eventTypes = Arrays.copyOf(mEventTypes, count + 1);
+                final AddAccessibilityEventVisitor[] bindings = Arrays.copyOf(mBindings, count + 1);
+                eventTypes[count] = binding.mEventType;
+                bindings[count] = binding;
+                mEventTypes = eventTypes;
+                mBindings = bindings;
+            }
+
+            public void removeBinding(AddAccessibilityEventVisitor binding) {
+                final int count = mBindings.length;
+                for (int i = 0; i < count; i++) {
+                    if (mBindings[i] == binding) {
+                        final int[] eventTypes = new int[count - 1];
+                        final AddAccessibilityEventVisitor[] bindings = new AddAccessibilityEventVisitor[count - 1];
+                        System.arraycopy(mEventTypes, 0, eventTypes, 0, i);
+                        System.arraycopy(mEventTypes, i + 1, eventTypes, i, count - i - 1);
+                        System.arraycopy(mBindings, 0, bindings, 0, i);
+                        System.arraycopy(mBindings, i + 1, bindings, i, count - i - 1);
+                        mEventTypes = eventTypes;
+                        mBindings = bindings;
+                        return;
+                    }
                 }
             }
 
@@ -569,10 +715,16 @@ import java.util.WeakHashMap;
              */
             @Override
             public void sendAccessibilityEvent(View host, int eventType) {
-                // AccessibilityEvent = 1
-                if (eventType == mEventType) {
-                    fireEvent(host);
+                // Read the arrays once, a listener may add or remove bindings while we fire
+                final int[] eventTypes = mEventTypes;
+                final AddAccessibilityEventVisitor[] bindings = mBindings;
+                for (int i = 0; i < eventTypes.length; i++) {
+                    // AccessibilityEvent = 1
+                    if (eventTypes[i] == eventType) {
+                        bindings[i].fireEvent(host);
+                    }
                 }
+
                 // 如果 还拥有子类 accessibility .. 继续向下发送
                 if (null != mRealDelegate) {
                     mRealDelegate.sendAccessibilityEvent(host, eventType);
@@ -582,10 +734,15 @@ import java.util.WeakHashMap;
             /**
              * 非SDK设置的delegate,可能来自用户或者系统设置
              * <p>
-             * 同时会有一种嵌套的可能 , realDelegate 被传入 sdk-delegate-1
-             * 但是这时候,又有一个新的事件,所以 sdk-delegate-1 又会被传入新的sdk-delegate-2
+             * 不会再有嵌套的可能: 新的事件不会再创建 sdk-delegate-2 去嵌套 sdk-delegate-1,
+             * 而是添加到同一个 sdk-delegate 的绑定中
              */
-            private View.AccessibilityDelegate mRealDelegate;
+            private final View.AccessibilityDelegate mRealDelegate;
+            /**
+             * 与 mBindings 一一对应的事件类型
+             */
+            private int[] mEventTypes;
+            private AddAccessibilityEventVisitor[] mBindings;
         }
 
         /**
@@ -607,6 +764,7 @@ import java.util.WeakHashMap;
     public static class AddTextChangeListener extends EventTriggeringVisitor {
         public AddTextChangeListener(List<Pathfinder.PathElement> path, String eventName, OnEventListener listener) {
             super(path, eventName, listener, true);
+            trackScrollingContainers();
             mWatching = new HashMap<TextView, TextWatcher>();
         }
 
@@ -781,6 +939,47 @@ import java.util.WeakHashMap;
         mPathfinder.findTargetsInRoot(rootView, mPath, this);
     }
 
+    /**
+     * Applies the visitor only to children that have been attached to a known scrolling container
+     * (ListView, GridView, RecyclerView) since the last pass, rather than scanning from the root.
+     * Containers are discovered by {@link #visit(View)}, and only if the visitor has called
+     * {@link #trackScrollingContainers()}.
+     * <p>
+     * Recycled children are not revisited, so a match that depends on per-row content will only
+     * be corrected by the next full visit.
+     *
+     * @return false if no live scrolling containers are known, in which case callers should
+     * fall back to {@link #visit(View)}
+     */
+    public boolean visitAttachedChildren() {
+        if (null == mScrollingContainers || mScrollingContainers.isEmpty()) {
+            return false;
+        }
+
+        boolean visitedAny = false;
+        final Iterator<ScrollingContainer> it = mScrollingContainers.iterator();
+        while (it.hasNext()) {
+            final ScrollingContainer tracked = it.next();
+            final ViewGroup container = tracked.container.get();
+            if (null == container) {
+                it.remove();
+                continue;
+            }
+
+            final int childCount = container.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                final View child = container.getChildAt(i);
+                if (!tracked.attachedChildren.containsKey(child)) {
+                    mPathfinder.findTargetsInChild(child, tracked.childPath, this);
+                }
+            }
+            tracked.rememberChildren(container);
+            visitedAny = true;
+        }
+
+        return visitedAny;
+    }
+
     /**
      * Removes listeners and frees resources associated with the visitor. Once cleanup is called,
      * the ViewVisitor should not be used again.
@@ -789,6 +988,15 @@ import java.util.WeakHashMap;
      */
     public abstract void cleanup();
 
+    /**
+     * Cleans up, unless this visitor is one of kept, which a newer set of edits goes on applying.
+     */
+    public void cleanupExcept(Set<ViewVisitor> kept) {
+        if (!kept.contains(this)) {
+            cleanup();
+        }
+    }
+
     /**
      * 每一个ViewVisitor对应一个PathFinder,每一个PathFinder对应一个Stack
      *
@@ -799,6 +1007,34 @@ import java.util.WeakHashMap;
         mPathfinder = new Pathfinder();
     }
 
+    /**
+     * Asks the pathfinder to report scrolling containers crossed by this visitor's path, so that
+     * {@link #visitAttachedChildren()} can bind rows as they scroll into view. Only appropriate
+     * for visitors whose accumulate() is safe to call on a single view in isolation.
+     */
+    protected void trackScrollingContainers() {
+        mScrollingContainers = new ArrayList<ScrollingContainer>();
+        mPathfinder.setScrollingContainerListener(new Pathfinder.ScrollingContainerListener() {
+            @Override
+            public void onScrollingContainerMatched(ViewGroup container, List<Pathfinder.PathElement> childPath) {
+                ScrollingContainer tracked = null;
+                for (final ScrollingContainer candidate : mScrollingContainers) {
+                    if (candidate.container.get() == container && candidate.childPath.equals(childPath)) {
+                        tracked = candidate;
+                        break;
+                    }
+                }
+                if (null == tracked) {
+                    tracked = new ScrollingContainer(container, childPath);
+                    mScrollingContainers.add(tracked);
+                }
+
+                // The full visit that reported this container goes on to match every current child
+                tracked.rememberChildren(container);
+            }
+        });
+    }
+
     protected List<Pathfinder.PathElement> getPath() {
         return mPath;
     }
@@ -824,6 +1060,30 @@ import java.util.WeakHashMap;
      * 路径搜索类
      */
     private final Pathfinder mPathfinder;
+    /**
+     * Scrolling containers found on the path, or null if the visitor doesn't track them
+     */
+    private List<ScrollingContainer> mScrollingContainers;
+
+    private static class ScrollingContainer {
+        public ScrollingContainer(ViewGroup container, List<Pathfinder.PathElement> childPath) {
+            this.container = new WeakReference<ViewGroup>(container);
+            this.childPath = childPath;
+            this.attachedChildren = new WeakHashMap<View, Boolean>();
+        }
+
+        public void rememberChildren(ViewGroup container) {
+            attachedChildren.clear();
+            final int childCount = container.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                attachedChildren.put(container.getChildAt(i), Boolean.TRUE);
+            }
+        }
+
+        public final WeakReference<ViewGroup> container;
+        public final List<Pathfinder.PathElement> childPath;
+        public final WeakHashMap<View, Boolean> attachedChildren;
+    }
 
     private static final String LOGTAG = "MixpanelAPI.ViewVisitor";
 }